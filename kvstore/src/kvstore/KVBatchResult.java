@@ -0,0 +1,81 @@
+package kvstore;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcome of a batch of requests, one per key; see KVClient.multiGet(),
+ * multiPut() and multiDel(). Each key either succeeded, with a result, or
+ * failed, with the KVException a single request for it would have thrown.
+ *
+ * @param <T> type of each key's result
+ */
+public class KVBatchResult<T> {
+
+    private final Map<String, T> results = new LinkedHashMap<String, T>();
+    private final Map<String, KVException> failures = new LinkedHashMap<String, KVException>();
+
+    /**
+     * Wait for the requests of a batch to finish.
+     *
+     * @param sent request for each key, in the order the keys were given
+     * @return the outcome of each request
+     */
+    static <T> KVBatchResult<T> await(Map<String, KVFuture<T>> sent) {
+        KVBatchResult<T> batch = new KVBatchResult<T>();
+        for (Map.Entry<String, KVFuture<T>> entry : sent.entrySet()) {
+            try {
+                batch.results.put(entry.getKey(), entry.getValue().await());
+            } catch (KVException ex) {
+                batch.failures.put(entry.getKey(), ex);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Get the result for a key.
+     *
+     * @param key one of the keys of the batch
+     * @return what the request for key returned
+     * @throws KVException why the request for key failed, or
+     *         ERROR_INVALID_KEY if key was not part of the batch
+     */
+    public T get(String key) throws KVException {
+        KVException failure = failures.get(key);
+        if (failure != null)
+            throw failure;
+        if (!results.containsKey(key))
+            throw new KVException(KVConstants.ERROR_INVALID_KEY);
+        return results.get(key);
+    }
+
+    /**
+     * Get the results of the keys that succeeded, in the order given.
+     *
+     * @return result of each key that succeeded
+     */
+    public Map<String, T> getResults() {
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Get the failures of the keys that failed, in the order given.
+     *
+     * @return why each key that failed did so
+     */
+    public Map<String, KVException> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Check whether every key of the batch succeeded.
+     *
+     * @return true if no key failed
+     */
+    public boolean isSuccess() {
+        return failures.isEmpty();
+    }
+
+}
@@ -0,0 +1,819 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary wire format for KVMessage.
+ *
+ * A binary message is a frame: an 8 byte header made of the magic bytes
+ * 'K' 'V', the format byte 'B', a flags byte and the body length as a
+ * big-endian int, followed by the body. The body holds a type code, a byte
+ * of presence bits and then each present field in order. Strings are a
+ * varint byte count followed by UTF-8; a message that is one of the
+ * standard responses in KVConstants is sent as a one byte code instead.
+ * A request ID, when set, is sent as a varint before the other fields and
+ * echoed in the response, so responses may come back in any order. Coming
+ * first, it is known even when a request is rejected partway through.
+ * Since no XML document can start with 'K', a receiver can tell the two
+ * formats apart from the first byte.
+ *
+ * Values of at least LARGE_VALUE characters are not copied into the frame
+ * buffer. Their UTF-8 bytes are written to the stream from an array of their
+ * own, which is kept for the last few large values sent, so a hot value that
+ * is read over and over is encoded once rather than on every GET.
+ *
+ * Bodies may be sent deflated. Every frame from a sender that can inflate
+ * carries FLAG_INFLATES, and a connection only compresses once a frame from
+ * the other end has shown that flag, so compression is settled by the first
+ * request and response on a connection without an extra round trip. Only
+ * bodies of at least COMPRESSION_THRESHOLD bytes are compressed, and only if
+ * that makes them smaller. A compressed body is the raw body length as a
+ * big-endian int followed by the deflated raw body.
+ */
+public class KVBinaryCodec {
+
+    public static final int HEADER_SIZE = 8;
+    public static final byte MAGIC_0 = 'K';
+    public static final byte MAGIC_1 = 'V';
+    public static final byte FORMAT_BINARY = 'B';
+
+    private static final int HAS_KEY = 1;
+    private static final int HAS_VALUE = 2;
+    private static final int HAS_MESSAGE = 4;
+    private static final int HAS_RANGE = 8;
+    private static final int HAS_ID = 16;
+    private static final int HAS_LEASE = 32;
+    private static final int HAS_ENTRIES = 64;
+
+    /* fields an entry of a batch may have */
+    private static final int ENTRY_FIELDS = HAS_KEY | HAS_VALUE | HAS_MESSAGE | HAS_LEASE;
+
+    /* header flags */
+    public static final int FLAG_COMPRESSED = 1;
+    public static final int FLAG_INFLATES = 2;
+
+    /* smallest body worth compressing, in bytes */
+    public static final int COMPRESSION_THRESHOLD = 1024;
+
+    /* most characters in a free-form message */
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+
+    /* largest body a compressed frame may inflate to */
+    private static final int MAX_INFLATED = 4 * 1024 * 1024;
+
+    private static final KVCompressionStats stats = new KVCompressionStats();
+
+    /* values at least this long are written from their own encoded array */
+    public static final int LARGE_VALUE = 16 * 1024;
+
+    /* number of large values whose encodings are kept; a power of two */
+    private static final int ENCODED_SLOTS = 16;
+
+    private static final AtomicReferenceArray<Encoded> encoded =
+        new AtomicReferenceArray<Encoded>(ENCODED_SLOTS);
+
+    /* Codes are positions in these tables; only ever append to them. */
+    private static final String[] TYPES = {
+        null, GET_REQ, PUT_REQ, DEL_REQ, PATCH_REQ, RESP, REGISTER, READY,
+        ABORT, COMMIT, ACK, TOPOLOGY, MULTIGET_REQ
+    };
+    private static final String[] MESSAGES = {
+        null, SUCCESS, ERROR_COULD_NOT_RECEIVE_DATA, ERROR_COULD_NOT_SEND_DATA,
+        ERROR_COULD_NOT_CREATE_SOCKET, ERROR_COULD_NOT_CONNECT,
+        ERROR_SOCKET_TIMEOUT, ERROR_PARSER, ERROR_INVALID_FORMAT,
+        ERROR_NO_SUCH_KEY, ERROR_OVERSIZED_KEY, ERROR_OVERSIZED_VALUE,
+        ERROR_INVALID_KEY, ERROR_INVALID_VALUE, ERROR_INVALID_RANGE
+    };
+
+    private static final ThreadLocal<KVBinaryCodec> codecs = new ThreadLocal<KVBinaryCodec>() {
+        @Override
+        protected KVBinaryCodec initialValue() {
+            return new KVBinaryCodec();
+        }
+    };
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private byte[] buf = new byte[CHUNK_SIZE];
+    private int pos;
+    private int limit;
+    private byte[] packed = new byte[0];
+    private Deflater deflater;
+    private Inflater inflater;
+
+    /* decoding state */
+    private InputStream in;
+    private int id;
+    private int remaining;
+    private boolean inflating;
+    private int packedLeft;
+    private long inflateStart;
+
+    private KVBinaryCodec() {
+    }
+
+    /**
+     * Get the codec owned by the calling thread.
+     *
+     * @return codec for this thread
+     */
+    public static KVBinaryCodec get() {
+        return codecs.get();
+    }
+
+    /**
+     * Get the compression totals of all connections in this process.
+     *
+     * @return shared KVCompressionStats
+     */
+    public static KVCompressionStats getCompressionStats() {
+        return stats;
+    }
+
+    /**
+     * Write a message as one uncompressed binary frame that does not
+     * advertise compression.
+     *
+     * @see #encode(KVMessage, OutputStream, boolean, boolean)
+     */
+    public void encode(KVMessage kvm, OutputStream stream) throws KVException, IOException {
+        encode(kvm, stream, false, false);
+    }
+
+    /**
+     * Write a message as one binary frame.
+     *
+     * @param  kvm KVMessage to send
+     * @param  stream OutputStream to write the frame to
+     * @param  inflates true to tell the receiver it may send compressed frames
+     * @param  compress true to compress the body if it is large enough
+     * @throws KVException with ERROR_INVALID_FORMAT if the message type has
+     *         no binary code
+     * @throws IOException if writing to the stream fails
+     */
+    public void encode(KVMessage kvm, OutputStream stream, boolean inflates, boolean compress)
+            throws KVException, IOException {
+        int type = indexOf(TYPES, kvm.getMsgType());
+        if (type < 0)
+            throw new KVException(ERROR_INVALID_FORMAT);
+
+        int present = 0;
+        int size = HEADER_SIZE + 2;
+        if (kvm.getKey() != null) {
+            present |= HAS_KEY;
+            size += 5 + kvm.getKey().length() * 3;
+        }
+        Encoded large = null;
+        if (kvm.getValue() != null) {
+            present |= HAS_VALUE;
+            if (kvm.getValue().length() >= LARGE_VALUE)
+                large = encodeLarge(kvm.getValue());
+            else
+                size += kvm.getValue().length() * 3;
+            size += 5;
+        }
+        if (kvm.getMessage() != null) {
+            present |= HAS_MESSAGE;
+            size += 6 + kvm.getMessage().length() * 3;
+        }
+        if (!kvm.isAppend()) {
+            present |= HAS_RANGE;
+            size += 10;
+        }
+        if (kvm.getId() != 0) {
+            present |= HAS_ID;
+            size += 5;
+        }
+        if (kvm.getLease() != 0) {
+            present |= HAS_LEASE;
+            size += 5;
+        }
+        if (kvm.getEntries() != null) {
+            present |= HAS_ENTRIES;
+            size += 5;
+            for (KVMessage entry : kvm.getEntries())
+                size += 2 + 5 + 6 + 5 + 3 * (length(entry.getKey()) +
+                    length(entry.getValue()) + length(entry.getMessage()));
+        }
+        ensureCapacity(size);
+
+        pos = HEADER_SIZE;
+        buf[pos++] = (byte) type;
+        buf[pos++] = (byte) present;
+        if (kvm.getId() != 0)
+            putVarint(kvm.getId());
+        if (kvm.getKey() != null)
+            putString(kvm.getKey());
+        int split = -1;
+        if (large != null) {
+            putVarint(large.bytes.length);
+            split = pos;
+        } else if (kvm.getValue() != null) {
+            putString(kvm.getValue());
+        }
+        if (kvm.getMessage() != null)
+            putMessage(kvm.getMessage());
+        if (!kvm.isAppend()) {
+            putVarint(kvm.getOffset());
+            putVarint(kvm.getLength());
+        }
+        if (kvm.getLease() != 0)
+            putVarint(Math.max(kvm.getLease(), 0));
+        if (kvm.getEntries() != null) {
+            putVarint(kvm.getEntries().size());
+            for (KVMessage entry : kvm.getEntries())
+                putEntry(entry);
+        }
+
+        int bodyLength = pos - HEADER_SIZE;
+        if (large != null)
+            bodyLength += large.bytes.length;
+        buf[0] = MAGIC_0;
+        buf[1] = MAGIC_1;
+        buf[2] = FORMAT_BINARY;
+        buf[3] = (byte) (inflates ? FLAG_INFLATES : 0);
+        putInt(buf, 4, bodyLength);
+        if (compress && bodyLength >= COMPRESSION_THRESHOLD) {
+            int n = compress(large, split, bodyLength);
+            if (n > 0) {
+                stream.write(packed, 0, n);
+                stream.flush();
+                return;
+            }
+        }
+        if (large != null) {
+            stream.write(buf, 0, split);
+            stream.write(large.bytes);
+            if (pos > split)
+                stream.write(buf, split, pos - split);
+        } else {
+            stream.write(buf, 0, pos);
+        }
+        stream.flush();
+    }
+
+    /**
+     * Read the uncompressed body of a binary frame whose header has already
+     * been read, without size limits.
+     *
+     * @see #decode(InputStream, int, int, int, int)
+     */
+    public KVMessage decode(InputStream stream, int length) throws KVException {
+        return decode(stream, length, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read the body of a binary frame whose header has already been read.
+     * The body is read field by field, and a key, value or message longer
+     * than its limit is rejected from its length prefix, before it is read
+     * or any room is made for it. Room for a field is made as its bytes
+     * arrive, not from what its prefix claims, and no more of a body is read
+     * than maxBodySize() allows. Once a frame is rejected the rest of it is
+     * left unread, so the connection cannot carry further messages.
+     *
+     * @param  stream InputStream positioned at the start of the body
+     * @param  length body length from the frame header
+     * @param  flags flags byte from the frame header
+     * @param  maxKeySize most characters allowed in a key
+     * @param  maxValueSize most characters allowed in a value
+     * @return KVMessage holding the fields of the message
+     * @throws KVException with ERROR_COULD_NOT_RECEIVE_DATA if the stream
+     *         ends early or fails, ERROR_OVERSIZED_KEY or
+     *         ERROR_OVERSIZED_VALUE if a limit is crossed, or
+     *         ERROR_INVALID_FORMAT if the body is malformed or longer than
+     *         maxBodySize() allows. Where the
+     *         request ID had been read, the exception's message carries it.
+     */
+    public KVMessage decode(InputStream stream, int length, int flags, int maxKeySize,
+            int maxValueSize) throws KVException {
+        if (length < 2)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        long maxBody = maxBodySize(maxKeySize, maxValueSize);
+        in = stream;
+        id = 0;
+        pos = limit = 0;
+        inflating = (flags & FLAG_COMPRESSED) != 0;
+        try {
+            if (inflating) {
+                startInflate(length);
+            } else {
+                remaining = length;
+            }
+            // read no more of a body too long for any message than it takes
+            // to find the field at fault
+            boolean overlong = remaining > maxBody;
+            if (overlong)
+                remaining = (int) maxBody + 1;
+
+            need(2);
+            int type = buf[pos++];
+            int present = buf[pos++];
+            if (type <= 0 || type >= TYPES.length)
+                throw new KVException(ERROR_INVALID_FORMAT);
+
+            KVMessage kvm = new KVMessage(TYPES[type]);
+            if ((present & HAS_ID) != 0) {
+                id = getVarint();
+                kvm.setId(id);
+            }
+            if ((present & HAS_KEY) != 0)
+                kvm.setKey(getString(maxKeySize, ERROR_OVERSIZED_KEY));
+            if ((present & HAS_VALUE) != 0)
+                kvm.setValue(getString(maxValueSize, ERROR_OVERSIZED_VALUE));
+            if ((present & HAS_MESSAGE) != 0)
+                kvm.setMessage(getMessage(MAX_MESSAGE_SIZE));
+            if ((present & HAS_RANGE) != 0) {
+                int offset = getVarint();
+                int replaced = getVarint();
+                if (offset < 0 || replaced < 0)
+                    throw new KVException(ERROR_INVALID_FORMAT);
+                kvm.setRange(offset, replaced);
+            }
+            if ((present & HAS_LEASE) != 0)
+                kvm.setLease(getLease());
+            if ((present & HAS_ENTRIES) != 0)
+                kvm.setEntries(getEntries(maxKeySize, maxValueSize));
+            if (overlong || pos != limit || remaining != 0)
+                throw new KVException(ERROR_INVALID_FORMAT);
+            if (inflating)
+                finishInflate();
+            return kvm;
+        } catch (KVException ex) {
+            ex.getKVMessage().setId(id);
+            throw ex;
+        } catch (IOException ex) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        } catch (DataFormatException ex) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        } finally {
+            in = null;
+        }
+    }
+
+    /**
+     * Deflate the body built in buf, with a large value written between
+     * buf[HEADER_SIZE..split) and the rest of buf, into a complete frame in
+     * packed. The header already in buf is copied over with FLAG_COMPRESSED
+     * added.
+     *
+     * @return length of the frame in packed, or -1 if the body would not get
+     *         smaller
+     */
+    private int compress(Encoded large, int split, int bodyLength) {
+        long start = System.nanoTime();
+        // deflated bytes must fit where they beat sending the body as it is
+        int end = HEADER_SIZE + bodyLength - 1;
+        if (packed.length < end)
+            packed = new byte[Math.max(end, packed.length * 2)];
+        if (deflater == null)
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.reset();
+
+        int n = HEADER_SIZE + 4;
+        if (large != null) {
+            n = deflate(buf, HEADER_SIZE, split - HEADER_SIZE, n, end);
+            if (n > 0)
+                n = deflate(large.bytes, 0, large.bytes.length, n, end);
+            if (n > 0)
+                n = deflate(buf, split, pos - split, n, end);
+        } else {
+            n = deflate(buf, HEADER_SIZE, pos - HEADER_SIZE, n, end);
+        }
+        if (n > 0) {
+            deflater.finish();
+            while (!deflater.finished() && n < end)
+                n += deflater.deflate(packed, n, end - n);
+            if (!deflater.finished())
+                n = -1;
+        }
+        if (n < 0) {
+            stats.sentRaw(System.nanoTime() - start);
+            return -1;
+        }
+
+        System.arraycopy(buf, 0, packed, 0, HEADER_SIZE);
+        packed[3] |= FLAG_COMPRESSED;
+        putInt(packed, 4, n - HEADER_SIZE);
+        putInt(packed, HEADER_SIZE, bodyLength);
+        stats.compressed(bodyLength, n - HEADER_SIZE, System.nanoTime() - start);
+        return n;
+    }
+
+    /**
+     * Feed one piece of a body to the deflater, writing what comes out to
+     * packed[n..end).
+     *
+     * @return offset in packed just past the output, or -1 if it ran out of
+     *         room
+     */
+    private int deflate(byte[] b, int off, int len, int n, int end) {
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            if (n == end)
+                return -1;
+            n += deflater.deflate(packed, n, end - n);
+        }
+        return n;
+    }
+
+    /**
+     * Get the longest body a message within the given limits can have: the
+     * type and presence bytes, an ID, a key, a value, a message and a range,
+     * each string at 3 bytes per char behind a 5 byte length prefix, a
+     * lease, and the entries of a batch, whose strings share one value's
+     * worth of room.
+     *
+     * @param  maxKeySize most characters allowed in a key
+     * @param  maxValueSize most characters allowed in a value
+     * @return most bytes the body of such a message can take
+     */
+    public static long maxBodySize(int maxKeySize, int maxValueSize) {
+        return 2 + 5 + (5 + 3L * maxKeySize) + (5 + 3L * maxValueSize) +
+            (1 + 5 + 3L * MAX_MESSAGE_SIZE) + 10 + 5 +
+            (5 + MAX_BATCH_SIZE * 24L + 3L * maxValueSize);
+    }
+
+    /**
+     * Set up to inflate a compressed body of length bytes, reading its raw
+     * length from the stream. Compressed bytes are then read as the body is
+     * parsed, so they are bounded by the same limits as a plain body.
+     */
+    private void startInflate(int length) throws IOException, KVException {
+        if (length < 5)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        if (packed.length < CHUNK_SIZE)
+            packed = new byte[CHUNK_SIZE];
+        readFully(in, packed, 0, 4);
+        remaining = ((packed[0] & 0xFF) << 24) | ((packed[1] & 0xFF) << 16) |
+            ((packed[2] & 0xFF) << 8) | (packed[3] & 0xFF);
+        if (remaining < 2 || remaining > MAX_INFLATED)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        packedLeft = length - 4;
+        if (inflater == null)
+            inflater = new Inflater();
+        inflater.reset();
+        inflateStart = System.nanoTime();
+    }
+
+    /**
+     * Check that a compressed body ends where its raw length said, reading
+     * the rest of the deflate stream.
+     */
+    private void finishInflate() throws IOException, KVException, DataFormatException {
+        byte[] extra = new byte[1];
+        while (!inflater.finished()) {
+            if (readBody(extra, 0, 1) > 0)
+                throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        if (packedLeft != 0 || inflater.getRemaining() != 0)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        stats.inflated(System.nanoTime() - inflateStart);
+    }
+
+    /**
+     * Make sure the next n bytes of the body are in buf[pos..limit), reading
+     * up to a chunk more of the body if the stream has it ready.
+     */
+    private void need(int n) throws IOException, KVException, DataFormatException {
+        if (n <= limit - pos)
+            return;
+        if (n > limit - pos + remaining)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        int target = pos + n;
+        while (limit < target) {
+            if (limit == buf.length) {
+                // grow by what has arrived, never by what a prefix claims
+                byte[] bigger = new byte[(int) Math.min(buf.length * 2L, limit + remaining)];
+                System.arraycopy(buf, 0, bigger, 0, limit);
+                buf = bigger;
+            }
+            // read ahead at most a chunk past what is needed
+            int end = Math.min(Math.min(buf.length, limit + remaining),
+                Math.max(target, limit + CHUNK_SIZE));
+            int got = readBody(buf, limit, end - limit);
+            if (got < 0 && inflating)
+                throw new KVException(ERROR_INVALID_FORMAT);
+            if (got < 0)
+                throw new IOException("unexpected end of stream");
+            limit += got;
+            remaining -= got;
+        }
+    }
+
+    /**
+     * Read up to len bytes of the body, inflating them if it is compressed.
+     *
+     * @return number of bytes read, or -1 if the body ended
+     */
+    private int readBody(byte[] b, int off, int len)
+            throws IOException, KVException, DataFormatException {
+        if (!inflating)
+            return in.read(b, off, len);
+        for (;;) {
+            int got = inflater.inflate(b, off, len);
+            if (got > 0)
+                return got;
+            if (inflater.finished() || inflater.needsDictionary())
+                return -1;
+            if (!inflater.needsInput() || packedLeft == 0)
+                return -1;
+            int n = in.read(packed, 0, Math.min(packed.length, packedLeft));
+            if (n < 0)
+                throw new IOException("unexpected end of stream");
+            packedLeft -= n;
+            inflater.setInput(packed, 0, n);
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /**
+     * Read exactly len bytes from a stream.
+     *
+     * @throws IOException if the stream fails or ends first
+     */
+    public static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0)
+                throw new IOException("unexpected end of stream");
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Encode a string as UTF-8 into a byte array that has room for it.
+     *
+     * @param  s characters to encode
+     * @param  b destination, with at least 3 bytes free per char
+     * @param  n offset in b to start writing at
+     * @return offset in b just past the encoded bytes
+     */
+    public static int putUTF8(CharSequence s, byte[] b, int n) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            int c = s.charAt(i);
+            if (c < 0x80) {
+                b[n++] = (byte) c;
+            } else if (c < 0x800) {
+                b[n++] = (byte) (0xC0 | (c >> 6));
+                b[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < len &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint((char) c, s.charAt(++i));
+                b[n++] = (byte) (0xF0 | (cp >> 18));
+                b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                b[n++] = (byte) (0xE0 | (c >> 12));
+                b[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Get the UTF-8 encoding of a large value, reusing the one made when the
+     * same String was last sent if it is still kept.
+     */
+    private static Encoded encodeLarge(String value) {
+        int slot = System.identityHashCode(value) & (ENCODED_SLOTS - 1);
+        Encoded e = encoded.get(slot);
+        if (e != null && e.value == value)
+            return e;
+        byte[] bytes = new byte[utf8Length(value)];
+        putUTF8(value, bytes, 0);
+        e = new Encoded(value, bytes);
+        encoded.set(slot, e);
+        return e;
+    }
+
+    /**
+     * Count the bytes needed to encode a string as UTF-8.
+     */
+    private static int utf8Length(CharSequence s) {
+        int len = s.length();
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            int c = s.charAt(i);
+            if (c < 0x80) {
+                n += 1;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < len &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    private void putString(String s) {
+        // reserve the largest varint, then move the bytes down if smaller
+        int start = pos + 5;
+        int end = putUTF8(s, buf, start);
+        int len = end - start;
+        putVarint(len);
+        if (pos != start)
+            System.arraycopy(buf, start, buf, pos, len);
+        pos += len;
+    }
+
+    /**
+     * Read a string of at most max characters, rejecting it with error from
+     * its length prefix if its UTF-8 bytes cannot fit.
+     */
+    private String getString(int max, String error)
+            throws IOException, KVException, DataFormatException {
+        int len = getVarint();
+        if (len < 0)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        // each char takes at most 3 bytes, and at least 1
+        if (len > 3L * max)
+            throw new KVException(error);
+        need(len);
+        String s = new String(buf, pos, len, "UTF-8");
+        pos += len;
+        if (s.length() > max)
+            throw new KVException(error);
+        return s;
+    }
+
+    /**
+     * Write a message as its one byte code if it is a standard one, or else
+     * as a string behind a zero code.
+     */
+    private void putMessage(String message) {
+        int code = indexOf(MESSAGES, message);
+        if (code > 0) {
+            buf[pos++] = (byte) code;
+        } else {
+            buf[pos++] = 0;
+            putString(message);
+        }
+    }
+
+    /**
+     * Read a message written by putMessage(), of at most max characters.
+     */
+    private String getMessage(int max) throws IOException, KVException, DataFormatException {
+        need(1);
+        int code = buf[pos++] & 0xFF;
+        if (code >= MESSAGES.length)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        return (code == 0) ? getString(max, ERROR_INVALID_FORMAT) : MESSAGES[code];
+    }
+
+    /**
+     * Read a lease; a lease of 0 on the wire is LEASE_REFUSED.
+     */
+    private int getLease() throws IOException, KVException, DataFormatException {
+        int lease = getVarint();
+        if (lease < 0)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        return (lease == 0) ? LEASE_REFUSED : lease;
+    }
+
+    /**
+     * Write an entry of a batch: its type code, presence bits and fields,
+     * which may only be a key, value, message and lease.
+     */
+    private void putEntry(KVMessage entry) throws KVException {
+        int type = indexOf(TYPES, entry.getMsgType());
+        if (type < 0 || entry.getEntries() != null)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        int present = 0;
+        if (entry.getKey() != null)
+            present |= HAS_KEY;
+        if (entry.getValue() != null)
+            present |= HAS_VALUE;
+        if (entry.getMessage() != null)
+            present |= HAS_MESSAGE;
+        if (entry.getLease() != 0)
+            present |= HAS_LEASE;
+        buf[pos++] = (byte) type;
+        buf[pos++] = (byte) present;
+        if (entry.getKey() != null)
+            putString(entry.getKey());
+        if (entry.getValue() != null)
+            putString(entry.getValue());
+        if (entry.getMessage() != null)
+            putMessage(entry.getMessage());
+        if (entry.getLease() != 0)
+            putVarint(Math.max(entry.getLease(), 0));
+    }
+
+    /**
+     * Read the entries of a batch. Besides the limit on each key and value,
+     * the strings of all the entries together may have at most maxValueSize
+     * characters, so a batch takes no more room than one large value.
+     */
+    private List<KVMessage> getEntries(int maxKeySize, int maxValueSize)
+            throws IOException, KVException, DataFormatException {
+        int count = getVarint();
+        if (count <= 0 || count > MAX_BATCH_SIZE)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        List<KVMessage> entries = new ArrayList<KVMessage>(count);
+        long room = maxValueSize;
+        for (int i = 0; i < count; i++) {
+            need(2);
+            int type = buf[pos++];
+            int present = buf[pos++];
+            if (type <= 0 || type >= TYPES.length || (present & ~ENTRY_FIELDS) != 0)
+                throw new KVException(ERROR_INVALID_FORMAT);
+            KVMessage entry = new KVMessage(TYPES[type]);
+            if ((present & HAS_KEY) != 0) {
+                entry.setKey(getString(maxKeySize, ERROR_OVERSIZED_KEY));
+                room -= entry.getKey().length();
+            }
+            if ((present & HAS_VALUE) != 0) {
+                entry.setValue(getString((int) Math.max(0, Math.min(maxValueSize, room)),
+                    ERROR_OVERSIZED_VALUE));
+                room -= entry.getValue().length();
+            }
+            if ((present & HAS_MESSAGE) != 0) {
+                entry.setMessage(getMessage((int) Math.max(0, Math.min(MAX_MESSAGE_SIZE, room))));
+                if (indexOf(MESSAGES, entry.getMessage()) <= 0)
+                    room -= entry.getMessage().length();
+            }
+            if ((present & HAS_LEASE) != 0)
+                entry.setLease(getLease());
+            if (room < 0)
+                throw new KVException(ERROR_OVERSIZED_VALUE);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static int length(String s) {
+        return (s == null) ? 0 : s.length();
+    }
+
+    private void putVarint(int v) {
+        while ((v & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    private int getVarint() throws IOException, KVException, DataFormatException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            need(1);
+            int b = buf[pos++];
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new KVException(ERROR_INVALID_FORMAT);
+    }
+
+    private void ensureCapacity(int size) {
+        if (buf.length < size)
+            buf = new byte[Math.max(size, buf.length * 2)];
+    }
+
+    /**
+     * A large value and its UTF-8 bytes.
+     */
+    private static final class Encoded {
+
+        final String value;
+        final byte[] bytes;
+
+        Encoded(String value, byte[] bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    private static int indexOf(String[] table, String s) {
+        for (int i = 1; i < table.length; i++) {
+            if (table[i].equals(s))
+                return i;
+        }
+        return -1;
+    }
+}
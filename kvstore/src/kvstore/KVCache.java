@@ -27,6 +27,7 @@ public class KVCache implements KeyValueInterface {
 		public String key;
 		public String value;
 		public boolean isRef;
+		public long expires;
 		
 		public KVCacheEntry() {
 			key = value = null;
@@ -82,6 +83,10 @@ public class KVCache implements KeyValueInterface {
         int setId = getSetId(key);
         for (KVCacheEntry e : data.get(setId).entry) {
         	if (e.key.equals(key)) {
+        		if (e.expires != 0 && System.currentTimeMillis() >= e.expires) {
+        			data.get(setId).entry.remove(e);
+        			return null;
+        		}
         		e.isRef = true;
         		return e.value;
         	}
@@ -107,11 +112,25 @@ public class KVCache implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) {
+        put(key , value , 0);
+    }
+
+    /**
+     * Adds an entry to this cache that get() stops returning, and drops, at
+     * a certain time. Otherwise the same as put(key, value).
+     *
+     * @param key the key with which the specified value is to be associated
+     * @param value a value to be associated with the specified key
+     * @param expires time the entry expires, as from
+     *        System.currentTimeMillis(), or 0 if it never does
+     */
+    public void put(String key, String value, long expires) {
         int setId = getSetId(key);
         for (KVCacheEntry e : data.get(setId).entry) {
         	if (e.key.equals(key)) {
         		e.value = value;
         		e.isRef = true;
+        		e.expires = expires;
         		return;
         	}
         }
@@ -124,6 +143,7 @@ public class KVCache implements KeyValueInterface {
 	        			e.key = key;
 	        			e.value = value;
 	        			e.isRef = false;
+	        			e.expires = expires;
 	        			return;
 	        		}
 	        		else
@@ -132,7 +152,9 @@ public class KVCache implements KeyValueInterface {
         	}
         }
         else {
-        	data.get(setId).entry.add(new KVCacheEntry(key , value , false));
+        	KVCacheEntry e = new KVCacheEntry(key , value , false);
+        	e.expires = expires;
+        	data.get(setId).entry.add(e);
         }
     }
 
@@ -172,7 +194,7 @@ public class KVCache implements KeyValueInterface {
      * @param  key key of interest
      * @return set of the key
      */
-    private int getSetId(String key) {
+    public int getSetId(String key) {
         return Math.abs(key.hashCode()) % numSets;
     }
 
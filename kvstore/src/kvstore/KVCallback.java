@@ -0,0 +1,27 @@
+package kvstore;
+
+/**
+ * Interface for code to run when an asynchronous request finishes; see
+ * KVFuture.addCallback(). Callbacks may run on the thread that reads
+ * responses off the connection, so they should return quickly and must not
+ * wait for other requests on the same client.
+ *
+ * @param <T> type of the request's result
+ */
+public interface KVCallback<T> {
+
+    /**
+     * Called with the result once the request has succeeded.
+     *
+     * @param result what the request returned
+     */
+    public void completed(T result);
+
+    /**
+     * Called once the request has failed.
+     *
+     * @param ex why the request failed
+     */
+    public void failed(KVException ex);
+
+}
@@ -3,15 +3,76 @@ package kvstore;
 import static kvstore.KVConstants.*;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 /**
- * Client API used to issue requests to key-value server.
+ * Client API used to issue requests to key-value server. A KVClient may be
+ * shared by many threads; their requests are pipelined on one connection,
+ * or spread over a pool of connections after setConnectionPool(). Values
+ * read can be kept in a near cache; see setNearCache(). GETs to a TPCMaster
+ * can skip the master and go straight to the slaves; see setDirectReads().
+ * A GET that fails for want of an answer can be retried, and one that is
+ * slow to be answered can be hedged; see setGetRetries() and setHedging().
  */
 public class KVClient implements KeyValueInterface {
 
     private String server;
     private int port;
+    private KVEndpoint endpoint;
+    private volatile KVCache nearCache;
+    private volatile int maxStaleness;
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong nearHits = new AtomicLong();
+    private final AtomicLong nearMisses = new AtomicLong();
+    private volatile boolean directReads = false;
+    private volatile List<TPCSlaveInfo> ring;
+    private volatile long refreshAt = 0;
+    private final Object ringLock = new Object();
+    private final AtomicLong directGets = new AtomicLong();
+    private volatile int timeoutMillis = KVConstants.TIMEOUT_MILLISECONDS;
+    private volatile int getRetries = 0;
+    private volatile int backoffMillis = 0;
+    private volatile boolean hedging = false;
+    private final LatencyHistogram getLatency = new LatencyHistogram();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /* GETs answered before the p95 latency is trusted for hedging */
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    /* threads that send hedged GETs, shared by all clients */
+    private static final ExecutorService hedgeThreads =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "KVClient-hedge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /* how often the ring of slaves is fetched again, and how soon after a
+     * slave could not be reached */
+    private static final int TOPOLOGY_REFRESH_MILLISECONDS = 10000;
+    private static final int TOPOLOGY_RETRY_MILLISECONDS = 1000;
 
     /**
      * Constructs a KVClient connected to a server.
@@ -22,18 +83,33 @@ public class KVClient implements KeyValueInterface {
     public KVClient(String server, int port) {
         this.server = server;
         this.port = port;
+        this.endpoint = new KVEndpoint(server, port) {
+            @Override
+            protected Socket connect(int timeout) throws KVException {
+                return connectHost(timeout);
+            }
+        };
+        this.endpoint.setPipelined(true);
     }
     
     /**
      * Creates a socket connected to the server to make a request.
      *
+     * @param timeout longest to wait for the connection, in milliseconds
      * @return Socket connected to server
-     * @throws KVException if unable to create or connect socket
+     * @throws KVException ERROR_SOCKET_TIMEOUT if the server does not accept
+     *         in time, or ERROR_COULD_NOT_CONNECT or
+     *         ERROR_COULD_NOT_CREATE_SOCKET if unable to create or connect socket
      */
-    private Socket connectHost() throws KVException {
+    private Socket connectHost(int timeout) throws KVException {
     	Socket sock = null;
     	try {
-    		sock = new Socket(server , port);
+    		sock = new Socket();
+    		sock.setSoTimeout(timeout);
+    		sock.connect(new InetSocketAddress(server , port) , timeout);
+    	}
+    	catch (SocketTimeoutException ex) {
+    		throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
     	}
     	catch (IOException ex) {
     		throw new KVException(KVConstants.ERROR_COULD_NOT_CONNECT);
@@ -45,16 +121,636 @@ public class KVClient implements KeyValueInterface {
     }
 
     /**
-     * Closes a socket.
-     * Best effort, ignores error since the response has already been received.
+     * Set the wire format used for requests. The default is BINARY, which
+     * switches to XML by itself if the server turns out to only speak XML.
+     *
+     * @param format KVConnection.XML or KVConnection.BINARY
+     */
+    public void setWireFormat(int format) {
+        endpoint.setWireFormat(format);
+    }
+
+    /**
+     * Set whether large values may be sent and received compressed, if the
+     * server supports it. Off by default.
+     *
+     * @param compression true to compress large messages
+     */
+    public void setCompression(boolean compression) {
+        endpoint.setCompression(compression);
+    }
+
+    /**
+     * Spread requests over a pool of connections instead of pipelining them
+     * on one. At most maxConnections are open at once, and threads wait for
+     * one to come free, up to TIMEOUT_MILLISECONDS, before failing with
+     * ERROR_SOCKET_TIMEOUT; minConnections are kept open ahead of requests;
+     * idle connections past those are closed after idleTimeout, and the
+     * rest are checked regularly and replaced if the server has closed
+     * them. See KVEndpoint.setConnectionPool().
+     *
+     * @param minConnections connections kept open while idle
+     * @param maxConnections most connections open at once, or 0 for no limit
+     * @param idleTimeout milliseconds a connection beyond minConnections may
+     *        sit idle
+     */
+    public void setConnectionPool(int minConnections, int maxConnections, int idleTimeout) {
+        endpoint.setPipelined(false);
+        endpoint.setConnectionPool(minConnections, maxConnections, idleTimeout);
+    }
+
+    /**
+     * Get the number of pooled connections open to the server, idle or in
+     * use. The pipelined connection is not counted.
+     *
+     * @return connections open
+     */
+    public int getOpenConnections() {
+        return endpoint.getOpenConnections();
+    }
+
+    /**
+     * Get the number of pooled connections this client has opened, which
+     * stays low while connections are being reused.
+     *
+     * @return connections opened since the client was created
+     */
+    public long getOpenedCount() {
+        return endpoint.getOpenedCount();
+    }
+
+    /**
+     * Keep values this client reads in a near cache, a KVCache of numSets
+     * sets of maxElemsPerSet values, so that hot keys are served without a
+     * round trip. A value is served from the cache for at most
+     * maxStalenessMillis after it was requested, and for no longer than
+     * the read lease the server granted with it, if any; see
+     * TPCMaster.setReadLease(). A value the server refused a lease on is
+     * not cached at all. Under a lease the cache never returns a value
+     * older than a completed write. Without one, a write made through
+     * another client may go unseen for up to maxStalenessMillis; writes
+     * made through this client drop the key from the cache at once.
+     * A numSets of 0 turns the cache off.
+     *
+     * @param numSets number of sets in the cache, or 0 for no cache
+     * @param maxElemsPerSet number of values in each set
+     * @param maxStalenessMillis longest a value is served from the cache
+     */
+    public void setNearCache(int numSets, int maxElemsPerSet, int maxStalenessMillis) {
+        maxStaleness = maxStalenessMillis;
+        nearCache = (numSets > 0) ? new KVCache(numSets , maxElemsPerSet) : null;
+    }
+
+    /**
+     * Get the number of GETs served from the near cache.
+     *
+     * @return near cache hits since the client was created
+     */
+    public long getNearCacheHits() {
+        return nearHits.get();
+    }
+
+    /**
+     * Get the number of GETs the near cache could not serve.
+     *
+     * @return near cache misses since the client was created
+     */
+    public long getNearCacheMisses() {
+        return nearMisses.get();
+    }
+
+    /**
+     * Send GETs straight to the slaves holding the key instead of through
+     * the master, which then only sees PUTs, DELs and PATCHes. The client
+     * fetches the ring of slaves from the master, see
+     * TPCMaster.getTopology(), and places keys on it the way the master
+     * does, asking the primary replica and then its successor. The ring is
+     * fetched again every TOPOLOGY_REFRESH_MILLISECONDS, and soon after a
+     * slave cannot be reached, since it may have re-registered elsewhere;
+     * meanwhile, and while the master has no ring to give (e.g. a lone
+     * KVServer), GETs go to the server as usual. Only get() reads directly.
+     *
+     * A value read from a slave comes with no read lease, so it is kept in
+     * the near cache for maxStalenessMillis. Off by default.
+     *
+     * @param direct true to read from the slaves
+     */
+    public void setDirectReads(boolean direct) {
+        directReads = direct;
+        if (!direct) {
+        	synchronized (ringLock) {
+        		closeRing(ring , null);
+        		ring = null;
+        		refreshAt = 0;
+        	}
+        }
+    }
+
+    /**
+     * Get the number of GETs a slave answered directly.
+     *
+     * @return direct reads since the client was created
+     */
+    public long getDirectReadCount() {
+        return directGets.get();
+    }
+
+    /**
+     * Set the deadline of each request, TIMEOUT_MILLISECONDS by default.
+     * A GET fails with ERROR_SOCKET_TIMEOUT if neither it nor its retries
+     * and hedge are answered by then; the other requests wait this long for
+     * their response. The async methods without a timeout use it too.
+     *
+     * @param millis milliseconds each request may take
+     */
+    public void setTimeout(int millis) {
+        timeoutMillis = millis;
+    }
+
+    /**
+     * Retry a GET that got no answer: one that could not be sent, was not
+     * answered, or was turned away with ERROR_SERVER_BUSY. A GET changes
+     * nothing, so it is safe to send again. Before retry n (from 0) the
+     * client sleeps a random time up to backoffMillis * 2^n, so that clients
+     * turned away together do not come back together; no retry starts that
+     * could not finish by the deadline. No retries by default.
+     *
+     * @param retries most times a GET is sent again
+     * @param backoffMillis longest sleep before the first retry
+     */
+    public void setGetRetries(int retries, int backoffMillis) {
+        this.getRetries = retries;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Set whether a GET not answered within the p95 latency of the GETs
+     * answered so far is sent a second time, the first answer to either
+     * being taken. That cuts the tail due to one slow server thread or
+     * connection at the cost of about 5% more GETs; with direct reads the
+     * second GET goes to the successor replica first. Hedging starts once
+     * 20 GETs have been answered. Only get() is hedged, and
+     * hedged GETs are sent from a thread shared by all clients. Off by
+     * default.
+     *
+     * @param hedging true to hedge slow GETs
+     */
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Get the number of times a GET was retried.
+     *
+     * @return retries since the client was created
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Get the number of hedged GETs sent, each a duplicate of a slow one.
+     *
+     * @return hedges since the client was created
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * Get the number of hedged GETs answered before the GET they duplicate.
      *
-     * @param  sock Socket to be closed
+     * @return hedges that won since the client was created
      */
-    private void closeHost(Socket sock) {
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Get the latency of each GET sent and answered, including retries and
+     * hedges; hedging waits for its p95.
+     *
+     * @return the histogram of GET latencies
+     */
+    public LatencyHistogram getGetLatency() {
+        return getLatency;
+    }
+
+    /**
+     * Send a GET, retrying it as set by setGetRetries() until the deadline.
+     *
+     * @param req the GET
+     * @return the response, with the value or why there is none
+     * @throws KVException if no answer came
+     */
+    private KVMessage sendGet(KVMessage req) throws KVException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (int attempt = 0; ; attempt++) {
+        	KVException failure;
+        	try {
+        		KVMessage receive = sendOnce(req , deadline);
+        		if (receive.getValue() != null || !isRetryable(receive.getMessage()))
+        			return receive;
+        		failure = new KVException(receive.getMessage());
+        	}
+        	catch (KVException ex) {
+        		if (!isRetryable(ex.getKVMessage().getMessage()))
+        			throw ex;
+        		failure = ex;
+        	}
+        	
+        	if (attempt >= getRetries)
+        		throw failure;
+        	long pause = (long) (ThreadLocalRandom.current().nextDouble() *
+        		((long) backoffMillis << Math.min(attempt , 20)));
+        	if (System.currentTimeMillis() + pause >= deadline)
+        		throw failure;
+        	try {
+        		Thread.sleep(pause);
+        	}
+        	catch (InterruptedException ex) {
+        		throw failure;
+        	}
+        	retries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Send a GET once, hedging it if it is slow.
+     *
+     * @param req the GET
+     * @param deadline time by which an answer is needed
+     * @return the first answer
+     * @throws KVException if no answer came
+     */
+    private KVMessage sendOnce(final KVMessage req, final long deadline) throws KVException {
+        long delay = hedgeDelay();
+        if (delay <= 0)
+        	return attempt(req , deadline , false);
+        
+        final KVFuture<KVMessage> first = new KVFuture<KVMessage>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        launch(req , deadline , false , first , pending);
         try {
-        	sock.close();
+        	return first.get(delay , TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex) {
+        }
+        catch (ExecutionException ex) {
+        	// failed already: let the future report why
+        	return first.await();
+        }
+        catch (InterruptedException ex) {
+        	throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
         }
-        catch (Exception ex) {
+        if (System.currentTimeMillis() < deadline) {
+        	pending.incrementAndGet();
+        	hedges.incrementAndGet();
+        	launch(new KVMessage(req) , deadline , true , first , pending);
+        }
+        return first.await();
+    }
+
+    /**
+     * Get how long to wait for a GET before hedging it.
+     *
+     * @return milliseconds, or 0 not to hedge
+     */
+    private long hedgeDelay() {
+        if (!hedging || getLatency.getCount() < HEDGE_MIN_SAMPLES)
+        	return 0;
+        return Math.max(1 , getLatency.getPercentile(95) / 1000);
+    }
+
+    /**
+     * Send a GET from a hedge thread. The first answer completes first; a
+     * failure does so only once every GET sent has failed.
+     */
+    private void launch(final KVMessage req, final long deadline, final boolean hedge,
+            final KVFuture<KVMessage> first, final AtomicInteger pending) {
+        hedgeThreads.execute(new Runnable() {
+            @Override
+            public void run() {
+                KVException failure = null;
+                boolean answered = false;
+                try {
+                	KVMessage receive = attempt(req , deadline , hedge);
+                	if (receive.getValue() != null || !isRetryable(receive.getMessage())) {
+                		answered = true;
+                		if (first.complete(receive) && hedge)
+                			hedgeWins.incrementAndGet();
+                		return;
+                	}
+                	failure = new KVException(receive.getMessage());
+                }
+                catch (KVException ex) {
+                	failure = ex;
+                }
+                finally {
+                	// even an unexpected exception counts as this GET failing,
+                	// or the caller would wait for it forever
+                	if (!answered && pending.decrementAndGet() == 0)
+                		first.fail(failure != null ? failure :
+                			new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA));
+                }
+            }
+        });
+    }
+
+    /**
+     * Send a GET once, to the key's replicas if reading directly, or else
+     * to the server, noting how long it took to be answered.
+     *
+     * @param req the GET
+     * @param deadline time by which an answer is needed
+     * @param successorFirst true to ask the successor replica first
+     * @return the response
+     * @throws KVException if no answer came
+     */
+    private KVMessage attempt(KVMessage req, long deadline, boolean successorFirst)
+            throws KVException {
+        int left = (int) (deadline - System.currentTimeMillis());
+        if (left <= 0)
+        	throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+        long started = System.nanoTime();
+        KVMessage receive = directReads ? sendToReplicas(req , left , successorFirst) : null;
+        if (receive == null)
+        	receive = endpoint.sendRequest(req , left);
+        if (receive.getValue() != null)
+        	getLatency.record(System.nanoTime() - started);
+        return receive;
+    }
+
+    /**
+     * Check whether a GET that failed this way may succeed if sent again.
+     */
+    private static boolean isRetryable(String error) {
+        return KVConstants.ERROR_COULD_NOT_RECEIVE_DATA.equals(error) ||
+        	KVConstants.ERROR_COULD_NOT_SEND_DATA.equals(error) ||
+        	KVConstants.ERROR_COULD_NOT_CONNECT.equals(error) ||
+        	KVConstants.ERROR_COULD_NOT_CREATE_SOCKET.equals(error) ||
+        	KVConstants.ERROR_SOCKET_TIMEOUT.equals(error) ||
+        	KVConstants.ERROR_SERVER_BUSY.equals(error);
+    }
+
+    /**
+     * Send a GET to the replicas of its key, primary first.
+     *
+     * @param req the GET
+     * @param timeout milliseconds to wait for each replica
+     * @param successorFirst true to ask the successor first instead
+     * @return the response of the first replica that has the key, or of the
+     *         last one to answer, or null if there is no ring or no replica
+     *         answered, in which case the GET should go to the master
+     */
+    private KVMessage sendToReplicas(KVMessage req, int timeout, boolean successorFirst) {
+        List<TPCSlaveInfo> slaves = getRing();
+        if (slaves == null)
+        	return null;
+        
+        int first = TPCMaster.findFirstReplicaIndex(slaves , TPCMaster.hashTo64bit(req.getKey()));
+        KVMessage receive = null;
+        for (int i = 0; i < 2; i++) {
+        	int replica = successorFirst ? 1 - i : i;
+        	TPCSlaveInfo slave = slaves.get((first + replica) % slaves.size());
+        	try {
+        		KVMessage resp = slave.sendRequest(req , timeout);
+        		if (!KVConstants.RESP.equals(resp.getMsgType()))
+        			continue;
+        		receive = resp;
+        	}
+        	catch (KVException ex) {
+        		// the slave is down, or has re-registered somewhere else
+        		synchronized (ringLock) {
+        			refreshAt = Math.min(refreshAt ,
+        				System.currentTimeMillis() + TOPOLOGY_RETRY_MILLISECONDS);
+        		}
+        		continue;
+        	}
+        	if (receive.getValue() != null) {
+        		directGets.incrementAndGet();
+        		return receive;
+        	}
+        }
+        return receive;
+    }
+
+    /**
+     * Get the ring of slaves, fetching it from the master if it is due.
+     *
+     * @return the slaves in ring order, or null if there is no usable ring
+     */
+    private List<TPCSlaveInfo> getRing() {
+        if (System.currentTimeMillis() < refreshAt)
+        	return ring;
+        synchronized (ringLock) {
+        	if (System.currentTimeMillis() < refreshAt || !directReads)
+        		return ring;
+        	List<TPCSlaveInfo> fresh = fetchRing();
+        	closeRing(ring , fresh);
+        	ring = fresh;
+        	refreshAt = System.currentTimeMillis() + (fresh == null ?
+        		TOPOLOGY_RETRY_MILLISECONDS : TOPOLOGY_REFRESH_MILLISECONDS);
+        	return fresh;
+        }
+    }
+
+    /**
+     * Ask the master for its ring of slaves. Caller holds ringLock.
+     *
+     * @return the slaves, reusing those already known at the same address so
+     *         their connections stay open, or null if the server has no ring
+     */
+    private List<TPCSlaveInfo> fetchRing() {
+        String topology;
+        try {
+        	topology = endpoint.sendRequest(new KVMessage(KVConstants.TOPOLOGY) ,
+        		KVConstants.TIMEOUT_MILLISECONDS).getMessage();
+        }
+        catch (KVException ex) {
+        	return null;
+        }
+        if (topology == null || topology.length() == 0)
+        	return null;
+        
+        List<TPCSlaveInfo> fresh = new ArrayList<TPCSlaveInfo>();
+        for (String info : topology.split(",")) {
+        	TPCSlaveInfo slave;
+        	try {
+        		slave = new TPCSlaveInfo(info);
+        	}
+        	catch (KVException ex) {
+        		// not a ring: a server that does not know TOPOLOGY
+        		return null;
+        	}
+        	TPCSlaveInfo known = find(ring , slave);
+        	fresh.add(known != null ? known : slave);
+        }
+        return fresh.size() >= 2 ? fresh : null;
+    }
+
+    /**
+     * Find a slave at the same address in a ring.
+     *
+     * @return the slave in ring, or null if it is not there
+     */
+    private static TPCSlaveInfo find(List<TPCSlaveInfo> ring, TPCSlaveInfo slave) {
+        if (ring == null)
+        	return null;
+        for (TPCSlaveInfo s : ring) {
+        	if (s.getSlaveID() == slave.getSlaveID() && s.getPort() == slave.getPort() &&
+        		s.getHostname().equals(slave.getHostname()))
+        		return s;
+        }
+        return null;
+    }
+
+    /**
+     * Close the connections to slaves of an old ring that are not in the new
+     * one.
+     */
+    private static void closeRing(List<TPCSlaveInfo> old, List<TPCSlaveInfo> fresh) {
+        if (old == null)
+        	return;
+        for (TPCSlaveInfo slave : old) {
+        	if (fresh == null || !fresh.contains(slave))
+        		slave.closeConnections();
+        }
+    }
+
+    /**
+     * Look a key up in the near cache.
+     *
+     * @return the value, or null if there is no cache or it has no live
+     *         value for key
+     */
+    private String cached(String key) {
+        KVCache cache = nearCache;
+        if (cache == null)
+        	return null;
+        String value;
+        Lock lock = cache.getLock(key);
+        lock.lock();
+        try {
+        	value = cache.get(key);
+        }
+        finally {
+        	lock.unlock();
+        }
+        if (value != null)
+        	nearHits.incrementAndGet();
+        else
+        	nearMisses.incrementAndGet();
+        return value;
+    }
+
+    /**
+     * Keep the value a GET returned in the near cache, unless this client
+     * has written anything since the GET was sent, or the server refused
+     * a lease on it: either way the value may be older than a write.
+     *
+     * @param receive response to the GET
+     * @param sentAt when the GET was sent
+     * @param writesBefore number of writes made before the GET was sent
+     */
+    private void remember(KVMessage receive, long sentAt, long writesBefore) {
+        KVCache cache = nearCache;
+        if (cache == null || writes.get() != writesBefore)
+        	return;
+        long ttl = maxStaleness;
+        // the server would not promise the value stays put for any time
+        if (receive.getLease() == KVConstants.LEASE_REFUSED)
+        	return;
+        if (receive.getLease() > 0)
+        	ttl = Math.min(ttl , receive.getLease());
+        if (ttl <= 0)
+        	return;
+        Lock lock = cache.getLock(receive.getKey());
+        lock.lock();
+        try {
+        	cache.put(receive.getKey() , receive.getValue() , sentAt + ttl);
+        }
+        finally {
+        	lock.unlock();
+        }
+    }
+
+    /**
+     * Drop a key about to be written, or just written, from the near cache.
+     */
+    private void invalidate(String key) {
+        writes.incrementAndGet();
+        KVCache cache = nearCache;
+        if (cache == null)
+        	return;
+        Lock lock = cache.getLock(key);
+        lock.lock();
+        try {
+        	cache.del(key);
+        }
+        finally {
+        	lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a request and waits for the response. Once the server has
+     * answered in the binary format, requests from all threads using this
+     * client are pipelined on one connection, so many can be in flight at
+     * once; see KVEndpoint and KVPipeline.
+     *
+     * @param  req KVMessage to send
+     * @return the response from the server
+     * @throws KVException if the request could not be sent or answered
+     */
+    private KVMessage sendRequest(KVMessage req) throws KVException {
+        if (KVConstants.GET_REQ.equals(req.getMsgType()))
+        	return endpoint.sendRequest(req , timeoutMillis);
+        invalidate(req.getKey());
+        try {
+        	return endpoint.sendRequest(req , timeoutMillis);
+        }
+        finally {
+        	invalidate(req.getKey());
+        }
+    }
+
+    /**
+     * Sends a request without waiting for the response; see
+     * KVEndpoint.sendRequestAsync().
+     *
+     * @param  req KVMessage to send
+     * @param  timeout milliseconds to wait for the response
+     * @return the response to come
+     */
+    private KVFuture<KVMessage> sendRequestAsync(KVMessage req, int timeout) {
+        if (KVConstants.GET_REQ.equals(req.getMsgType()))
+        	return endpoint.sendRequestAsync(req , timeout);
+        final String key = req.getKey();
+        invalidate(key);
+        KVFuture<KVMessage> sent = endpoint.sendRequestAsync(req , timeout);
+        sent.addCallback(new KVCallback<KVMessage>() {
+            @Override
+            public void completed(KVMessage receive) {
+                invalidate(key);
+            }
+
+            @Override
+            public void failed(KVException ex) {
+                invalidate(key);
+            }
+        });
+        return sent;
+    }
+
+    /**
+     * Closes any connections kept open to the server, and stops looking
+     * after a pool of them. The client can still be used afterwards.
+     */
+    public void close() {
+        endpoint.close();
+        synchronized (ringLock) {
+        	closeRing(ring , null);
         }
     }
 
@@ -75,22 +771,9 @@ public class KVClient implements KeyValueInterface {
     	kvm.setKey(key);
     	kvm.setValue(value);
     	
-    	Socket sock = null;
-        try {
-        	sock = connectHost();
-        	kvm.sendMessage(sock);
-        	
-        	KVMessage receive = new KVMessage(sock);
-        	if (!receive.getMessage().equals(KVConstants.SUCCESS))
-        		throw new KVException(receive.getMessage());
-        }
-        catch (KVException ex) {
-        	throw ex;
-        }
-        finally {
-        	if (sock != null)
-        		closeHost(sock);
-        }
+    	KVMessage receive = sendRequest(kvm);
+    	if (!KVConstants.SUCCESS.equals(receive.getMessage()))
+    		throw new KVException(receive.getMessage());
     }
 
     /**
@@ -105,30 +788,20 @@ public class KVClient implements KeyValueInterface {
         if (key == null || key.length() == 0)
         	throw new KVException(KVConstants.ERROR_INVALID_KEY);
         
+        String value = cached(key);
+        if (value != null)
+        	return value;
+        
         KVMessage kvm = new KVMessage(KVConstants.GET_REQ);
         kvm.setKey(key);
         
-        Socket sock = null;
-        String value = null;
-        
-        try {
-        	sock = connectHost();
-        	kvm.sendMessage(sock);
-        	
-        	KVMessage receive = new KVMessage(sock);
-        	
-        	if (receive.getKey() == null || receive.getValue() == null)
-        		throw new KVException(receive.getMessage());
-        	value = receive.getValue();
-        }
-        catch (KVException ex) {
-        	throw ex;
-        }
-        finally {
-        	if (sock != null)
-        		closeHost(sock);
-        }
-        return value;
+        long writesBefore = writes.get();
+        long sentAt = System.currentTimeMillis();
+        KVMessage receive = sendGet(kvm);
+        if (receive.getKey() == null || receive.getValue() == null)
+        	throw new KVException(receive.getMessage());
+        remember(receive , sentAt , writesBefore);
+        return receive.getValue();
     }
 
     /**
@@ -145,24 +818,317 @@ public class KVClient implements KeyValueInterface {
         KVMessage kvm = new KVMessage(KVConstants.DEL_REQ);
         kvm.setKey(key);
         
-        Socket sock = null;
+        KVMessage receive = sendRequest(kvm);
+        if (!KVConstants.SUCCESS.equals(receive.getMessage()))
+        	throw new KVException(receive.getMessage());
+    }
+
+    /**
+     * Issues a PATCH request to the server, replacing the characters
+     * [offset, offset + length) of the stored value with delta. Only the
+     * delta is sent, which is much cheaper than a PUT of the whole value
+     * when a few characters of a large value change.
+     *
+     * @param  key String key of the value to patch
+     * @param  offset start of the replaced range
+     * @param  length number of characters replaced
+     * @param  delta String spliced into the stored value
+     * @throws KVException if the request was not successful in any way
+     */
+    public void patch(String key, int offset, int length, String delta)
+            throws KVException {
+        if (offset < 0 || length < 0)
+        	throw new KVException(KVConstants.ERROR_INVALID_RANGE);
         
-        try {
-        	sock = connectHost();
-        	kvm.sendMessage(sock);
-        	
-        	KVMessage receive = new KVMessage(sock);
-        	if (!receive.getMessage().equals(KVConstants.SUCCESS))
-        		throw new KVException(receive.getMessage());
+        KVMessage kvm = new KVMessage(KVConstants.PATCH_REQ);
+        kvm.setRange(offset , length);
+        sendPatch(key , delta , kvm);
+    }
+
+    /**
+     * Issues a PATCH request to the server that appends delta to the stored
+     * value.
+     *
+     * @param  key String key of the value to append to
+     * @param  delta String appended to the stored value
+     * @throws KVException if the request was not successful in any way
+     */
+    public void append(String key, String delta) throws KVException {
+        sendPatch(key , delta , new KVMessage(KVConstants.PATCH_REQ));
+    }
+
+    /**
+     * Fills in and sends a patchreq, then waits for the server's response.
+     *
+     * @param  key String key of the value to patch
+     * @param  delta String spliced into the stored value
+     * @param  kvm patchreq with its range already set
+     * @throws KVException if the request was not successful in any way
+     */
+    private void sendPatch(String key, String delta, KVMessage kvm) throws KVException {
+        if (key == null || key.length() == 0)
+        	throw new KVException(KVConstants.ERROR_INVALID_KEY);
+        if (delta == null)
+        	throw new KVException(KVConstants.ERROR_INVALID_VALUE);
+        
+        kvm.setKey(key);
+        kvm.setValue(delta);
+        
+        KVMessage receive = sendRequest(kvm);
+        if (!KVConstants.SUCCESS.equals(receive.getMessage()))
+        	throw new KVException(receive.getMessage());
+    }
+
+    /**
+     * Issues a PUT request to the server without waiting for the response.
+     * Once this client pipelines requests, many can be in flight at once
+     * from a single thread; until then, the request completes before this
+     * returns. See KVFuture.
+     *
+     * @param  key String to put in server as key
+     * @param  value String to put in server as value
+     * @return null once the request has succeeded
+     */
+    public KVFuture<Void> putAsync(String key, String value) {
+        return putAsync(key , value , timeoutMillis);
+    }
+
+    /**
+     * Issues a PUT request to the server without waiting for the response,
+     * giving up on it after timeout.
+     *
+     * @param  key String to put in server as key
+     * @param  value String to put in server as value
+     * @param  timeout milliseconds to wait for the response
+     * @return null once the request has succeeded
+     */
+    public KVFuture<Void> putAsync(String key, String value, int timeout) {
+        if (key == null || key.length() == 0)
+        	return new KVFuture<Void>(null , new KVException(KVConstants.ERROR_INVALID_KEY));
+        if (value == null || value.length() == 0)
+        	return new KVFuture<Void>(null , new KVException(KVConstants.ERROR_INVALID_VALUE));
+        
+        KVMessage kvm = new KVMessage(KVConstants.PUT_REQ);
+        kvm.setKey(key);
+        kvm.setValue(value);
+        return expectSuccess(sendRequestAsync(kvm , timeout));
+    }
+
+    /**
+     * Issues a GET request to the server without waiting for the response.
+     *
+     * @param  key String to get value for in server
+     * @return the value associated with key
+     */
+    public KVFuture<String> getAsync(String key) {
+        return getAsync(key , timeoutMillis);
+    }
+
+    /**
+     * Issues a GET request to the server without waiting for the response,
+     * giving up on it after timeout.
+     *
+     * @param  key String to get value for in server
+     * @param  timeout milliseconds to wait for the response
+     * @return the value associated with key
+     */
+    public KVFuture<String> getAsync(String key, int timeout) {
+        if (key == null || key.length() == 0)
+        	return new KVFuture<String>(null , new KVException(KVConstants.ERROR_INVALID_KEY));
+        
+        String value = cached(key);
+        if (value != null)
+        	return new KVFuture<String>(value , null);
+        
+        KVMessage kvm = new KVMessage(KVConstants.GET_REQ);
+        kvm.setKey(key);
+        
+        final long writesBefore = writes.get();
+        final long sentAt = System.currentTimeMillis();
+        final KVFuture<KVMessage> sent = sendRequestAsync(kvm , timeout);
+        final KVFuture<String> result = new KVFuture<String>();
+        result.follow(sent);
+        sent.addCallback(new KVCallback<KVMessage>() {
+            @Override
+            public void completed(KVMessage receive) {
+                if (receive.getKey() == null || receive.getValue() == null)
+                	result.fail(new KVException(receive.getMessage()));
+                else {
+                	remember(receive , sentAt , writesBefore);
+                	result.complete(receive.getValue());
+                }
+            }
+
+            @Override
+            public void failed(KVException ex) {
+                result.fail(ex);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Issues a DEL request to the server without waiting for the response.
+     *
+     * @param  key String to delete value for in server
+     * @return null once the request has succeeded
+     */
+    public KVFuture<Void> delAsync(String key) {
+        return delAsync(key , timeoutMillis);
+    }
+
+    /**
+     * Issues a DEL request to the server without waiting for the response,
+     * giving up on it after timeout.
+     *
+     * @param  key String to delete value for in server
+     * @param  timeout milliseconds to wait for the response
+     * @return null once the request has succeeded
+     */
+    public KVFuture<Void> delAsync(String key, int timeout) {
+        if (key == null || key.length() == 0)
+        	return new KVFuture<Void>(null , new KVException(KVConstants.ERROR_INVALID_KEY));
+        
+        KVMessage kvm = new KVMessage(KVConstants.DEL_REQ);
+        kvm.setKey(key);
+        return expectSuccess(sendRequestAsync(kvm , timeout));
+    }
+
+    /**
+     * Gets many keys at once and waits for them. The keys not held in the
+     * near cache are sent in multigetreq batches of up to MAX_BATCH_SIZE
+     * keys, all batches in flight together; a master splits each batch by
+     * replica and asks the replicas in parallel. A server that does not
+     * take batches, or a client using XML, is sent a GET for each key
+     * instead, all at once.
+     *
+     * @param  keys Strings to get values for in server
+     * @return the value of each key found, and why each other key failed
+     */
+    public KVBatchResult<String> multiGet(Collection<String> keys) {
+        Map<String, KVFuture<String>> sent = new LinkedHashMap<String, KVFuture<String>>();
+        List<KVMessage> gets = new ArrayList<KVMessage>();
+        for (String key : keys) {
+        	if (sent.containsKey(key))
+        		continue;
+        	if (key == null || key.length() == 0) {
+        		sent.put(key , new KVFuture<String>(null , new KVException(KVConstants.ERROR_INVALID_KEY)));
+        		continue;
+        	}
+        	String value = cached(key);
+        	if (value != null) {
+        		sent.put(key , new KVFuture<String>(value , null));
+        		continue;
+        	}
+        	KVMessage get = new KVMessage(KVConstants.GET_REQ);
+        	get.setKey(key);
+        	gets.add(get);
+        	sent.put(key , new KVFuture<String>());
         }
-        catch (KVException ex) {
-        	throw ex;
+        
+        long writesBefore = writes.get();
+        long sentAt = System.currentTimeMillis();
+        List<KVFuture<KVMessage>> batches = new ArrayList<KVFuture<KVMessage>>();
+        for (int i = 0; i < gets.size(); i += KVConstants.MAX_BATCH_SIZE) {
+        	KVMessage batch = new KVMessage(KVConstants.MULTIGET_REQ);
+        	batch.setEntries(gets.subList(i , Math.min(gets.size() , i + KVConstants.MAX_BATCH_SIZE)));
+        	batches.add(endpoint.sendRequestAsync(batch , timeoutMillis));
         }
-        finally {
-        	if (sock != null)
-        		closeHost(sock);
+        for (int b = 0; b < batches.size(); b++) {
+        	List<KVMessage> batch = gets.subList(b * KVConstants.MAX_BATCH_SIZE ,
+        		Math.min(gets.size() , (b + 1) * KVConstants.MAX_BATCH_SIZE));
+        	KVException failure = null;
+        	List<KVMessage> answers = null;
+        	try {
+        		KVMessage receive = batches.get(b).await();
+        		answers = receive.getEntries();
+        		if (answers == null || answers.size() != batch.size())
+        			failure = new KVException(receive.getMessage());
+        	}
+        	catch (KVException ex) {
+        		failure = ex;
+        	}
+        	
+        	for (int i = 0; i < batch.size(); i++) {
+        		String key = batch.get(i).getKey();
+        		if (failure == null) {
+        			KVMessage answer = answers.get(i);
+        			if (answer.getKey() == null || answer.getValue() == null)
+        				sent.get(key).fail(new KVException(answer.getMessage()));
+        			else {
+        				remember(answer , sentAt , writesBefore);
+        				sent.get(key).complete(answer.getValue());
+        			}
+        		}
+        		else if (KVConstants.ERROR_INVALID_FORMAT.equals(failure.getKVMessage().getMessage())) {
+        			// the batch could not be sent or was not understood
+        			sent.put(key , getAsync(key));
+        		}
+        		else
+        			sent.get(key).fail(failure);
+        	}
+        }
+        return KVBatchResult.await(sent);
+    }
+
+    /**
+     * Issues a PUT request for each of many entries, all at once, and waits
+     * for them. Unlike multiGet(), writes are not batched: each PUT is a
+     * 2PC transaction of its own, which the master runs one at a time
+     * whichever replicas it goes to, so a batch could not be split by
+     * replica and run in parallel. Once this client pipelines requests,
+     * the PUTs are in flight together on one connection, which is all a
+     * batch would save. Some may succeed while others fail.
+     *
+     * @param  entries keys to put in server, with their values
+     * @return null for each key put, and why each other key failed
+     */
+    public KVBatchResult<Void> multiPut(Map<String, String> entries) {
+        Map<String, KVFuture<Void>> sent = new LinkedHashMap<String, KVFuture<Void>>();
+        for (Map.Entry<String, String> entry : entries.entrySet())
+        	sent.put(entry.getKey() , putAsync(entry.getKey() , entry.getValue()));
+        return KVBatchResult.await(sent);
+    }
+
+    /**
+     * Issues a DEL request for each of many keys, all at once, and waits
+     * for them. As with multiPut(), each DEL is a transaction of its own,
+     * so the DELs are not batched, and some may succeed while others fail.
+     *
+     * @param  keys Strings to delete values for in server
+     * @return null for each key deleted, and why each other key failed
+     */
+    public KVBatchResult<Void> multiDel(Collection<String> keys) {
+        Map<String, KVFuture<Void>> sent = new LinkedHashMap<String, KVFuture<Void>>();
+        for (String key : keys) {
+        	if (!sent.containsKey(key))
+        		sent.put(key , delAsync(key));
         }
+        return KVBatchResult.await(sent);
     }
 
+    /**
+     * Turns the response to come to a PUT or DEL into a future that fails
+     * unless the server answers with SUCCESS.
+     */
+    private KVFuture<Void> expectSuccess(KVFuture<KVMessage> sent) {
+        final KVFuture<Void> result = new KVFuture<Void>();
+        result.follow(sent);
+        sent.addCallback(new KVCallback<KVMessage>() {
+            @Override
+            public void completed(KVMessage receive) {
+                if (KVConstants.SUCCESS.equals(receive.getMessage()))
+                	result.complete(null);
+                else
+                	result.fail(new KVException(receive.getMessage()));
+            }
+
+            @Override
+            public void failed(KVException ex) {
+                result.fail(ex);
+            }
+        });
+        return result;
+    }
 
 }
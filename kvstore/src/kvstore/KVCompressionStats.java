@@ -0,0 +1,91 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals for compression of binary frames in this process, shared
+ * by every connection. Byte counts are of frame bodies; times are the time
+ * threads spent in Deflater and Inflater, which is close to their CPU cost.
+ */
+public class KVCompressionStats {
+
+    private final AtomicLong framesCompressed = new AtomicLong();
+    private final AtomicLong framesSentRaw = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong framesInflated = new AtomicLong();
+    private final AtomicLong inflateNanos = new AtomicLong();
+
+    void compressed(int rawBytes, int compressedBytes, long nanos) {
+        framesCompressed.incrementAndGet();
+        bytesBeforeCompression.addAndGet(rawBytes);
+        bytesAfterCompression.addAndGet(compressedBytes);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void sentRaw(long nanos) {
+        framesSentRaw.incrementAndGet();
+        compressNanos.addAndGet(nanos);
+    }
+
+    void inflated(long nanos) {
+        framesInflated.incrementAndGet();
+        inflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return number of frames sent compressed
+     */
+    public long getFramesCompressed() {
+        return framesCompressed.get();
+    }
+
+    /**
+     * @return number of frames that were deflated but sent as they were,
+     *         because compression did not make them smaller
+     */
+    public long getFramesSentRaw() {
+        return framesSentRaw.get();
+    }
+
+    /**
+     * @return number of compressed frames received and inflated
+     */
+    public long getFramesInflated() {
+        return framesInflated.get();
+    }
+
+    /**
+     * @return compressed size over original size of the frames sent
+     *         compressed, or 1 if none have been
+     */
+    public double getCompressionRatio() {
+        long before = bytesBeforeCompression.get();
+        return before == 0 ? 1.0 : (double) bytesAfterCompression.get() / before;
+    }
+
+    /**
+     * @return nanoseconds spent deflating, including frames that were then
+     *         sent as they were
+     */
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    /**
+     * @return nanoseconds spent inflating
+     */
+    public long getInflateNanos() {
+        return inflateNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed %d frames (ratio %.3f, %d sent raw) in %.1f ms, " +
+            "inflated %d frames in %.1f ms", getFramesCompressed(), getCompressionRatio(),
+            getFramesSentRaw(), getCompressNanos() / 1e6, getFramesInflated(),
+            getInflateNanos() / 1e6);
+    }
+
+}
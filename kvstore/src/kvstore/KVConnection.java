@@ -0,0 +1,565 @@
+package kvstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A socket that carries KVMessages in either the XML or the binary wire
+ * format.
+ *
+ * The format is negotiated through the first byte of each message: binary
+ * frames start with the magic bytes of KVBinaryCodec, which can never start
+ * an XML document. A receiving end therefore accepts both and answers in the
+ * format the request came in, so old XML-only clients keep working. A
+ * sending end that tries binary can tell that the peer only speaks XML when
+ * it answers in XML; see binaryRejected(). A peer that hangs up without
+ * answering may just be busy, so that only marks the connection closed.
+ *
+ * XML messages are delimited by shutting down output, so an XML connection
+ * carries a single request and response. Binary frames carry their own
+ * length, so a binary connection can stay open for further requests; the
+ * serving side uses waitForRequest() between requests. Large binary frames
+ * are compressed once the peer has shown it can inflate them; see
+ * setCompression().
+ */
+public class KVConnection implements Responder {
+
+    public static final int XML = 0;
+    public static final int BINARY = 1;
+
+    /* results of waitForRequest */
+    public static final int REQUEST_READY = 0;
+    public static final int REQUEST_YIELD = 1;
+    public static final int REQUEST_NONE = 2;
+
+    /* how long to block at a time while waiting for the next request */
+    private static final int POLL_MILLISECONDS = 10;
+
+    /* most unread input discarded before closing a connection */
+    private static final int DRAIN_LIMIT = 4096;
+
+    /* how long reject() waits for the request it answers */
+    private static final int REJECT_MILLISECONDS = 100;
+
+    /* threads that read and answer the requests of rejected connections,
+     * and how many rejected connections may wait for them */
+    private static final int REJECT_THREADS = 4;
+    private static final int REJECT_BACKLOG = 64;
+
+    /* shared by all servers, so turning a connection away never holds up
+     * the thread that accepts them */
+    private static final ThreadPoolExecutor rejecters;
+
+    static {
+        rejecters = new ThreadPoolExecutor(REJECT_THREADS, REJECT_THREADS, 1, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(REJECT_BACKLOG), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "KVConnection-reject");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        rejecters.allowCoreThreadTimeOut(true);
+    }
+
+    /* how long isHealthy() waits to see whether the peer has hung up */
+    private static final int PROBE_MILLISECONDS = 1;
+
+    private Socket sock;
+    private int format;
+    private boolean closeOutput;
+    private boolean sentBinary = false;
+    private boolean binaryRejected = false;
+    private boolean peerClosed = false;
+    private boolean outputClosed = false;
+    private boolean compression = true;
+    private volatile boolean peerInflates = false;
+    private boolean unframed = false;
+    private int maxKeySize = Integer.MAX_VALUE;
+    private int maxValueSize = Integer.MAX_VALUE;
+    private int received = 0;
+    private int pending = -1;
+    private long lastActive;
+    private byte[] header = new byte[KVBinaryCodec.HEADER_SIZE];
+
+    /**
+     * Construct a KVConnection for a socket accepted by a server. Responses
+     * are sent in whichever format the last request arrived in, and binary
+     * responses leave the connection open for the next request.
+     *
+     * @param sock Socket connected to the other endpoint
+     */
+    public KVConnection(Socket sock) {
+        this(sock, XML);
+        this.closeOutput = false;
+    }
+
+    /**
+     * Construct a KVConnection that sends in the given format. Output is
+     * shut down after each message until setCloseOutput(false) is called,
+     * so a server that does not know the binary format still sees the end
+     * of the request.
+     *
+     * @param sock Socket connected to the other endpoint
+     * @param format XML or BINARY
+     */
+    public KVConnection(Socket sock, int format) {
+        this.sock = sock;
+        this.format = format;
+        this.closeOutput = true;
+        this.lastActive = System.currentTimeMillis();
+        try {
+            // frames may go out in several writes; send each one right away
+            sock.setTcpNoDelay(true);
+        } catch (SocketException ex) {
+        }
+    }
+
+    public Socket getSocket() {
+        return sock;
+    }
+
+    /**
+     * Get the format messages are currently sent in.
+     *
+     * @return XML or BINARY
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Set whether output is shut down after sending a binary message. XML
+     * messages always shut down output, since that is how they end.
+     *
+     * @param closeOutput false to keep the connection open for more messages
+     */
+    public void setCloseOutput(boolean closeOutput) {
+        this.closeOutput = closeOutput;
+    }
+
+    /**
+     * Set whether binary messages on this connection may be compressed. With
+     * compression on, which is the default, every binary frame sent tells
+     * the peer it may compress, and frames to a peer that has said the same
+     * are compressed when large enough. With it off, neither happens.
+     *
+     * @param compression false to send and ask for uncompressed frames only
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Set the longest key and value accepted in received messages. A
+     * message that crosses a limit is rejected while it is being read, with
+     * ERROR_OVERSIZED_KEY or ERROR_OVERSIZED_VALUE, before the rest of it is
+     * read into memory. The connection can still send a response, but is
+     * closed after that since the rest of the message was never read.
+     *
+     * @param maxKeySize most characters allowed in a key
+     * @param maxValueSize most characters allowed in a value
+     */
+    public void setSizeLimits(int maxKeySize, int maxValueSize) {
+        this.maxKeySize = maxKeySize;
+        this.maxValueSize = maxValueSize;
+    }
+
+    /**
+     * Check whether more messages can be exchanged on this connection.
+     *
+     * @return true if both ends are still open and messages are framed
+     */
+    public boolean isPersistent() {
+        return format == BINARY && !outputClosed && !peerClosed && !unframed &&
+            !sock.isClosed();
+    }
+
+    /**
+     * Check whether the other end closed or reset the connection before a
+     * message began. On a reused connection this means the peer timed it
+     * out, and a request that hit this may be retried on a new connection.
+     *
+     * @return true if the peer hung up between messages
+     */
+    public boolean isPeerClosed() {
+        return peerClosed;
+    }
+
+    /**
+     * Check that an idle connection kept by a client can still carry a
+     * request: it is persistent, nothing unasked for has arrived on it, and
+     * the server has not hung up. Blocks for up to PROBE_MILLISECONDS, and
+     * must not be called while a request is in flight on the connection.
+     *
+     * @return true if the connection may be reused
+     */
+    public boolean isHealthy() {
+        if (!isPersistent())
+            return false;
+        try {
+            InputStream in = sock.getInputStream();
+            if (in.available() > 0)
+                return false;
+            sock.setSoTimeout(PROBE_MILLISECONDS);
+            if (in.read() < 0)
+                peerClosed = true;
+            // any byte read is unasked for, and now lost
+            return false;
+        } catch (SocketTimeoutException ex) {
+            return true;
+        } catch (IOException ex) {
+            peerClosed = true;
+            return false;
+        }
+    }
+
+    /**
+     * Get the time a message was last sent or received on this connection.
+     *
+     * @return time in milliseconds, as from System.currentTimeMillis()
+     */
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    /**
+     * Wait for the next request on a server-side connection. The first
+     * request is always ready to be read with receive(). After that, only
+     * a persistent connection can carry more requests; this blocks in short
+     * slices until one starts to arrive, the connection has been idle for
+     * IDLE_TIMEOUT_MILLISECONDS, or the peer hangs up. If other jobs are
+     * waiting in the pool, the caller is asked to yield its thread to them
+     * and call again later; once the pool is shut down, an idle connection
+     * is given up.
+     *
+     * @param  pool ThreadPool the caller runs in, or null if it need not yield
+     * @return REQUEST_READY if a request can be received, REQUEST_YIELD if
+     *         the caller should requeue and try again, or REQUEST_NONE if the
+     *         connection should be closed
+     */
+    public int waitForRequest(ThreadPool pool) {
+        return waitForRequest(pool, false);
+    }
+
+    /**
+     * Wait for the next request on a server-side connection, as above. If
+     * yieldAtOnce is set and no request has arrived yet, the caller is asked
+     * to yield right away rather than after a slice of waiting. A reader that
+     * has just queued pipelined requests passes true so they start without
+     * delay in a small pool.
+     *
+     * @param  pool ThreadPool the caller runs in, or null if it need not yield
+     * @param  yieldAtOnce true to yield without waiting if jobs are queued
+     * @return REQUEST_READY, REQUEST_YIELD or REQUEST_NONE
+     */
+    public int waitForRequest(ThreadPool pool, boolean yieldAtOnce) {
+        if (received == 0 || pending >= 0)
+            return REQUEST_READY;
+        if (!isPersistent())
+            return REQUEST_NONE;
+
+        if (yieldAtOnce && pool != null && pool.getQueueSize() > 0) {
+            try {
+                if (sock.getInputStream().available() == 0)
+                    return REQUEST_YIELD;
+            } catch (IOException ex) {
+                peerClosed = true;
+                return REQUEST_NONE;
+            }
+        }
+
+        for (;;) {
+            long left = lastActive + KVConstants.IDLE_TIMEOUT_MILLISECONDS -
+                System.currentTimeMillis();
+            if (left <= 0)
+                return REQUEST_NONE;
+            try {
+                sock.setSoTimeout((int) Math.min(left, POLL_MILLISECONDS));
+                pending = sock.getInputStream().read();
+                if (pending < 0) {
+                    peerClosed = true;
+                    return REQUEST_NONE;
+                }
+                return REQUEST_READY;
+            } catch (SocketTimeoutException ex) {
+                if (pool != null && pool.isShutdown())
+                    return REQUEST_NONE;
+                if (pool != null && pool.getQueueSize() > 0)
+                    return REQUEST_YIELD;
+            } catch (IOException ex) {
+                peerClosed = true;
+                return REQUEST_NONE;
+            }
+        }
+    }
+
+    /**
+     * Hand a server-side connection on once a request has been answered or
+     * waitForRequest() asked to yield: a connection that can carry more
+     * requests is queued again as job, to wait for its next request, and
+     * any other connection is closed.
+     *
+     * @param pool ThreadPool to queue job in
+     * @param job Runnable that serves the next request on this connection
+     */
+    public void requeue(ThreadPool pool, Runnable job) {
+        if (!isPersistent()) {
+            drainAndClose();
+            return;
+        }
+        try {
+            pool.addJob(job);
+        } catch (InterruptedException ex) {
+            close();
+        } catch (RejectedExecutionException ex) {
+            close();
+        }
+    }
+
+    /**
+     * Turn a server-side connection away without serving it, such as when
+     * the server has too much work queued. The next request is read, if it
+     * arrives within REJECT_MILLISECONDS, and answered with error in its
+     * format; then the connection is closed. That happens on a thread of
+     * its own, so this returns at once; if too many rejected connections
+     * are waiting for one already, the connection is just closed. An idle
+     * persistent connection is also just closed, as after the idle timeout.
+     *
+     * @param error message to answer the request with
+     */
+    public void reject(final String error) {
+        try {
+            if (received > 0 && pending < 0 && sock.getInputStream().available() == 0) {
+                close();
+                return;
+            }
+        } catch (IOException ex) {
+            close();
+            return;
+        }
+        try {
+            rejecters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    answerAndClose(error);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            close();
+        }
+    }
+
+    /**
+     * Read the next request and answer it with error; see reject().
+     */
+    private void answerAndClose(String error) {
+        int id = 0;
+        try {
+            id = receive(REJECT_MILLISECONDS).getId();
+        } catch (KVException ex) {
+            if (sock.isClosed() || KVConstants.ERROR_COULD_NOT_RECEIVE_DATA.equals(
+                ex.getKVMessage().getMessage())) {
+                // nothing to answer, or not in time
+                close();
+                return;
+            }
+            id = ex.getKVMessage().getId();
+        }
+        KVMessage resp = new KVMessage(KVConstants.RESP, error);
+        resp.setId(id);
+        try {
+            send(resp);
+        } catch (KVException ex) {
+        }
+        drainAndClose();
+    }
+
+    /**
+     * Check whether a binary request was answered in a way that shows the
+     * peer does not understand the binary format. The caller should then
+     * resend the request as XML on a new connection.
+     *
+     * @return true if a binary message was sent and the peer answered in XML
+     */
+    public boolean binaryRejected() {
+        return binaryRejected;
+    }
+
+    /**
+     * Receive a message with the default timeout.
+     *
+     * @return the message received
+     * @throws KVException if we fail to receive a valid KVMessage. Please
+     *         see KVConstants.java for possible KVException messages.
+     */
+    public KVMessage receive() throws KVException {
+        return receive(KVConstants.TIMEOUT_MILLISECONDS);
+    }
+
+    /**
+     * Receive a message in either format within a certain timeout, or with
+     * an unlimited timeout if the provided argument is 0.
+     *
+     * @param  timeout total allowable receipt time, in milliseconds
+     * @return the message received
+     * @throws KVException if we fail to receive a valid KVMessage. Please
+     *         see KVConstants.java for possible KVException messages.
+     */
+    public KVMessage receive(int timeout) throws KVException {
+        try {
+            sock.setSoTimeout(timeout);
+        } catch (SocketException ex) {
+            throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+        }
+
+        InputStream in;
+        int first = pending;
+        pending = -1;
+        try {
+            in = sock.getInputStream();
+            if (first < 0)
+                first = in.read();
+        } catch (SocketTimeoutException ex) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        } catch (IOException ex) {
+            peerClosed = true;
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+        if (first < 0) {
+            peerClosed = true;
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+
+        KVMessage kvm;
+        if (first == KVBinaryCodec.MAGIC_0) {
+            int length;
+            try {
+                header[0] = (byte) first;
+                KVBinaryCodec.readFully(in, header, 1, header.length - 1);
+            } catch (IOException ex) {
+                close();
+                throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+            }
+            if (header[1] != KVBinaryCodec.MAGIC_1 ||
+                header[2] != KVBinaryCodec.FORMAT_BINARY) {
+                // the rest of the stream cannot be framed any more
+                close();
+                throw new KVException(KVConstants.ERROR_PARSER);
+            }
+            length = ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16) |
+                ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+            format = BINARY;
+            peerInflates = (header[3] & KVBinaryCodec.FLAG_INFLATES) != 0;
+            try {
+                kvm = KVBinaryCodec.get().decode(in, length, header[3], maxKeySize,
+                    maxValueSize);
+            } catch (KVException ex) {
+                String msg = ex.getKVMessage().getMessage();
+                if (KVConstants.ERROR_INVALID_FORMAT.equals(msg) ||
+                    KVConstants.ERROR_OVERSIZED_KEY.equals(msg) ||
+                    KVConstants.ERROR_OVERSIZED_VALUE.equals(msg)) {
+                    // the error can still be answered, but the rest of the
+                    // frame was not read, so nothing can follow it
+                    unframed = true;
+                } else {
+                    close();
+                }
+                throw ex;
+            }
+        } else {
+            if (sentBinary)
+                binaryRejected = true;
+            kvm = KVXMLCodec.get().decode(in, first, maxKeySize, maxValueSize);
+            format = XML;
+        }
+        received++;
+        lastActive = System.currentTimeMillis();
+        try {
+            kvm.checkFields();
+        } catch (KVException ex) {
+            // let the error response find its way back to the request
+            ex.getKVMessage().setId(kvm.getId());
+            throw ex;
+        }
+        return kvm;
+    }
+
+    /**
+     * Send a message in this connection's format. XML messages, and binary
+     * ones unless setCloseOutput(false) was called, are followed by shutting
+     * down output so the receiving end knows the message is complete.
+     * Safe to call from several threads at once, which is how pipelined
+     * requests are answered.
+     *
+     * @param  kvm KVMessage to send
+     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    @Override
+    public synchronized void send(KVMessage kvm) throws KVException {
+        lastActive = System.currentTimeMillis();
+        if (format == XML) {
+            outputClosed = true;
+            kvm.sendMessage(sock);
+            return;
+        }
+        kvm.checkFields();
+        try {
+            KVBinaryCodec.get().encode(kvm, sock.getOutputStream(), compression,
+                compression && peerInflates);
+            sentBinary = true;
+            if (closeOutput) {
+                outputClosed = true;
+                sock.shutdownOutput();
+            }
+        } catch (IOException ex) {
+            peerClosed = true;
+            throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    /**
+     * Read whatever the peer sent after its last message, such as the end
+     * of an XML document, before closing. Closing with unread input resets
+     * the connection, which can destroy a response the peer has not read
+     * yet. Stops after DRAIN_LIMIT bytes or once the peer goes quiet.
+     */
+    private void drainAndClose() {
+        try {
+            // let the peer see the end of our last response before any reset
+            if (!outputClosed)
+                sock.shutdownOutput();
+            sock.setSoTimeout(POLL_MILLISECONDS);
+            InputStream in = sock.getInputStream();
+            byte[] skip = new byte[256];
+            int total = 0;
+            int n;
+            while (total < DRAIN_LIMIT && (n = in.read(skip)) >= 0)
+                total += n;
+        } catch (IOException ex) {
+        }
+        close();
+    }
+
+    /**
+     * Closes the socket.
+     * Best effort, ignores error since the response has already been sent or
+     * received.
+     */
+    public void close() {
+        try {
+            sock.close();
+        } catch (Exception ex) {
+        }
+    }
+}
@@ -5,6 +5,7 @@ public class KVConstants {
     public static final String GET_REQ  = "getreq";
     public static final String PUT_REQ  = "putreq";
     public static final String DEL_REQ  = "delreq";
+    public static final String PATCH_REQ = "patchreq";
     public static final String RESP     = "resp";
     public static final String REGISTER = "register";
     public static final String READY    = "ready";
@@ -15,9 +16,24 @@ public class KVConstants {
     public static final String COMMIT   = "commit";
     public static final String ACK      = "ack";
 
+    // asks a master for its ring of slaves; see TPCMaster.getTopology()
+    public static final String TOPOLOGY = "topology";
+
+    // GETs many keys at once; see KVMessage.setEntries()
+    public static final String MULTIGET_REQ = "multigetreq";
+
+    // Most GETs one multigetreq may carry
+    public static final int MAX_BATCH_SIZE = 64;
+
+    // Lease sent with a value that must not be cached; see KVMessage.setLease()
+    public static final int LEASE_REFUSED = -1;
+
     // Timeout value used during 2PC operations
     public static final int TIMEOUT_MILLISECONDS = 2000;
 
+    // Time an open connection may sit between requests before it is closed
+    public static final int IDLE_TIMEOUT_MILLISECONDS = 10000;
+
     /**
      * Error message used if an IOException arises while parsing the
      * InputStream of a socket during deserialization of a KVMessage.
@@ -94,6 +110,20 @@ public class KVConstants {
     public static final String ERROR_OVERSIZED_VALUE =
         "Data Error: Oversized value";
 
+    /**
+     * Error message used if a PATCH request names a range that does not lie
+     * within the current value, or has a negative length.
+     */
+    public static final String ERROR_INVALID_RANGE =
+        "Data Error: Patch range out of bounds";
+
+    /**
+     * Error message used if a server turns a request away because it has
+     * more work queued than it is allowed to hold.
+     */
+    public static final String ERROR_SERVER_BUSY =
+        "Network Error: Server busy";
+
     /**
      * Error message used if a request is made with a key that is null or an
      * empty string.
@@ -0,0 +1,625 @@
+package kvstore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The sending side of requests to one server. Keeps the wire format the
+ * server has been found to speak and a few open connections to it.
+ *
+ * The first request goes out in the binary format on a connection that is
+ * half-closed after the request, so a server that only speaks XML still sees
+ * where the request ends. Once the server answers in binary, connections are
+ * left open after each response and reused for later requests, up to
+ * MAX_IDLE_CONNECTIONS at a time. If the server answers in XML or hangs up
+ * instead, requests are sent as one-shot XML from then on.
+ *
+ * With pipelining on, requests after the first share a single connection
+ * and do not wait for each other; see KVPipeline.
+ *
+ * Without pipelining, setConnectionPool() turns the idle connections into a
+ * managed pool: the connections open at once are capped, a few are kept
+ * ready ahead of demand, and a background thread closes those idle for too
+ * long and checks the rest are still usable, so that a request rarely
+ * meets a connection the server has already closed.
+ */
+public class KVEndpoint {
+
+    /* most idle connections kept open to one server */
+    public static final int MAX_IDLE_CONNECTIONS = 8;
+
+    /* how often a pool closes, checks and opens idle connections */
+    public static final int MAINTENANCE_MILLISECONDS = 1000;
+
+    private String hostname;
+    private int port;
+    private int wireFormat = KVConnection.BINARY;
+    private boolean binaryConfirmed = false;
+    private LinkedList<KVConnection> idle = new LinkedList<KVConnection>();
+    private boolean pipelined = false;
+    private boolean compression = false;
+    private KVPipeline pipeline;
+    private Set<KVConnection> live = new HashSet<KVConnection>();
+    private int connecting = 0;
+    private int minConnections = 0;
+    private int maxConnections = 0;
+    private int idleTimeout = 0;
+    private Thread maintenance;
+    private long opened = 0;
+    private long evicted = 0;
+    private long unhealthy = 0;
+
+    /**
+     * Construct an endpoint for a server.
+     *
+     * @param hostname host the server runs on
+     * @param port port the server listens on
+     */
+    public KVEndpoint(String hostname, int port) {
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    /**
+     * Set the wire format used for requests. The default is BINARY, which
+     * switches to XML by itself if the server turns out to only speak XML.
+     *
+     * @param format KVConnection.XML or KVConnection.BINARY
+     */
+    public synchronized void setWireFormat(int format) {
+        this.wireFormat = format;
+        closeIdle();
+    }
+
+    /**
+     * Set whether requests share one pipelined connection once the server
+     * is known to speak the binary format, instead of each taking a
+     * connection of its own. Pipelining suits servers that answer requests
+     * in parallel; requests to a server that handles one request per
+     * connection at a time are better spread over several connections.
+     *
+     * @param pipelined true to pipeline requests
+     */
+    public synchronized void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        if (!pipelined)
+            closePipeline();
+    }
+
+    /**
+     * Set whether large binary messages to and from the server may be
+     * compressed, if the server supports it; see
+     * KVConnection.setCompression(). Compression is off by default, since
+     * deflating costs more than it saves on a fast network.
+     *
+     * @param compression true to compress large messages
+     */
+    public synchronized void setCompression(boolean compression) {
+        this.compression = compression;
+        closeIdle();
+    }
+
+    /**
+     * Manage the connections used without pipelining as a pool. At most
+     * maxConnections are open at once; a request that finds them all busy
+     * waits for one to be released, up to its timeout, and then fails with
+     * ERROR_SOCKET_TIMEOUT. Once the server is known to speak the binary
+     * format, minConnections are kept open ready for requests. Every
+     * MAINTENANCE_MILLISECONDS, idle connections beyond minConnections that
+     * have not been used for idleTimeout are closed, and the others are
+     * checked with KVConnection.isHealthy(). Connections idle for half of
+     * the server's IDLE_TIMEOUT_MILLISECONDS are always replaced, since the
+     * server may be about to close them.
+     *
+     * @param minConnections connections kept open while idle
+     * @param maxConnections most connections open at once, or 0 for no limit
+     * @param idleTimeout milliseconds a connection beyond minConnections may
+     *        sit idle
+     */
+    public synchronized void setConnectionPool(int minConnections, int maxConnections,
+            int idleTimeout) {
+        if (maxConnections > 0 && minConnections > maxConnections)
+            throw new IllegalArgumentException("minConnections above maxConnections");
+        this.minConnections = minConnections;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        if (maintenance == null) {
+            maintenance = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    maintain();
+                }
+            }, "KVEndpoint-pool-" + port);
+            maintenance.setDaemon(true);
+            maintenance.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Get the number of connections open without pipelining, idle or in
+     * use.
+     *
+     * @return connections open to the server
+     */
+    public synchronized int getOpenConnections() {
+        return live.size();
+    }
+
+    /**
+     * Get the number of idle connections ready for a request.
+     *
+     * @return idle connections
+     */
+    public synchronized int getIdleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * Get the number of connections opened without pipelining, to see how
+     * well they are being reused.
+     *
+     * @return connections opened since the endpoint was created
+     */
+    public synchronized long getOpenedCount() {
+        return opened;
+    }
+
+    /**
+     * Get the number of idle connections closed for sitting idle too long.
+     *
+     * @return connections evicted by the pool
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * Get the number of idle connections closed because the server had
+     * hung up on them or sent something unasked for.
+     *
+     * @return connections that failed a health check
+     */
+    public synchronized long getUnhealthyCount() {
+        return unhealthy;
+    }
+
+    /**
+     * Create a socket connected to the server.
+     *
+     * @param  timeout connect and read timeout, in milliseconds
+     * @return Socket connected to the server
+     * @throws KVException ERROR_SOCKET_TIMEOUT, ERROR_COULD_NOT_CREATE_SOCKET,
+     *         or ERROR_COULD_NOT_CONNECT
+     */
+    protected Socket connect(int timeout) throws KVException {
+        Socket sock = null;
+        try {
+            sock = new Socket();
+            sock.setSoTimeout(timeout);
+            sock.connect(new InetSocketAddress(hostname, port), timeout);
+        } catch (SocketTimeoutException ex) {
+            throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+        } catch (IOException ex) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_CONNECT);
+        } catch (Exception ex) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_CREATE_SOCKET);
+        }
+        return sock;
+    }
+
+    /**
+     * Send a request and wait for the response, on the pipelined connection
+     * if pipelining is on, or else on an idle connection if there is one. If
+     * the server closes the connection before it answers, the request is
+     * sent again on a new connection, unless it was written and is not
+     * idempotent: the server may have carried it out before closing, so it
+     * fails with ERROR_COULD_NOT_RECEIVE_DATA instead. A new connection is
+     * tried only once; a busy server hangs up on requests it turns away.
+     * If the server answers a binary request in XML, the request is resent
+     * as XML and XML is used from then on.
+     *
+     * @param  req KVMessage to send
+     * @param  timeout connect and receive timeout, in milliseconds
+     * @return the response from the server
+     * @throws KVException if the request could not be sent or answered
+     */
+    public KVMessage sendRequest(KVMessage req, int timeout) throws KVException {
+        if (wantPipeline()) {
+            boolean retried = false;
+            for (;;) {
+                KVPipeline pipe = takePipeline();
+                boolean fresh = (pipe == null);
+                if (fresh)
+                    pipe = openPipeline(timeout);
+                KVMessage resp = pipe.call(req, timeout);
+                if (resp != null)
+                    return resp;
+                // closed before answering; retry once on a new connection
+                if (fresh || retried)
+                    throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+                retried = true;
+            }
+        }
+
+        boolean retried = false;
+        for (;;) {
+            KVConnection conn = borrow(timeout);
+            boolean reused = (conn != null);
+            if (!reused)
+                conn = open(timeout);
+            int format = conn.getFormat();
+            boolean written = false;
+
+            try {
+                conn.send(req);
+                written = true;
+                KVMessage resp = conn.receive(timeout);
+                if (!conn.binaryRejected()) {
+                    if (conn.getFormat() == KVConnection.BINARY) {
+                        synchronized (this) {
+                            binaryConfirmed = true;
+                        }
+                    }
+                    release(conn);
+                    return resp;
+                }
+            } catch (KVException ex) {
+                discard(conn);
+                if (conn.isPeerClosed()) {
+                    if ((!written || req.isIdempotent()) && (reused || !retried)) {
+                        retried |= !reused;
+                        continue;
+                    }
+                    throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+                }
+                if (!conn.binaryRejected())
+                    throw ex;
+            }
+            discard(conn);
+            synchronized (this) {
+                if (format == wireFormat) {
+                    wireFormat = KVConnection.XML;
+                    binaryConfirmed = false;
+                    closeIdle();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a request without waiting for the response. Only pipelined
+     * requests are asynchronous: until the server has answered in the
+     * binary format, and whenever pipelining is off, the request is made
+     * as by sendRequest() before this returns. A request whose connection
+     * the server closes before answering is sent again once on a new one,
+     * if that is safe; see sendRequest().
+     *
+     * @param  req KVMessage to send
+     * @param  timeout connect and receive timeout, in milliseconds
+     * @return the response to come
+     */
+    public KVFuture<KVMessage> sendRequestAsync(KVMessage req, int timeout) {
+        if (!wantPipeline()) {
+            try {
+                return new KVFuture<KVMessage>(sendRequest(req, timeout), null);
+            } catch (KVException ex) {
+                return new KVFuture<KVMessage>(null, ex);
+            }
+        }
+        KVFuture<KVMessage> result = new KVFuture<KVMessage>();
+        sendPipelined(req, timeout, result, false);
+        return result;
+    }
+
+    /**
+     * Send a request on the pipelined connection, opening one if needed,
+     * and complete result with its response.
+     */
+    private void sendPipelined(final KVMessage req, final int timeout,
+            final KVFuture<KVMessage> result, boolean retried) {
+        KVPipeline pipe = takePipeline();
+        boolean fresh = (pipe == null);
+        if (fresh) {
+            try {
+                pipe = openPipeline(timeout);
+            } catch (KVException ex) {
+                result.fail(ex);
+                return;
+            }
+        }
+        final boolean last = fresh || retried;
+        KVFuture<KVMessage> sent = pipe.callAsync(req, timeout);
+        result.follow(sent);
+        sent.addCallback(new KVCallback<KVMessage>() {
+            @Override
+            public void completed(KVMessage resp) {
+                if (resp != null)
+                    result.complete(resp);
+                else if (last)
+                    result.fail(new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA));
+                else if (!result.isCancelled())
+                    // closed before answering; retry once on a new connection
+                    sendPipelined(req, timeout, result, true);
+            }
+
+            @Override
+            public void failed(KVException ex) {
+                result.fail(ex);
+            }
+        });
+    }
+
+    /**
+     * Close all idle connections to the server, and the pipelined one.
+     */
+    public synchronized void closeIdle() {
+        for (KVConnection conn : idle)
+            discard(conn);
+        idle.clear();
+        closePipeline();
+    }
+
+    /**
+     * Close all idle connections, as closeIdle() does, and stop the thread
+     * that looks after a pool of them.
+     */
+    public synchronized void close() {
+        closeIdle();
+        if (maintenance != null) {
+            maintenance.interrupt();
+            maintenance = null;
+        }
+    }
+
+    private void closePipeline() {
+        if (pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+    }
+
+    /**
+     * Get the open pipelined connection, or null if a new one is needed
+     * because there is none, it has closed, or it has sat idle long enough
+     * that the server may be about to close it.
+     */
+    private synchronized KVPipeline takePipeline() {
+        if (pipeline != null) {
+            long cutoff = System.currentTimeMillis() - KVConstants.IDLE_TIMEOUT_MILLISECONDS / 2;
+            if (pipeline.isOpen() && pipeline.getLastActive() >= cutoff)
+                return pipeline;
+            closePipeline();
+        }
+        return null;
+    }
+
+    /**
+     * Check whether requests should be pipelined: pipelining is on and the
+     * server has answered in the binary format.
+     */
+    private synchronized boolean wantPipeline() {
+        return pipelined && binaryConfirmed && wireFormat == KVConnection.BINARY;
+    }
+
+    /**
+     * Open a new pipelined connection, unless another thread has just done
+     * so, in which case that one is shared.
+     */
+    private synchronized KVPipeline openPipeline(int timeout) throws KVException {
+        if (pipeline == null || !pipeline.isOpen()) {
+            KVConnection conn = new KVConnection(connect(timeout), KVConnection.BINARY);
+            conn.setCompression(compression);
+            pipeline = new KVPipeline(conn);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Take the most recently used idle connection, closing any that have
+     * been idle long enough that the server may be about to close them.
+     */
+    private synchronized KVConnection takeIdle() {
+        long cutoff = System.currentTimeMillis() - KVConstants.IDLE_TIMEOUT_MILLISECONDS / 2;
+        while (!idle.isEmpty()) {
+            KVConnection conn = idle.removeFirst();
+            if (conn.getLastActive() >= cutoff)
+                return conn;
+            discard(conn);
+        }
+        return null;
+    }
+
+    /**
+     * Take an idle connection, or else make room to open a new one. When
+     * maxConnections are open, waits up to timeout for one to be released.
+     *
+     * @return an idle connection, or null if the caller is to open one
+     * @throws KVException ERROR_SOCKET_TIMEOUT if none could be had in time
+     */
+    private synchronized KVConnection borrow(int timeout) throws KVException {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (;;) {
+            KVConnection conn = takeIdle();
+            if (conn != null)
+                return conn;
+            if (maxConnections <= 0 || live.size() + connecting < maxConnections) {
+                connecting++;
+                return null;
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+            try {
+                wait(left);
+            } catch (InterruptedException ex) {
+                throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+            }
+        }
+    }
+
+    /**
+     * Open a new connection in the room borrow() made for it.
+     *
+     * @param timeout connect timeout, in milliseconds
+     * @return the new connection, counted as open
+     * @throws KVException if the server could not be reached
+     */
+    private KVConnection open(int timeout) throws KVException {
+        int format;
+        boolean persistent;
+        boolean compress;
+        synchronized (this) {
+            format = wireFormat;
+            persistent = binaryConfirmed;
+            compress = compression;
+        }
+        Socket sock = null;
+        try {
+            sock = connect(timeout);
+        } finally {
+            synchronized (this) {
+                connecting--;
+                if (sock == null)
+                    notifyAll();
+            }
+        }
+        KVConnection conn = new KVConnection(sock, format);
+        conn.setCloseOutput(!persistent);
+        conn.setCompression(compress);
+        synchronized (this) {
+            live.add(conn);
+            opened++;
+        }
+        return conn;
+    }
+
+    /**
+     * Close a connection and stop counting it as open, letting a request
+     * waiting for room open another.
+     */
+    private synchronized void discard(KVConnection conn) {
+        conn.close();
+        if (live.remove(conn))
+            notifyAll();
+    }
+
+    /**
+     * Keep a connection for reuse if it can carry more requests and there
+     * is room, otherwise close it.
+     */
+    private synchronized void release(KVConnection conn) {
+        int room = maxConnections > 0 ? maxConnections : MAX_IDLE_CONNECTIONS;
+        if (conn.isPersistent() && conn.getFormat() == wireFormat &&
+            idle.size() < room) {
+            idle.addFirst(conn);
+            notifyAll();
+        } else {
+            discard(conn);
+        }
+    }
+
+    /**
+     * Look after a pool's idle connections until close() is called.
+     */
+    private void maintain() {
+        for (;;) {
+            try {
+                Thread.sleep(MAINTENANCE_MILLISECONDS);
+            } catch (InterruptedException ex) {
+            }
+            synchronized (this) {
+                if (maintenance != Thread.currentThread())
+                    return;
+            }
+            evictIdle();
+            checkIdle();
+            fillIdle();
+        }
+    }
+
+    /**
+     * Close the least recently used idle connections that are past the
+     * pool's idle timeout, or past the point where the server may close
+     * them, keeping minConnections of those still within the latter.
+     */
+    private synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        long stale = now - KVConstants.IDLE_TIMEOUT_MILLISECONDS / 2;
+        long unused = now - idleTimeout;
+        for (int i = idle.size() - 1; i >= 0; i--) {
+            KVConnection conn = idle.get(i);
+            long last = conn.getLastActive();
+            if (last < stale || (idle.size() > minConnections && last < unused)) {
+                idle.remove(i);
+                discard(conn);
+                evicted++;
+            }
+        }
+    }
+
+    /**
+     * Check each idle connection in turn, taking it out of the pool while
+     * it is probed so no request can use it meanwhile.
+     */
+    private void checkIdle() {
+        List<KVConnection> check;
+        synchronized (this) {
+            check = new ArrayList<KVConnection>(idle);
+        }
+        for (KVConnection conn : check) {
+            synchronized (this) {
+                if (!idle.remove(conn))
+                    continue;
+            }
+            boolean healthy = conn.isHealthy();
+            synchronized (this) {
+                if (healthy && maintenance != null) {
+                    idle.addLast(conn);
+                    notifyAll();
+                } else {
+                    discard(conn);
+                    if (!healthy)
+                        unhealthy++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Open connections until minConnections are open, once the server is
+     * known to keep binary connections open between requests.
+     */
+    private void fillIdle() {
+        for (;;) {
+            synchronized (this) {
+                if (maintenance == null || !binaryConfirmed || wireFormat != KVConnection.BINARY ||
+                    live.size() + connecting >= minConnections)
+                    return;
+                connecting++;
+            }
+            KVConnection conn;
+            try {
+                conn = open(KVConstants.TIMEOUT_MILLISECONDS);
+            } catch (KVException ex) {
+                return;
+            }
+            synchronized (this) {
+                // close() may have run while the connection was opening
+                if (maintenance != Thread.currentThread()) {
+                    discard(conn);
+                    return;
+                }
+                release(conn);
+            }
+        }
+    }
+
+}
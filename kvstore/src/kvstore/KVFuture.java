@@ -0,0 +1,226 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous request, to be waited for or handed to
+ * callbacks once it arrives.
+ *
+ * A request fails with the KVException a synchronous call would have
+ * thrown; get() wraps it in an ExecutionException, while await() throws it
+ * as is. Cancelling a request that has been sent does not stop the server
+ * from carrying it out: only its response is ignored.
+ *
+ * @param <T> type of the request's result
+ */
+public class KVFuture<T> implements Future<T> {
+
+    private T result;
+    private KVException failure;
+    private boolean done = false;
+    private boolean cancelled = false;
+    private List<KVCallback<T>> callbacks = new ArrayList<KVCallback<T>>();
+    private Runnable canceller;
+
+    /**
+     * Construct a future that is not done yet.
+     */
+    KVFuture() {
+    }
+
+    /**
+     * Construct a future that is done already.
+     *
+     * @param result result of the request
+     * @param failure why the request failed, or null if it succeeded
+     */
+    KVFuture(T result, KVException failure) {
+        this.result = result;
+        this.failure = failure;
+        this.done = true;
+    }
+
+    /**
+     * Add code to run when the request finishes. A callback added after
+     * that runs at once, on the calling thread. Callbacks are not run for a
+     * cancelled request.
+     *
+     * @param callback code to run with the result or the failure
+     */
+    public void addCallback(KVCallback<T> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        if (cancelled)
+            return;
+        if (failure != null)
+            callback.failed(failure);
+        else
+            callback.completed(result);
+    }
+
+    /**
+     * Wait for the result of the request.
+     *
+     * @return what the request returned
+     * @throws KVException why the request failed, or ERROR_COULD_NOT_RECEIVE_DATA
+     *         if it was cancelled or the wait was interrupted
+     */
+    public T await() throws KVException {
+        try {
+            return get();
+        } catch (ExecutionException ex) {
+            throw (KVException) ex.getCause();
+        } catch (CancellationException ex) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        } catch (InterruptedException ex) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done)
+            wait();
+        return outcome();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return outcome();
+    }
+
+    private T outcome() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException();
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return result;
+    }
+
+    /**
+     * Stop waiting for the request. Its response is ignored if it comes.
+     *
+     * @param mayInterruptIfRunning ignored; no thread runs the request
+     * @return false if the request had already finished
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable run;
+        synchronized (this) {
+            if (done)
+                return false;
+            done = true;
+            cancelled = true;
+            callbacks.clear();
+            run = canceller;
+            notifyAll();
+        }
+        if (run != null)
+            run.run();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Have cancel() also stop whatever this future is waiting on; if it has
+     * been cancelled already, that happens at once.
+     *
+     * @param canceller code that stops the request
+     */
+    void onCancel(Runnable canceller) {
+        boolean cancelNow;
+        synchronized (this) {
+            this.canceller = canceller;
+            cancelNow = cancelled;
+        }
+        if (cancelNow)
+            canceller.run();
+    }
+
+    /**
+     * Have cancel() also cancel the future this one's result comes from.
+     *
+     * @param upstream future this one waits on
+     */
+    void follow(final Future<?> upstream) {
+        onCancel(new Runnable() {
+            @Override
+            public void run() {
+                upstream.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Finish the request with a result, unless it has already finished.
+     *
+     * @param result what the request returned
+     * @return false if the request had already finished or been cancelled
+     */
+    boolean complete(T result) {
+        return finish(result, null);
+    }
+
+    /**
+     * Finish the request with a failure, unless it has already finished.
+     *
+     * @param failure why the request failed
+     * @return false if the request had already finished or been cancelled
+     */
+    boolean fail(KVException failure) {
+        return finish(null, failure);
+    }
+
+    private boolean finish(T result, KVException failure) {
+        List<KVCallback<T>> run;
+        synchronized (this) {
+            if (done)
+                return false;
+            this.result = result;
+            this.failure = failure;
+            done = true;
+            run = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+        for (KVCallback<T> callback : run) {
+            try {
+                if (failure != null)
+                    callback.failed(failure);
+                else
+                    callback.completed(result);
+            } catch (RuntimeException ex) {
+                // one broken callback must not keep the others from running
+            }
+        }
+        return true;
+    }
+
+}
@@ -4,10 +4,9 @@ import static kvstore.KVConstants.*;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -15,9 +14,6 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  * This is the object that is used to generate the XML based messages
@@ -29,6 +25,11 @@ public class KVMessage implements Serializable {
     private String key;
     private String value;
     private String message;
+    private int offset = -1;
+    private int length = 0;
+    private int id = 0;
+    private int lease = 0;
+    private ArrayList<KVMessage> entries;
 
     public static final long serialVersionUID = 6473128480951955693L;
 
@@ -66,8 +67,9 @@ public class KVMessage implements Serializable {
 
     /**
      * Construct KVMessage from the InputStream of a socket.
-     * This constructor parses XML from the InputStream within a certain timeout
-     * or with an unlimited timeout if the provided argument is 0.
+     * This constructor parses XML or a binary frame from the InputStream
+     * within a certain timeout or with an unlimited timeout if the provided
+     * argument is 0.
      *
      * @param  sock Socket to receive serialized KVMessage through
      * @param  timeout total allowable receipt time, in milliseconds
@@ -75,107 +77,70 @@ public class KVMessage implements Serializable {
      *         KVConstants.java for possible KVException messages.
      */
     public KVMessage(Socket sock, int timeout) throws KVException {
-        try {
-        	sock.setSoTimeout(timeout);
+        this(new KVConnection(sock).receive(timeout));
+    }
+
+    /**
+     * Check that this message has the fields its type requires. Used on
+     * messages as they are received, and before sending binary messages.
+     *
+     * @throws KVException with ERROR_INVALID_FORMAT if a field is missing or
+     *         the type is unknown
+     */
+    void checkFields() throws KVException {
+        if (msgType.equals(KVConstants.PUT_REQ)) {
+        	if (key == null || key.length() == 0 ||
+        		value == null || value.length() == 0)
+        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         }
-        catch (SocketException ex) {
-        	throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+        else if (msgType.equals(KVConstants.GET_REQ) ||
+        		msgType.equals(KVConstants.DEL_REQ)) {
+        	if (key == null || key.length() == 0)
+        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         }
-        
-        Document doc = null;
-        try {
-        	DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        	doc = docBuilder.parse(new NoCloseInputStream(sock.getInputStream()));	
+        else if (msgType.equals(KVConstants.PATCH_REQ)) {
+        	if (key == null || key.length() == 0 || value == null)
+        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        	// an offset of -1 appends; any other range must lie at or past 0
+        	if (offset < -1 || length < 0 || (offset == -1 && length != 0))
+        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         }
-        catch (IOException ex) {
-        	throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        else if (msgType.equals(KVConstants.READY) ||
+        		msgType.equals(KVConstants.ABORT) ||
+        		msgType.equals(KVConstants.COMMIT) ||
+        		msgType.equals(KVConstants.ACK) ||
+        		msgType.equals(KVConstants.TOPOLOGY)) {
         }
-        catch (Exception ex) {
-        	throw new KVException(KVConstants.ERROR_PARSER);
+        else if (msgType.equals(KVConstants.REGISTER)) {
+        	if (message == null || !message.contains("@") ||
+        		!message.contains(":"))
+        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         }
-        
-        try {
-	        Element root = doc.getDocumentElement();
-	        root.normalize();
-	        
-	        msgType = root.getAttribute("type");
-	        NodeList keyNode = doc.getElementsByTagName("Key");
-	        NodeList valueNode = doc.getElementsByTagName("Value");
-	        NodeList msgNode = doc.getElementsByTagName("Message");
-	        
-	        if (msgType.equals(KVConstants.PUT_REQ)) {
-	        	if (keyNode.getLength() > 0)
-	        		key = keyNode.item(0).getTextContent();
-	        	else
-	        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        	
-	        	if (valueNode.getLength() > 0)
-	        		value = valueNode.item(0).getTextContent();
-	        	else
-	        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        	
-	        	if (key == null || key.length() == 0 ||
-	        		value == null || value.length() == 0)
-	        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        }
-	        else if (msgType.equals(KVConstants.GET_REQ)) {
-	        	if (keyNode.getLength() > 0)
-	        		key = keyNode.item(0).getTextContent();
-	        	else
-	        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        	
-	        	if (key == null || key.length() == 0)
-	        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        	
-	        }
-	        else if (msgType.equals(KVConstants.DEL_REQ)) {
-	        	if (keyNode.getLength() > 0)
-	        		key = keyNode.item(0).getTextContent();
-	        	else
-	        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        	
-	        	if (key == null || key.length() == 0)
-	        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        }
-	        else if (msgType.equals(KVConstants.READY)) {
-	        }
-	        else if (msgType.equals(KVConstants.ABORT)) {
-	        	if (msgNode.getLength() > 0) {
-	        		message = msgNode.item(0).getTextContent();
-	        		if (message == null)
-	        			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        	}
-	        }
-	        else if (msgType.equals(KVConstants.COMMIT)) {
-	        }
-	        else if (msgType.equals(KVConstants.ACK)) {
-	        }
-	        else if (msgType.equals(KVConstants.REGISTER)) {
-	        	if (msgNode.getLength() > 0)
-	        		message = msgNode.item(0).getTextContent();
-	        	if (message == null || !message.contains("@") ||
-	        		!message.contains(":"))
-	        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        }
-	        else if (msgType.equals(KVConstants.RESP)) {
-	        	if (msgNode.getLength() > 0)
-	        		message = msgNode.item(0).getTextContent();
-	        	if (keyNode.getLength() > 0)
-	        		key = keyNode.item(0).getTextContent();
-	        	if (valueNode.getLength() > 0)
-	        		value = valueNode.item(0).getTextContent();
-	        	
-	        	if (message == null) {
-	        		if (key == null || key.length() == 0 ||
-	        			value == null || value.length() == 0)
-	        			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        	}
-	        }
-	        else {
-	        	throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-	        }
+        else if (msgType.equals(KVConstants.MULTIGET_REQ)) {
+        	if (entries == null || entries.isEmpty() ||
+        		entries.size() > KVConstants.MAX_BATCH_SIZE)
+        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        	for (KVMessage entry : entries) {
+        		if (!entry.getMsgType().equals(KVConstants.GET_REQ))
+        			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        		entry.checkFields();
+        	}
         }
-        catch (Exception ex) {
+        else if (msgType.equals(KVConstants.RESP)) {
+        	if (entries != null) {
+        		for (KVMessage entry : entries) {
+        			if (!entry.getMsgType().equals(KVConstants.RESP))
+        				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        			entry.checkFields();
+        		}
+        	}
+        	else if (message == null) {
+        		if (key == null || key.length() == 0 ||
+        			value == null || value.length() == 0)
+        			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        	}
+        }
+        else {
         	throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         }
     }
@@ -190,6 +155,12 @@ public class KVMessage implements Serializable {
         key = kvm.getKey();
         value = kvm.getValue();
         message = kvm.getMessage();
+        offset = kvm.getOffset();
+        length = kvm.getLength();
+        id = kvm.getId();
+        lease = kvm.getLease();
+        if (kvm.getEntries() != null)
+            setEntries(kvm.getEntries());
     }
 
     /**
@@ -197,99 +168,89 @@ public class KVMessage implements Serializable {
      * the spec for details on the expected output format.
      *
      * @return the XML string representation of this KVMessage
-     * @throws KVException with ERROR_INVALID_FORMAT or ERROR_PARSER
+     * @throws KVException with ERROR_INVALID_FORMAT
      */
     public String toXML() throws KVException {
-        DocumentBuilder docBuilder = null;
-        try {
-        	docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        }
-        catch (ParserConfigurationException ex) {
-        	throw new KVException(KVConstants.ERROR_PARSER);
-        }
-        
-        Document doc = docBuilder.newDocument();
-        
-        Element kvm = doc.createElement("KVMessage");
-        doc.appendChild(kvm);
-        
+        writeXML(KVXMLCodec.get());
+        return KVXMLCodec.get().finish();
+    }
+
+    /**
+     * Write the elements of this message to an XML codec, checking that the
+     * fields required by its type are present.
+     *
+     * @param  codec KVXMLCodec to write the message to
+     * @throws KVException with ERROR_INVALID_FORMAT
+     */
+    private void writeXML(KVXMLCodec codec) throws KVException {
         if (this.msgType == null)
         	throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        // batches are only sent in the binary format
+        if (this.entries != null)
+        	throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         
-        kvm.setAttribute("type" , msgType);
+        codec.begin(msgType);
         
         if (msgType.equals(KVConstants.RESP)) {
         	if (this.message != null) {
         		if (this.key != null || this.value != null)
         			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-        		
-        		Element messageElement = doc.createElement("Message");
-        		messageElement.appendChild(doc.createTextNode(this.message));
-        		kvm.appendChild(messageElement);
+        		codec.element("Message" , this.message);
         	}
         	else {
         		if (this.key == null || this.value == null)
         			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-        		
-        		Element keyElement = doc.createElement("Key");
-        		keyElement.appendChild(doc.createTextNode(this.key));
-        		kvm.appendChild(keyElement);
-        		
-        		Element valueElement = doc.createElement("Value");
-        		valueElement.appendChild(doc.createTextNode(this.value));
-        		kvm.appendChild(valueElement);
+        		codec.element("Key" , this.key);
+        		codec.element("Value" , this.value);
+        		// a refused lease goes on the wire as a lease of 0
+        		if (this.lease != 0)
+        			codec.element("Lease" , Integer.toString(Math.max(this.lease , 0)));
         	}
         }
         else if (msgType.equals(KVConstants.PUT_REQ) ||
         		msgType.equals(KVConstants.GET_REQ) ||
-        		msgType.equals(KVConstants.DEL_REQ)) {     	
+        		msgType.equals(KVConstants.DEL_REQ)) {
         	if (this.key == null)
         		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-        	Element keyElement = doc.createElement("Key");
-        	keyElement.appendChild(doc.createTextNode(this.key));
-        	kvm.appendChild(keyElement);
+        	codec.element("Key" , this.key);
         	
         	if (this.msgType.equals(KVConstants.PUT_REQ)) {
         		if (this.value == null)
         			throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-        		
-        		Element valueElement = doc.createElement("Value");
-        		valueElement.appendChild(doc.createTextNode(this.value));
-        		kvm.appendChild(valueElement);
+        		codec.element("Value" , this.value);
+        	}
+        }
+        else if (msgType.equals(KVConstants.PATCH_REQ)) {
+        	if (this.key == null || this.value == null)
+        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        	codec.element("Key" , this.key);
+        	codec.element("Value" , this.value);
+        	
+        	if (!isAppend()) {
+        		codec.element("Offset" , Integer.toString(this.offset));
+        		codec.element("Length" , Integer.toString(this.length));
         	}
         }
         else if (msgType.equals(KVConstants.READY)) {
         }
         else if (msgType.equals(KVConstants.ABORT)) {
-        	if (message != null) {
-        		Element messageElement = doc.createElement("Message");
-        		messageElement.appendChild(doc.createTextNode(this.message));
-        		kvm.appendChild(messageElement);
-        	}
+        	if (message != null)
+        		codec.element("Message" , this.message);
         }
         else if (msgType.equals(KVConstants.COMMIT)) {
         }
-        else if (msgType.equals(KVConstants.ACK)) {        	
+        else if (msgType.equals(KVConstants.ACK)) {
+        }
+        else if (msgType.equals(KVConstants.TOPOLOGY)) {
         }
         else if (msgType.equals(KVConstants.REGISTER)) {
-        	if (message == null) 
+        	if (message == null)
         		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-        	Element messageElement = doc.createElement("Message");
-    		messageElement.appendChild(doc.createTextNode(this.message));
-    		kvm.appendChild(messageElement);
+        	codec.element("Message" , this.message);
         }
         else {
         	throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         }
-        
-        String res = null;
-        try {
-        	res = printDoc(doc);
-        }
-        catch (Exception ex) {
-        	throw new KVException(KVConstants.ERROR_PARSER);
-        }
-        return res;
     }
 
 
@@ -305,11 +266,10 @@ public class KVMessage implements Serializable {
      *         ERROR_COULD_NOT_SEND_DATA
      */
     public void sendMessage(Socket sock) throws KVException {
-    	PrintWriter p = null;
+        KVXMLCodec codec = KVXMLCodec.get();
+        writeXML(codec);
         try {
-        	p = new PrintWriter(sock.getOutputStream());
-        	p.write(this.toXML());
-        	p.flush();
+        	codec.finish(sock.getOutputStream());
         	
         	sock.shutdownOutput();
         }
@@ -346,6 +306,120 @@ public class KVMessage implements Serializable {
         return msgType;
     }
 
+    /**
+     * Get the offset of the range replaced by a patchreq.
+     *
+     * @return offset into the stored value, or -1 if the patch is an append
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the length of the range replaced by a patchreq.
+     *
+     * @return number of characters replaced by the patch value
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Set the range replaced by a patchreq. The characters [offset,
+     * offset + length) of the stored value are replaced by this message's
+     * value. An offset of -1 appends the value instead.
+     *
+     * @param offset start of the replaced range, or -1 to append
+     * @param length number of characters replaced
+     */
+    public void setRange(int offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Check whether this patchreq appends to the stored value.
+     *
+     * @return true if no range has been set for this patch
+     */
+    public boolean isAppend() {
+        return offset < 0;
+    }
+
+    /**
+     * Check whether this request can be sent again without changing the
+     * outcome, so that it is safe to resend when it may or may not have
+     * reached the server. Only reads are: a GET, a multigetreq and a
+     * topology request. A PUT or DEL repeated later may undo a write made
+     * in between, and an append repeated is applied twice.
+     * KVEndpoint and KVPipeline resend only requests for which this is true.
+     *
+     * @return true for a GET_REQ, MULTIGET_REQ or TOPOLOGY
+     */
+    boolean isIdempotent() {
+        return KVConstants.GET_REQ.equals(msgType) || KVConstants.TOPOLOGY.equals(msgType) ||
+            KVConstants.MULTIGET_REQ.equals(msgType);
+    }
+
+    /**
+     * Grant a read lease with a GET response: the sender promises not to
+     * let the key change until the lease has run out, so the receiver may
+     * serve the value from a cache meanwhile. A sender that grants leases
+     * but will not grant one on this value, because the key may change at
+     * any moment, says so with LEASE_REFUSED, and the receiver must not
+     * cache the value at all.
+     *
+     * @param millis length of the lease in milliseconds, 0 for none, or
+     *        LEASE_REFUSED
+     */
+    public void setLease(int millis) {
+        this.lease = millis;
+    }
+
+    /**
+     * Get the read lease a GET response grants; see setLease().
+     *
+     * @return length of the lease in milliseconds, 0 if there is none, or
+     *         LEASE_REFUSED
+     */
+    public int getLease() {
+        return lease;
+    }
+
+    /**
+     * Set the messages of a batch: a GET for each key of a multigetreq, or
+     * the resp that answers each of them, in the same order, in the resp to
+     * it. A batch carries at most MAX_BATCH_SIZE of them, and is only sent
+     * in the binary format.
+     *
+     * @param entries the messages of the batch, or null if this is not one
+     */
+    public void setEntries(List<KVMessage> entries) {
+        this.entries = (entries == null) ? null : new ArrayList<KVMessage>(entries);
+    }
+
+    /**
+     * Get the messages of a batch; see setEntries().
+     *
+     * @return the messages of the batch, or null if this is not one
+     */
+    public List<KVMessage> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the request ID that matches a response to its request when
+     * several requests are in flight on one connection.
+     *
+     * @return the request ID, or 0 if the message has none
+     */
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
 
     @Override
     public String toString() {
@@ -357,21 +431,6 @@ public class KVMessage implements Serializable {
         }
     }
 
-    /*
-     * InputStream wrapper that allows us to reuse the corresponding
-     * OutputStream of the socket to send a response.
-     * Please read about the problem and solution here:
-     * http://weblogs.java.net/blog/kohsuke/archive/2005/07/socket_xml_pitf.html
-     */
-    private class NoCloseInputStream extends FilterInputStream {
-        public NoCloseInputStream(InputStream in) {
-            super(in);
-        }
-
-        @Override
-        public void close() {} // ignore close
-    }
-
     /* http://stackoverflow.com/questions/2567416/document-to-string/2567428#2567428 */
     public static String printDoc(Document doc) {
         try {
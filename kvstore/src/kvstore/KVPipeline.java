@@ -0,0 +1,361 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many requests in flight on one binary connection.
+ *
+ * Each request is sent with a request ID as soon as it is made, without
+ * waiting for earlier responses. A reader thread takes responses off the
+ * connection in whatever order the server finishes them and hands each one
+ * to the caller waiting for the same ID. A request made with callAsync()
+ * has no caller waiting: its future is completed by the reader thread, and
+ * timed out by a timer thread shared by all pipelines.
+ */
+public class KVPipeline implements Runnable {
+
+    /* most requests waiting for a response on one connection */
+    public static final int MAX_IN_FLIGHT = 1024;
+
+    private KVConnection conn;
+    private HashMap<Integer, Call> calls = new HashMap<Integer, Call>();
+    private int nextId = 1;
+    private boolean open = true;
+    private KVException failure;
+
+    /* fails asynchronous calls whose responses are late */
+    private static final ScheduledThreadPoolExecutor timeouts =
+        new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "KVPipeline-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    static {
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Start pipelining requests on a connection. The connection must be to
+     * a server known to speak the binary format.
+     *
+     * @param conn binary connection to the server
+     */
+    public KVPipeline(KVConnection conn) {
+        this.conn = conn;
+        conn.setCloseOutput(false);
+        Thread reader = new Thread(this, "KVPipeline-" + conn.getSocket().getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Check whether new requests can still be sent on this pipeline.
+     *
+     * @return false once the connection has closed or failed
+     */
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Get the time a message was last sent or received on the connection.
+     *
+     * @return time in milliseconds, as from System.currentTimeMillis()
+     */
+    public long getLastActive() {
+        return conn.getLastActive();
+    }
+
+    /**
+     * Send a request and wait for its response while other requests are in
+     * flight. Blocks first if MAX_IN_FLIGHT requests are already waiting.
+     *
+     * @param  req KVMessage to send; it is not modified
+     * @param  timeout time to wait for the response in milliseconds, or 0
+     *         to wait as long as the connection stays open
+     * @return the response, or null if the server closed the connection
+     *         before answering and the request may be sent again on a new
+     *         connection: it was never written, or is idempotent
+     * @throws KVException if the request could not be sent or answered
+     */
+    public KVMessage call(KVMessage req, int timeout) throws KVException {
+        KVMessage msg = new KVMessage(req);
+        Call call = new Call(null, msg.isIdempotent());
+        synchronized (this) {
+            if (!register(msg, call))
+                return retryOrFail();
+        }
+
+        try {
+            call.written = true;
+            conn.send(msg);
+        } catch (KVException ex) {
+            shutdown(ex);
+        }
+
+        KVMessage resp = call.await(timeout);
+        synchronized (this) {
+            if (calls.remove(msg.getId()) != null)
+                notifyAll();
+            if (resp == null && !open && call.mayResend())
+                return retryOrFail();
+        }
+        if (resp == null)
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        return resp;
+    }
+
+    /**
+     * Send a request and return without waiting for its response. Blocks
+     * only if MAX_IN_FLIGHT requests are already waiting.
+     *
+     * @param  req KVMessage to send; it is not modified
+     * @param  timeout time to wait for the response in milliseconds, or 0
+     *         to wait as long as the connection stays open
+     * @return the response to come; it completes with null if the server
+     *         closes the connection before answering and the request may be
+     *         sent again on a new connection, as for call(), and fails if
+     *         the request could not be sent or answered in time
+     */
+    public KVFuture<KVMessage> callAsync(KVMessage req, int timeout) {
+        final KVMessage msg = new KVMessage(req);
+        final KVFuture<KVMessage> future = new KVFuture<KVMessage>();
+        final Call call = new Call(future, msg.isIdempotent());
+        try {
+            synchronized (this) {
+                if (!register(msg, call)) {
+                    future.complete(retryOrFail());
+                    return future;
+                }
+            }
+        } catch (KVException ex) {
+            future.fail(ex);
+            return future;
+        }
+        final int id = msg.getId();
+        if (timeout > 0) {
+            call.timeout = timeouts.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    forget(id);
+                    future.fail(new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                call.cancelTimeout();
+                forget(id);
+            }
+        });
+
+        try {
+            call.written = true;
+            conn.send(msg);
+        } catch (KVException ex) {
+            shutdown(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Give a request the next ID and wait for it to be answered, first
+     * waiting for room if MAX_IN_FLIGHT requests are in flight. Caller
+     * holds the lock.
+     *
+     * @return false if the pipeline has closed
+     */
+    private boolean register(KVMessage msg, Call call) throws KVException {
+        while (open && calls.size() >= MAX_IN_FLIGHT) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+            }
+        }
+        if (!open)
+            return false;
+        int id = nextId;
+        nextId = (nextId == Integer.MAX_VALUE) ? 1 : nextId + 1;
+        msg.setId(id);
+        calls.put(id, call);
+        return true;
+    }
+
+    /**
+     * Stop waiting for the response to a request.
+     */
+    private synchronized void forget(int id) {
+        if (calls.remove(id) != null)
+            notifyAll();
+    }
+
+    /**
+     * Close the connection. Requests still waiting are told they may be
+     * retried, as if the server had closed it.
+     */
+    public void close() {
+        shutdown(null);
+    }
+
+    /**
+     * Read responses and hand them to their callers until the connection
+     * closes or a response cannot be read.
+     */
+    @Override
+    public void run() {
+        for (;;) {
+            KVMessage resp;
+            try {
+                resp = conn.receive(0);
+            } catch (KVException ex) {
+                // a well framed but invalid response still answers its request
+                if (ex.getKVMessage().getId() != 0 && conn.isPersistent()) {
+                    deliver(ex.getKVMessage());
+                    continue;
+                }
+                shutdown(ex);
+                return;
+            }
+            deliver(resp);
+        }
+    }
+
+    private void deliver(KVMessage resp) {
+        Call call;
+        synchronized (this) {
+            call = calls.remove(resp.getId());
+            if (call != null)
+                notifyAll();
+        }
+        if (call != null)
+            call.complete(resp);
+    }
+
+    /**
+     * Stop accepting requests and wake every caller still waiting.
+     */
+    private void shutdown(KVException cause) {
+        List<Call> waiting;
+        synchronized (this) {
+            if (!open)
+                return;
+            open = false;
+            failure = cause;
+            waiting = new ArrayList<Call>(calls.values());
+            notifyAll();
+        }
+        conn.close();
+        KVException outcome = null;
+        try {
+            retryOrFail();
+        } catch (KVException ex) {
+            outcome = ex;
+        }
+        for (Call call : waiting) {
+            if (call.future == null)
+                call.complete(null);
+            else if (outcome != null)
+                call.fail(outcome);
+            else if (!call.mayResend())
+                call.fail(new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA));
+            else
+                call.complete(null);
+        }
+    }
+
+    /**
+     * Result of a call on a closed pipeline: null if the server hung up, so
+     * the request can be retried, or else the error that closed it.
+     */
+    private KVMessage retryOrFail() throws KVException {
+        if (conn.isPeerClosed() || failure == null)
+            return null;
+        throw failure;
+    }
+
+    /**
+     * A request waiting for its response, with a caller waiting in await()
+     * or else a future to complete.
+     */
+    private static class Call {
+
+        private final KVFuture<KVMessage> future;
+        private final boolean idempotent;
+        private volatile boolean written = false;
+        private volatile ScheduledFuture<?> timeout;
+        private KVMessage resp;
+        private boolean done = false;
+
+        Call(KVFuture<KVMessage> future, boolean idempotent) {
+            this.future = future;
+            this.idempotent = idempotent;
+        }
+
+        /**
+         * Check whether the request can be sent again after the connection
+         * closed unanswered: the server may have carried out a request that
+         * was written before closing.
+         */
+        boolean mayResend() {
+            return !written || idempotent;
+        }
+
+        void complete(KVMessage resp) {
+            synchronized (this) {
+                if (done)
+                    return;
+                this.resp = resp;
+                done = true;
+                notifyAll();
+            }
+            if (future != null) {
+                cancelTimeout();
+                future.complete(resp);
+            }
+        }
+
+        void fail(KVException ex) {
+            synchronized (this) {
+                if (done)
+                    return;
+                done = true;
+            }
+            cancelTimeout();
+            future.fail(ex);
+        }
+
+        void cancelTimeout() {
+            ScheduledFuture<?> pending = timeout;
+            if (pending != null)
+                pending.cancel(false);
+        }
+
+        synchronized KVMessage await(int timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!done) {
+                long left = deadline - System.currentTimeMillis();
+                if (timeout > 0 && left <= 0)
+                    break;
+                try {
+                    wait(timeout > 0 ? left : 0);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+            return resp;
+        }
+    }
+
+}
@@ -108,6 +108,71 @@ public class KVServer implements KeyValueInterface {
         }
     }
 
+    /**
+     * Performs patch request on cache and store. Replaces the characters
+     * [offset, offset + length) of the stored value with delta, or appends
+     * delta if offset is negative. Only the delta travels over the network;
+     * the full value is rebuilt here under the set lock.
+     *
+     * @param  key String key
+     * @param  offset start of the replaced range, or -1 to append
+     * @param  length number of characters replaced
+     * @param  delta String spliced into the stored value
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, ERROR_INVALID_RANGE if the range does not lie within the
+     *         value, or if the key or resulting value is too long
+     */
+    public void patch(String key, int offset, int length, String delta)
+            throws KVException {
+        if (key.length() > MAX_KEY_SIZE)
+        	throw new KVException(KVConstants.ERROR_OVERSIZED_KEY);
+        
+        Lock lock = dataCache.getLock(key);
+        try {
+        	lock.lock();
+        	String value = dataCache.get(key);
+        	if (value == null)
+        		value = dataStore.get(key);
+        	
+        	value = applyPatch(value , offset , length , delta);
+        	dataCache.put(key , value);
+        	dataStore.put(key , value);
+        }
+        finally {
+        	lock.unlock();
+        }
+    }
+
+    /**
+     * Compute the result of a patch without storing it. Slaves use this to
+     * vote on a patchreq before the master decides to commit it.
+     *
+     * @param  value the current value
+     * @param  offset start of the replaced range, or -1 to append
+     * @param  length number of characters replaced
+     * @param  delta String spliced into value
+     * @return the patched value
+     * @throws KVException with ERROR_INVALID_RANGE if the range does not lie
+     *         within value or ERROR_OVERSIZED_VALUE if the result is too long
+     */
+    public static String applyPatch(String value, int offset, int length,
+            String delta) throws KVException {
+        if (offset < 0) {
+        	offset = value.length();
+        	length = 0;
+        }
+        if (length < 0 || offset > value.length() || length > value.length() - offset)
+        	throw new KVException(KVConstants.ERROR_INVALID_RANGE);
+        if ((long)value.length() - length + delta.length() > MAX_VAL_SIZE)
+        	throw new KVException(KVConstants.ERROR_OVERSIZED_VALUE);
+        
+        StringBuilder sb = new StringBuilder(value.length() - length + delta.length());
+        sb.append(value , 0 , offset);
+        sb.append(delta);
+        sb.append(value , offset + length , value.length());
+        return sb.toString();
+    }
+
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but
@@ -126,6 +191,17 @@ public class KVServer implements KeyValueInterface {
         return true;
     }
 
+    /**
+     * Get the id of the data cache set that holds a key. Requests for keys
+     * in the same set serialize on the same lock.
+     *
+     * @param  key key of interest
+     * @return set of the key
+     */
+    public int getSetId(String key) {
+        return dataCache.getSetId(key);
+    }
+
     /** This method is purely for convenience and will not be tested. */
     @Override
     public String toString() {
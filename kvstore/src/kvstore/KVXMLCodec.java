@@ -0,0 +1,600 @@
+package kvstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Streaming reader and writer for the XML wire format of KVMessage.
+ *
+ * Messages look like
+ * <pre>
+ * &lt;?xml version="1.0" encoding="UTF-8"?&gt;
+ * &lt;KVMessage type="putreq"&gt;&lt;Key&gt;k&lt;/Key&gt;&lt;Value&gt;v&lt;/Value&gt;&lt;/KVMessage&gt;
+ * </pre>
+ * which is simple enough to tokenize by hand. Decoding reads the stream in
+ * chunks and stops as soon as the root element is closed, without building a
+ * DOM; encoding appends straight to a buffer. Each thread reuses one codec so
+ * the read, text and output buffers are only allocated once per thread.
+ */
+public class KVXMLCodec {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    /* most elements open at once inside the root; messages use one */
+    private static final int MAX_DEPTH = 16;
+
+    private static final ThreadLocal<KVXMLCodec> codecs = new ThreadLocal<KVXMLCodec>() {
+        @Override
+        protected KVXMLCodec initialValue() {
+            return new KVXMLCodec();
+        }
+    };
+
+    /* input state */
+    private InputStream in;
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkPos;
+    private int chunkLen;
+    private byte[] text = new byte[CHUNK_SIZE];
+    private int textLen;
+    private String offsetText;
+    private String lengthText;
+    private String leaseText;
+    private int maxKeySize;
+    private int maxValueSize;
+    private int textLimit;
+    private String textError;
+
+    /* output state */
+    private StringBuilder out = new StringBuilder(CHUNK_SIZE);
+    private byte[] outBytes = new byte[CHUNK_SIZE];
+
+    private KVXMLCodec() {
+    }
+
+    /**
+     * Get the codec owned by the calling thread.
+     *
+     * @return codec for this thread
+     */
+    public static KVXMLCodec get() {
+        return codecs.get();
+    }
+
+    /**
+     * Read one message from a stream. Fields are copied into the returned
+     * KVMessage as found: an element that is absent leaves its field null and
+     * an empty element sets it to "". Checking that the right fields are
+     * present for the message type is left to the caller.
+     *
+     * @param  stream InputStream to read the message from
+     * @return KVMessage holding the fields of the message
+     * @throws KVException with ERROR_COULD_NOT_RECEIVE_DATA if reading the
+     *         stream fails, ERROR_PARSER if the input is not well-formed, or
+     *         ERROR_INVALID_FORMAT if Offset or Length is not a valid number
+     */
+    public KVMessage decode(InputStream stream) throws KVException {
+        return decode(stream, -1);
+    }
+
+    /**
+     * Read one message from a stream whose first byte has already been
+     * consumed, for callers that peek at the stream to tell formats apart.
+     *
+     * @param  stream InputStream to read the rest of the message from
+     * @param  first the byte already read, or -1 if none was
+     * @return KVMessage holding the fields of the message
+     * @throws KVException as for decode(InputStream)
+     */
+    public KVMessage decode(InputStream stream, int first) throws KVException {
+        return decode(stream, first, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read one message, as above, rejecting a key or value longer than its
+     * limit as soon as its text grows past what the limit allows. The rest
+     * of the message is then left unread.
+     *
+     * @param  stream InputStream to read the rest of the message from
+     * @param  first the byte already read, or -1 if none was
+     * @param  maxKeySize most characters allowed in a key
+     * @param  maxValueSize most characters allowed in a value
+     * @return KVMessage holding the fields of the message
+     * @throws KVException as for decode(InputStream), or with
+     *         ERROR_OVERSIZED_KEY or ERROR_OVERSIZED_VALUE
+     */
+    public KVMessage decode(InputStream stream, int first, int maxKeySize, int maxValueSize)
+            throws KVException {
+        this.maxKeySize = maxKeySize;
+        this.maxValueSize = maxValueSize;
+        in = stream;
+        chunkPos = chunkLen = 0;
+        if (first >= 0) {
+            chunk[0] = (byte) first;
+            chunkLen = 1;
+        }
+        try {
+            return readMessage();
+        } catch (IOException ex) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        } finally {
+            in = null;
+        }
+    }
+
+    private KVMessage readMessage() throws IOException, KVException {
+        int c = skipMisc();
+        if (c != '<')
+            throw new KVException(KVConstants.ERROR_PARSER);
+
+        String root = readName(next());
+        String type = null;
+        limitText(null);
+        c = skipSpace(next());
+        while (c != '>' && c != '/') {
+            String attr = readName(c);
+            if (skipSpace(next()) != '=')
+                throw new KVException(KVConstants.ERROR_PARSER);
+            String val = readAttributeValue(skipSpace(next()));
+            if (attr.equals("type") && type == null)
+                type = val;
+            c = skipSpace(next());
+        }
+
+        // DOM reports a missing attribute as ""; validation rejects both
+        KVMessage kvm = new KVMessage(type == null ? "" : type);
+        if (c == '/') {
+            expect('>');
+            return kvm;
+        }
+
+        ArrayList<String> open = new ArrayList<String>();
+        offsetText = lengthText = leaseText = null;
+        textLen = 0;
+        for (;;) {
+            c = next();
+            if (c != '<') {
+                if (!open.isEmpty())
+                    appendText(c);
+                continue;
+            }
+            c = next();
+            if (c == '!') {
+                if (!readCommentOrCData(!open.isEmpty()))
+                    throw new KVException(KVConstants.ERROR_PARSER);
+            } else if (c == '?') {
+                skipPast('?', '>');
+            } else if (c == '/') {
+                String name = readName(next());
+                if (skipSpace(next()) != '>')
+                    throw new KVException(KVConstants.ERROR_PARSER);
+                if (open.isEmpty()) {
+                    if (!name.equals(root))
+                        throw new KVException(KVConstants.ERROR_PARSER);
+                    break;
+                }
+                if (!name.equals(open.remove(open.size() - 1)))
+                    throw new KVException(KVConstants.ERROR_PARSER);
+                if (open.isEmpty())
+                    setField(kvm, name, textString());
+            } else {
+                String name = readName(c);
+                c = skipSpace(next());
+                while (c != '>' && c != '/') {
+                    readName(c);
+                    if (skipSpace(next()) != '=')
+                        throw new KVException(KVConstants.ERROR_PARSER);
+                    readAttributeValue(skipSpace(next()));
+                    c = skipSpace(next());
+                }
+                if (open.isEmpty()) {
+                    textLen = 0;
+                    limitText(name);
+                }
+                if (c == '/') {
+                    expect('>');
+                    if (open.isEmpty())
+                        setField(kvm, name, "");
+                } else {
+                    if (open.size() >= MAX_DEPTH)
+                        throw new KVException(KVConstants.ERROR_PARSER);
+                    open.add(name);
+                }
+            }
+        }
+
+        if (offsetText != null) {
+            int offset, length;
+            try {
+                offset = Integer.parseInt(offsetText.trim());
+                length = (lengthText == null) ? 0 : Integer.parseInt(lengthText.trim());
+            } catch (NumberFormatException ex) {
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            }
+            if (offset < 0 || length < 0)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            kvm.setRange(offset, length);
+        }
+        if (leaseText != null) {
+            int lease;
+            try {
+                lease = Integer.parseInt(leaseText.trim());
+            } catch (NumberFormatException ex) {
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            }
+            if (lease < 0)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            kvm.setLease(lease == 0 ? KVConstants.LEASE_REFUSED : lease);
+        }
+        return kvm;
+    }
+
+    /**
+     * Record the text of a child of the root element. Like the DOM lookups
+     * this replaces, only the first occurrence of each element counts.
+     */
+    private void setField(KVMessage kvm, String name, String value) throws KVException {
+        if (name.equals("Key") && value.length() > maxKeySize)
+            throw new KVException(KVConstants.ERROR_OVERSIZED_KEY);
+        if (name.equals("Value") && value.length() > maxValueSize)
+            throw new KVException(KVConstants.ERROR_OVERSIZED_VALUE);
+        if (name.equals("Key") && kvm.getKey() == null)
+            kvm.setKey(value);
+        else if (name.equals("Value") && kvm.getValue() == null)
+            kvm.setValue(value);
+        else if (name.equals("Message") && kvm.getMessage() == null)
+            kvm.setMessage(value);
+        else if (name.equals("Offset") && offsetText == null)
+            offsetText = value;
+        else if (name.equals("Length") && lengthText == null)
+            lengthText = value;
+        else if (name.equals("Lease") && leaseText == null)
+            leaseText = value;
+    }
+
+    /**
+     * Bound the text buffered for the child of the root element called name,
+     * or for anything else if name is null. A char takes at most 3 bytes of
+     * UTF-8, so text longer than 3 bytes per allowed char is rejected while
+     * it is still being read; the exact count is checked in setField.
+     */
+    private void limitText(String name) {
+        int max = Math.max(maxKeySize, maxValueSize);
+        textError = KVConstants.ERROR_INVALID_FORMAT;
+        if ("Key".equals(name)) {
+            max = maxKeySize;
+            textError = KVConstants.ERROR_OVERSIZED_KEY;
+        } else if ("Value".equals(name)) {
+            max = maxValueSize;
+            textError = KVConstants.ERROR_OVERSIZED_VALUE;
+        }
+        textLimit = (int) Math.min(Integer.MAX_VALUE, 3L * max);
+    }
+
+    /**
+     * Skip the prolog: whitespace, the XML declaration, processing
+     * instructions and comments. Document types are not supported.
+     */
+    private int skipMisc() throws IOException, KVException {
+        for (;;) {
+            int c = skipSpace(next());
+            if (c == 0xEF) {
+                // UTF-8 byte order mark
+                expect(0xBB);
+                expect(0xBF);
+                continue;
+            }
+            if (c != '<')
+                return c;
+            if (peek() == '?') {
+                next();
+                skipPast('?', '>');
+            } else if (peek() == '!') {
+                next();
+                if (!readCommentOrCData(false))
+                    throw new KVException(KVConstants.ERROR_PARSER);
+            } else {
+                return '<';
+            }
+        }
+    }
+
+    /**
+     * Consume a comment or CDATA section after "&lt;!".
+     *
+     * @param  keepText whether CDATA content is added to the current text
+     * @return true if a comment, or a CDATA section where text is allowed,
+     *         was consumed
+     */
+    private boolean readCommentOrCData(boolean keepText) throws IOException, KVException {
+        int c = next();
+        if (c == '-') {
+            expect('-');
+            int a = next(), b = next();
+            for (;;) {
+                int d = next();
+                if (a == '-' && b == '-') {
+                    if (d != '>')
+                        throw new KVException(KVConstants.ERROR_PARSER);
+                    return true;
+                }
+                a = b;
+                b = d;
+            }
+        }
+        if (c == '[' && keepText) {
+            for (int i = 0; i < 6; i++)
+                expect("CDATA[".charAt(i));
+            int a = next(), b = next();
+            for (;;) {
+                int d = next();
+                if (a == ']' && b == ']' && d == '>')
+                    return true;
+                appendByte(a);
+                a = b;
+                b = d;
+            }
+        }
+        throw new KVException(KVConstants.ERROR_PARSER);
+    }
+
+    private void skipPast(int a, int b) throws IOException, KVException {
+        int prev = next();
+        for (;;) {
+            int c = next();
+            if (prev == a && c == b)
+                return;
+            prev = c;
+        }
+    }
+
+    private String readName(int c) throws IOException, KVException {
+        if (!isNameChar(c) || c == '-' || c == '.' || (c >= '0' && c <= '9'))
+            throw new KVException(KVConstants.ERROR_PARSER);
+        StringBuilder sb = new StringBuilder(16);
+        while (isNameChar(c)) {
+            sb.append((char) c);
+            if (!isNameChar(peek()))
+                break;
+            c = next();
+        }
+        return sb.toString();
+    }
+
+    private String readAttributeValue(int quote) throws IOException, KVException {
+        if (quote != '"' && quote != '\'')
+            throw new KVException(KVConstants.ERROR_PARSER);
+        int saved = textLen;
+        for (;;) {
+            int c = next();
+            if (c == quote)
+                break;
+            if (c == '<')
+                throw new KVException(KVConstants.ERROR_PARSER);
+            appendText(c);
+        }
+        String val = new String(text, saved, textLen - saved, "UTF-8");
+        textLen = saved;
+        return val;
+    }
+
+    /**
+     * Add one byte of character data to the text buffer, resolving entity
+     * references and normalizing line ends the way an XML parser does.
+     */
+    private void appendText(int c) throws IOException, KVException {
+        if (c == '&') {
+            appendCodePoint(readReference());
+        } else if (c == '\r') {
+            if (peek() == '\n')
+                next();
+            appendByte('\n');
+        } else {
+            appendByte(c);
+        }
+    }
+
+    private int readReference() throws IOException, KVException {
+        StringBuilder sb = new StringBuilder(8);
+        for (;;) {
+            int c = next();
+            if (c == ';')
+                break;
+            if (sb.length() > 10)
+                throw new KVException(KVConstants.ERROR_PARSER);
+            sb.append((char) c);
+        }
+        String ref = sb.toString();
+        if (ref.equals("lt"))
+            return '<';
+        if (ref.equals("gt"))
+            return '>';
+        if (ref.equals("amp"))
+            return '&';
+        if (ref.equals("quot"))
+            return '"';
+        if (ref.equals("apos"))
+            return '\'';
+        try {
+            if (ref.startsWith("#x"))
+                return Integer.parseInt(ref.substring(2), 16);
+            if (ref.startsWith("#"))
+                return Integer.parseInt(ref.substring(1));
+        } catch (NumberFormatException ex) {
+        }
+        throw new KVException(KVConstants.ERROR_PARSER);
+    }
+
+    private void appendCodePoint(int cp) throws KVException {
+        if (cp < 0 || cp > 0x10FFFF)
+            throw new KVException(KVConstants.ERROR_PARSER);
+        if (cp < 0x80) {
+            appendByte(cp);
+        } else if (cp < 0x800) {
+            appendByte(0xC0 | (cp >> 6));
+            appendByte(0x80 | (cp & 0x3F));
+        } else if (cp < 0x10000) {
+            appendByte(0xE0 | (cp >> 12));
+            appendByte(0x80 | ((cp >> 6) & 0x3F));
+            appendByte(0x80 | (cp & 0x3F));
+        } else {
+            appendByte(0xF0 | (cp >> 18));
+            appendByte(0x80 | ((cp >> 12) & 0x3F));
+            appendByte(0x80 | ((cp >> 6) & 0x3F));
+            appendByte(0x80 | (cp & 0x3F));
+        }
+    }
+
+    private void appendByte(int b) throws KVException {
+        if (textLen == textLimit)
+            throw new KVException(textError);
+        if (textLen == text.length) {
+            byte[] bigger = new byte[(int) Math.min(textLimit, text.length * 2L)];
+            System.arraycopy(text, 0, bigger, 0, textLen);
+            text = bigger;
+        }
+        text[textLen++] = (byte) b;
+    }
+
+    private String textString() throws IOException {
+        String s = new String(text, 0, textLen, "UTF-8");
+        textLen = 0;
+        return s;
+    }
+
+    private int skipSpace(int c) throws IOException, KVException {
+        while (c == ' ' || c == '\t' || c == '\n' || c == '\r')
+            c = next();
+        return c;
+    }
+
+    private void expect(int expected) throws IOException, KVException {
+        if (next() != expected)
+            throw new KVException(KVConstants.ERROR_PARSER);
+    }
+
+    private static boolean isNameChar(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+            (c >= '0' && c <= '9') || c == '_' || c == ':' || c == '-' ||
+            c == '.' || c >= 0x80;
+    }
+
+    private int next() throws IOException, KVException {
+        if (chunkPos == chunkLen && !fill())
+            throw new KVException(KVConstants.ERROR_PARSER);
+        return chunk[chunkPos++] & 0xFF;
+    }
+
+    private int peek() throws IOException, KVException {
+        if (chunkPos == chunkLen && !fill())
+            throw new KVException(KVConstants.ERROR_PARSER);
+        return chunk[chunkPos] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(chunk, 0, chunk.length);
+        if (n <= 0)
+            return false;
+        chunkPos = 0;
+        chunkLen = n;
+        return true;
+    }
+
+    /**
+     * Start writing a message of the given type. Elements are added with
+     * element() and the document is completed by finish().
+     *
+     * @param type the type attribute of the message
+     * @throws KVException with ERROR_INVALID_FORMAT if type has a character
+     *         XML 1.0 cannot carry
+     */
+    public void begin(String type) throws KVException {
+        out.setLength(0);
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+        out.append("<KVMessage type=\"");
+        escape(type, true);
+        out.append("\">\n");
+    }
+
+    /**
+     * Append a text element to the message being written.
+     *
+     * @param name tag of the element
+     * @param content text of the element
+     * @throws KVException with ERROR_INVALID_FORMAT if content has a
+     *         character XML 1.0 cannot carry
+     */
+    public void element(String name, String content) throws KVException {
+        out.append('<').append(name).append('>');
+        escape(content, false);
+        out.append("</").append(name).append(">\n");
+    }
+
+    /**
+     * Close the message being written.
+     *
+     * @return the complete XML document
+     */
+    public String finish() {
+        out.append("</KVMessage>\n");
+        return out.toString();
+    }
+
+    /**
+     * Close the message being written and send it as UTF-8.
+     *
+     * @param  stream OutputStream to write the message to
+     * @throws IOException if writing to the stream fails
+     */
+    public void finish(OutputStream stream) throws IOException {
+        out.append("</KVMessage>\n");
+        int n = encodeUTF8(out);
+        stream.write(outBytes, 0, n);
+        stream.flush();
+    }
+
+    /**
+     * Append text with markup characters escaped. XML 1.0 has no way to
+     * write control characters other than tab, newline and carriage return,
+     * not even as character references, nor U+FFFE and U+FFFF; DOM parsers
+     * reject them, so such text cannot go out as XML at all.
+     */
+    private void escape(String s, boolean attribute) throws KVException {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '<':
+                out.append("&lt;");
+                break;
+            case '>':
+                out.append("&gt;");
+                break;
+            case '&':
+                out.append("&amp;");
+                break;
+            case '"':
+                if (attribute)
+                    out.append("&quot;");
+                else
+                    out.append(c);
+                break;
+            case '\r':
+                out.append("&#13;");
+                break;
+            default:
+                if ((c < 0x20 && c != '\n' && c != '\t') || c == '\ufffe' || c == '\uffff')
+                    throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+                out.append(c);
+            }
+        }
+    }
+
+    private int encodeUTF8(CharSequence s) {
+        if (outBytes.length < s.length() * 3)
+            outBytes = new byte[s.length() * 3];
+        return KVBinaryCodec.putUTF8(s, outBytes, 0);
+    }
+}
@@ -0,0 +1,107 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in microseconds that any number of threads may
+ * record into without locking. Each power of two is split into eight
+ * buckets, so percentiles are reported within 12.5% of the true value.
+ */
+public class LatencyHistogram {
+
+    /* buckets per power of two */
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+
+    /* longest duration told apart from longer ones: about 9 hours */
+    private static final long MAX_MICROS = (1L << 35) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_MICROS) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one duration.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros))
+            ;
+    }
+
+    private static int index(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Largest value that falls in a bucket.
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * @return number of durations recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return mean of the durations recorded, in microseconds, or 0 if none
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return longest duration recorded, in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the duration that the given percentage of recorded durations do
+     * not exceed, rounded up to the end of its bucket.
+     *
+     * @param percent between 0 and 100, such as 50 or 99
+     * @return that duration in microseconds, or 0 if none were recorded
+     */
+    public long getPercentile(double percent) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.0fus p50=%dus p99=%dus max=%dus", getCount(),
+            getMean(), getPercentile(50), getPercentile(99), getMax());
+    }
+
+}
@@ -0,0 +1,19 @@
+package kvstore;
+
+/**
+ * Interface for handlers of requests that the server has already read,
+ * such as those of an NIOSocketServer. This is the asynchronous equivalent
+ * of NetworkHandler.
+ */
+public interface MessageHandler {
+
+    /**
+     * Creates a job to service a request and returns immediately after
+     * enqueuing that job. The job sends its response through responder.
+     *
+     * @param req request read in full from another endpoint
+     * @param responder where the response to req goes
+     */
+    public void handle(KVMessage req, Responder responder);
+
+}
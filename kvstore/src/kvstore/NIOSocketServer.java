@@ -0,0 +1,862 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A SocketServer that reads requests itself, with non-blocking channels and
+ * a Selector, and hands each request to a MessageHandler once it has been
+ * read in full. Handler threads never wait on a client, so slow or idle
+ * clients cost a buffer rather than a thread, and the number of open
+ * connections is not bounded by the size of the handler's pool.
+ *
+ * Requests are framed as by KVConnection: binary frames carry their length,
+ * and an XML request ends with its root element or when the client shuts
+ * down output. A request without a request ID is answered before the next
+ * one on its connection is read; pipelined requests are read on while
+ * earlier ones are served. Responses are written by the thread that sends
+ * them if the socket takes them at once, and otherwise by the event loop as
+ * the socket drains.
+ *
+ * Connections are accepted by one or more acceptor threads and handed out
+ * round-robin to a number of I/O event loops, each with its own Selector
+ * and thread, so a burst of reconnecting clients is taken off the accept
+ * queue quickly while earlier connections are still being read.
+ * Connection limits and the idle timeout apply as for SocketServer; at
+ * capacity the acceptors stop selecting for new connections.
+ */
+public class NIOSocketServer extends SocketServer {
+
+    /* size of the read buffer each connection starts with */
+    private static final int BUFFER_SIZE = 8192;
+
+    /* most bytes discarded after a response before closing a connection
+     * whose last request was not read to the end */
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    private ServerSocketChannel server;
+    private MessageHandler handler;
+    private final int acceptors;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private int maxKeySize = KVServer.MAX_KEY_SIZE;
+    private int maxValueSize = KVServer.MAX_VAL_SIZE;
+    private boolean compression = true;
+
+    /**
+     * Construct an NIOSocketServer listening on a free port.
+     */
+    public NIOSocketServer(String hostname) {
+        this(hostname, 0);
+    }
+
+    /**
+     * Construct an NIOSocketServer listening on the port passed in, with one
+     * acceptor thread and an I/O loop per available processor.
+     *
+     * @param port port on which to listen for connections
+     */
+    public NIOSocketServer(String hostname, int port) {
+        this(hostname, port, 1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Construct an NIOSocketServer listening on the port passed in.
+     *
+     * @param port port on which to listen for connections
+     * @param acceptors number of threads accepting connections
+     * @param ioLoops number of event loops reading and writing connections
+     */
+    public NIOSocketServer(String hostname, int port, int acceptors, int ioLoops) {
+        super(hostname, port);
+        if (acceptors < 1 || ioLoops < 1)
+            throw new IllegalArgumentException("need at least one acceptor and I/O loop");
+        this.acceptors = acceptors;
+        this.loops = new EventLoop[ioLoops];
+    }
+
+    /**
+     * Add the handler for requests to this server. It must also be a
+     * MessageHandler, since this server reads requests itself.
+     *
+     * @param handler is logic for servicing requests
+     * @throws IllegalArgumentException if handler is not a MessageHandler
+     */
+    @Override
+    public void addHandler(NetworkHandler handler) {
+        if (!(handler instanceof MessageHandler))
+            throw new IllegalArgumentException("handler must be a MessageHandler");
+        addMessageHandler((MessageHandler) handler);
+    }
+
+    /**
+     * Add the handler for requests to this server.
+     *
+     * @param handler is logic for servicing requests read by this server
+     */
+    public void addMessageHandler(MessageHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Sets the longest key and value accepted in requests. Longer ones are
+     * rejected while the request is still being read, with
+     * ERROR_OVERSIZED_KEY or ERROR_OVERSIZED_VALUE. The defaults are
+     * KVServer.MAX_KEY_SIZE and KVServer.MAX_VAL_SIZE.
+     *
+     * @param maxKeySize most characters allowed in a key
+     * @param maxValueSize most characters allowed in a value
+     */
+    public void setSizeLimits(int maxKeySize, int maxValueSize) {
+        this.maxKeySize = maxKeySize;
+        this.maxValueSize = maxValueSize;
+    }
+
+    /**
+     * Sets whether large responses may be compressed for clients that ask
+     * for it, which is the default. See KVConnection.setCompression().
+     *
+     * @param compression false to keep responses uncompressed
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the number of connections open on each I/O loop, in the order
+     * the loops are handed new connections. All zero while not started.
+     *
+     * @return open connections per I/O loop
+     */
+    public int[] getConnectionCounts() {
+        int[] counts = new int[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            EventLoop loop = loops[i];
+            if (loop != null)
+                counts[i] = loop.open;
+        }
+        return counts;
+    }
+
+    /**
+     * Creates a ServerSocketChannel and binds it to an endpoint. If the
+     * given port is 0, it is bound to an automatically allocated port.
+     *
+     * @throws IOException if unable to create and bind the channel
+     */
+    @Override
+    public void connect() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(hostname , port) , ACCEPT_BACKLOG);
+        server.configureBlocking(false);
+        if (port == 0)
+        	port = server.socket().getLocalPort();
+    }
+
+    /**
+     * Accept connections and read requests from them until stop() is
+     * called, which closes the server and all its connections within
+     * TIMEOUT milliseconds. The calling thread is the first acceptor; the
+     * other acceptors and the I/O loops get threads of their own.
+     *
+     * @throws IOException if a selector cannot be opened
+     */
+    @Override
+    public void start() throws IOException {
+        EventLoop[] accepting = new EventLoop[acceptors];
+        List<Thread> threads = new ArrayList<Thread>();
+        try {
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new EventLoop();
+            for (int i = 0; i < acceptors; i++) {
+                accepting[i] = new EventLoop();
+                accepting[i].listen(server);
+            }
+        } catch (IOException ex) {
+            // run() on a stopped loop just closes its selector
+            stopped = true;
+            for (EventLoop loop : loops)
+                if (loop != null)
+                    loop.run();
+            for (EventLoop loop : accepting)
+                if (loop != null)
+                    loop.run();
+            server.close();
+            throw ex;
+        }
+        for (int i = 0; i < loops.length; i++)
+            threads.add(new Thread(loops[i], "NIOSocketServer-io-" + i));
+        for (int i = 1; i < acceptors; i++)
+            threads.add(new Thread(accepting[i], "NIOSocketServer-accept-" + i));
+        for (Thread thread : threads)
+            thread.start();
+        accepting[0].run();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                // the loops stop on their own within TIMEOUT
+            }
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            // ignore error
+        }
+    }
+
+    /**
+     * Longest binary frame waited for in full before it is read in part to
+     * find the field that is too large.
+     */
+    private long maxFrame() {
+        return KVBinaryCodec.HEADER_SIZE + KVBinaryCodec.maxBodySize(maxKeySize, maxValueSize);
+    }
+
+    /**
+     * Longest XML request buffered. Character references can take up to ten
+     * bytes per character.
+     */
+    private long maxXML() {
+        return 10L * maxKeySize + 10L * maxValueSize + 1024;
+    }
+
+    /**
+     * A thread that waits on a Selector for connections to accept, read and
+     * write. Other threads hand it work through execute().
+     */
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Set<Connection> connections = new HashSet<Connection>();
+        private SelectionKey acceptKey;
+
+        /* connections.size(), for other threads */
+        private volatile int open = 0;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Accept connections from a server channel on this loop.
+         */
+        void listen(ServerSocketChannel server) throws ClosedChannelException {
+            acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        /**
+         * Run a task on this loop's thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextSweep = System.currentTimeMillis() + SWEEP_MILLISECONDS;
+            try {
+                while (!stopped) {
+                    selector.select(TIMEOUT);
+                    if (acceptKey != null && acceptKey.interestOps() == 0 && !atCapacity())
+                        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept(key);
+                            continue;
+                        }
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isWritable())
+                            conn.flush();
+                        if (key.isValid() && key.isReadable())
+                            conn.read();
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= nextSweep) {
+                        sweep(now);
+                        nextSweep = now + SWEEP_MILLISECONDS;
+                    }
+                }
+            } catch (IOException ex) {
+                // the selector failed; close everything below
+            } finally {
+                // connections handed over after the last select
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                for (Connection conn : new ArrayList<Connection>(connections))
+                    conn.close();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore error
+                }
+            }
+        }
+
+        /**
+         * Take every pending connection off the accept queue and hand each
+         * to the next I/O loop in turn.
+         */
+        private void accept(SelectionKey key) {
+            ServerSocketChannel server = (ServerSocketChannel) key.channel();
+            for (;;) {
+                if (atCapacity()) {
+                    // leave new clients in the accept queue until some close
+                    key.interestOps(0);
+                    return;
+                }
+                final SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException ex) {
+                    return;
+                }
+                if (channel == null)
+                    return;
+                if (!admit(channel.socket().getInetAddress())) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // ignore error
+                    }
+                    continue;
+                }
+                final EventLoop target = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                target.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        target.add(channel);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Start reading requests from a newly accepted channel.
+         */
+        void add(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection conn = new Connection(channel, this);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                connections.add(conn);
+                open = connections.size();
+            } catch (IOException ex) {
+                release(channel.socket().getInetAddress());
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore error
+                }
+            }
+        }
+
+        /**
+         * Close connections that have been idle too long, and those left
+         * draining after a rejected request once the peer goes quiet.
+         */
+        private void sweep(long now) {
+            for (Connection conn : new ArrayList<Connection>(connections)) {
+                if (conn.isIdle(now))
+                    conn.close();
+            }
+        }
+    }
+
+    /**
+     * One client connection. Reading and parsing happen on the loop thread;
+     * responses may be sent from any thread.
+     */
+    private class Connection implements Responder {
+
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final InetAddress address;
+        private SelectionKey key;
+
+        /* loop thread only */
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private int need = 0;
+        private boolean stalled = false;
+        private boolean inputDone = false;
+        private boolean draining = false;
+        private int drained = 0;
+
+        /* guarded by this */
+        private final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+        private int inFlight = 0;
+        private boolean ordered = false;
+        private boolean paused = false;
+        private boolean finishing = false;
+        private boolean broken = false;
+        private boolean closed = false;
+
+        private volatile int format = KVConnection.BINARY;
+        private volatile boolean peerInflates = false;
+        private volatile long lastActive = System.currentTimeMillis();
+
+        private final Runnable update = new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        };
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.address = channel.socket().getInetAddress();
+        }
+
+        /**
+         * Read what the client has sent and pass on any requests it
+         * completes.
+         */
+        void read() {
+            if (draining) {
+                drain();
+                return;
+            }
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException ex) {
+                close();
+                return;
+            }
+            if (n < 0)
+                inputDone = true;
+            else
+                lastActive = System.currentTimeMillis();
+            stalled = false;
+            parse();
+            update();
+        }
+
+        /**
+         * Discard input after a rejected request until the client hangs up
+         * or DRAIN_LIMIT bytes have been read.
+         */
+        private void drain() {
+            in.clear();
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException ex) {
+                n = -1;
+            }
+            drained += Math.max(n, 0);
+            if (n < 0 || drained > DRAIN_LIMIT)
+                close();
+            else
+                lastActive = System.currentTimeMillis();
+        }
+
+        /**
+         * Pass on each complete request in the read buffer, for as long as
+         * more requests may be read, then make room for the rest.
+         */
+        private void parse() {
+            in.flip();
+            try {
+                while (in.hasRemaining() && readable()) {
+                    boolean parsed;
+                    if (in.get(in.position()) == KVBinaryCodec.MAGIC_0)
+                        parsed = parseFrame();
+                    else
+                        parsed = parseXML();
+                    if (!parsed) {
+                        stalled = true;
+                        break;
+                    }
+                }
+            } finally {
+                in.compact();
+            }
+            if (need > in.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(need);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            } else if (in.position() == 0 && in.capacity() > BUFFER_SIZE) {
+                // do not hold on to the buffer of a large request
+                in = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+            need = 0;
+        }
+
+        /**
+         * Pass on the binary frame at the start of the buffer if it is
+         * complete. A frame too long to wait for is decoded as far as it has
+         * arrived, to reject it by the field that is too large.
+         *
+         * @return true if a frame was consumed
+         */
+        private boolean parseFrame() {
+            int start = in.position();
+            int avail = in.remaining();
+            if (avail < KVBinaryCodec.HEADER_SIZE)
+                return false;
+            byte[] b = in.array();
+            if (b[start + 1] != KVBinaryCodec.MAGIC_1 ||
+                b[start + 2] != KVBinaryCodec.FORMAT_BINARY) {
+                reject(ERROR_PARSER, 0);
+                return false;
+            }
+            int flags = b[start + 3];
+            int length = in.getInt(start + 4);
+            if (length < 0) {
+                reject(ERROR_INVALID_FORMAT, 0);
+                return false;
+            }
+            long total = KVBinaryCodec.HEADER_SIZE + (long) length;
+            boolean whole = (avail >= total);
+            if (!whole && total <= maxFrame()) {
+                // make room as the frame arrives, not all that it claims
+                need = (int) Math.min(total, Math.max(in.capacity(), 2L * avail));
+                return false;
+            }
+            if (!whole && avail < in.capacity())
+                return false;
+
+            KVMessage kvm;
+            try {
+                kvm = KVBinaryCodec.get().decode(new ByteArrayInputStream(b,
+                    start + KVBinaryCodec.HEADER_SIZE, avail - KVBinaryCodec.HEADER_SIZE),
+                    length, flags, maxKeySize, maxValueSize);
+            } catch (KVException ex) {
+                String error = ex.getKVMessage().getMessage();
+                if (!whole && ERROR_COULD_NOT_RECEIVE_DATA.equals(error)) {
+                    // no verdict yet; read on, up to maxFrame()
+                    if (in.capacity() < maxFrame()) {
+                        need = (int) Math.min(maxFrame(), in.capacity() * 2L);
+                        return false;
+                    }
+                    error = ERROR_INVALID_FORMAT;
+                }
+                reject(error, ex.getKVMessage().getId());
+                return false;
+            }
+            in.position(start + (int) total);
+            format = KVConnection.BINARY;
+            peerInflates = (flags & KVBinaryCodec.FLAG_INFLATES) != 0;
+            deliver(kvm);
+            return true;
+        }
+
+        /**
+         * Pass on the XML request in the buffer once it looks complete: the
+         * client has shut down output, the last byte closes a tag, or the
+         * buffer is full.
+         *
+         * @return true if a request was consumed
+         */
+        private boolean parseXML() {
+            int start = in.position();
+            int avail = in.remaining();
+            byte[] b = in.array();
+            int last = start + avail - 1;
+            while (last > start && Character.isWhitespace(b[last]))
+                last--;
+            boolean full = (avail == in.capacity());
+            if (!inputDone && !full && b[last] != '>')
+                return false;
+
+            KVMessage kvm;
+            try {
+                kvm = KVXMLCodec.get().decode(new ByteArrayInputStream(b, start, avail), -1,
+                    maxKeySize, maxValueSize);
+            } catch (KVException ex) {
+                String error = ex.getKVMessage().getMessage();
+                if (!inputDone && (ERROR_PARSER.equals(error) ||
+                    ERROR_COULD_NOT_RECEIVE_DATA.equals(error))) {
+                    // possibly just not all here yet
+                    if (!full)
+                        return false;
+                    if (in.capacity() < maxXML()) {
+                        need = (int) Math.min(maxXML(), in.capacity() * 2L);
+                        return false;
+                    }
+                }
+                format = KVConnection.XML;
+                reject(error, 0);
+                return false;
+            }
+            // an XML connection carries a single request
+            in.position(in.limit());
+            format = KVConnection.XML;
+            deliver(kvm);
+            return true;
+        }
+
+        /**
+         * Hand a request to the handler, or answer it here if it is missing
+         * fields its type requires.
+         */
+        private void deliver(KVMessage kvm) {
+            try {
+                kvm.checkFields();
+            } catch (KVException ex) {
+                KVMessage resp = new KVMessage(RESP, ex.getKVMessage().getMessage());
+                resp.setId(kvm.getId());
+                write(resp);
+                return;
+            }
+            synchronized (this) {
+                inFlight++;
+                if (kvm.getId() == 0)
+                    ordered = true;
+            }
+            lastActive = System.currentTimeMillis();
+            handler.handle(kvm, this);
+        }
+
+        /**
+         * Answer a request that could not be read to the end, then close.
+         */
+        private void reject(String error, int id) {
+            KVMessage resp = new KVMessage(RESP, error);
+            resp.setId(id);
+            synchronized (this) {
+                finishing = true;
+            }
+            write(resp);
+        }
+
+        /**
+         * Check whether the next request may be read: the last unpipelined
+         * request has been answered and not too many are in flight.
+         */
+        private synchronized boolean readable() {
+            return !ordered && !finishing && inFlight < KVPipeline.MAX_IN_FLIGHT;
+        }
+
+        /**
+         * Sends the response to one request handed to the handler.
+         *
+         * @param  kvm KVMessage to send
+         * @throws KVException with ERROR_INVALID_FORMAT if it cannot be encoded
+         */
+        @Override
+        public void send(KVMessage kvm) throws KVException {
+            ByteBuffer frame = encode(kvm);
+            boolean wake;
+            synchronized (this) {
+                inFlight--;
+                if (kvm.getId() == 0)
+                    ordered = false;
+                if (format == KVConnection.XML)
+                    finishing = true;
+                queue(frame);
+                wake = paused || finishing || broken || !out.isEmpty();
+            }
+            lastActive = System.currentTimeMillis();
+            if (wake)
+                loop.execute(update);
+        }
+
+        /**
+         * Send a response from the loop thread.
+         */
+        private void write(KVMessage kvm) {
+            ByteBuffer frame;
+            try {
+                frame = encode(kvm);
+            } catch (KVException ex) {
+                return;
+            }
+            synchronized (this) {
+                if (format == KVConnection.XML)
+                    finishing = true;
+                queue(frame);
+            }
+        }
+
+        private ByteBuffer encode(KVMessage kvm) throws KVException {
+            if (format == KVConnection.XML) {
+                try {
+                    return ByteBuffer.wrap(kvm.toXML().getBytes("UTF-8"));
+                } catch (IOException ex) {
+                    throw new KVException(ERROR_INVALID_FORMAT);
+                }
+            }
+            kvm.checkFields();
+            // room for the usual all-ASCII message, so large ones are not regrown
+            int size = 64;
+            if (kvm.getKey() != null)
+                size += kvm.getKey().length();
+            if (kvm.getValue() != null)
+                size += kvm.getValue().length();
+            Frame frame = new Frame(size);
+            try {
+                KVBinaryCodec.get().encode(kvm, frame, compression, compression && peerInflates);
+            } catch (IOException ex) {
+                throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+            }
+            return frame.toBuffer();
+        }
+
+        /**
+         * Write a frame right away if nothing is waiting ahead of it, and
+         * keep whatever the socket did not take. Caller holds the lock.
+         */
+        private void queue(ByteBuffer frame) {
+            if (closed || broken)
+                return;
+            if (out.isEmpty()) {
+                try {
+                    channel.write(frame);
+                } catch (IOException ex) {
+                    broken = true;
+                    return;
+                }
+            }
+            if (frame.hasRemaining())
+                out.add(frame);
+        }
+
+        /**
+         * Write queued responses as the socket drains.
+         */
+        void flush() {
+            synchronized (this) {
+                try {
+                    while (!out.isEmpty()) {
+                        ByteBuffer frame = out.getFirst();
+                        channel.write(frame);
+                        if (frame.hasRemaining())
+                            break;
+                        out.removeFirst();
+                    }
+                } catch (IOException ex) {
+                    broken = true;
+                }
+            }
+            update();
+        }
+
+        /**
+         * Bring the selector's interest in this connection up to date, read
+         * any requests buffered while reading was paused, and close the
+         * connection once it has nothing left to do.
+         */
+        private void update() {
+            for (;;) {
+                boolean more;
+                synchronized (this) {
+                    if (closed)
+                        return;
+                    if (broken) {
+                        close();
+                        return;
+                    }
+                    if (out.isEmpty() && finishing && !draining) {
+                        if (inputDone) {
+                            close();
+                            return;
+                        }
+                        // let the client see the response before any reset
+                        draining = true;
+                        try {
+                            channel.socket().shutdownOutput();
+                        } catch (IOException ex) {
+                            close();
+                            return;
+                        }
+                    }
+                    boolean canRead = readable();
+                    paused = !canRead;
+                    more = canRead && !stalled && in.position() > 0;
+                    if (inputDone && inFlight == 0 && out.isEmpty() && !more) {
+                        close();
+                        return;
+                    }
+                    int ops = 0;
+                    if (!out.isEmpty())
+                        ops |= SelectionKey.OP_WRITE;
+                    if ((canRead || draining) && !inputDone)
+                        ops |= SelectionKey.OP_READ;
+                    key.interestOps(ops);
+                }
+                if (!more)
+                    return;
+                parse();
+            }
+        }
+
+        /**
+         * Check whether this connection should be closed by the sweep.
+         */
+        synchronized boolean isIdle(long now) {
+            if (draining)
+                return now - lastActive > SWEEP_MILLISECONDS;
+            int timeout = getIdleTimeout();
+            return inFlight == 0 && out.isEmpty() && timeout > 0 &&
+                now - lastActive > timeout;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                out.clear();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore error
+            }
+            loop.connections.remove(this);
+            loop.open = loop.connections.size();
+            release(address);
+        }
+    }
+
+    /**
+     * A frame being encoded, handed to the channel without copying.
+     */
+    private static class Frame extends ByteArrayOutputStream {
+
+        Frame(int size) {
+            super(size);
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package kvstore;
+
+/**
+ * Interface for where the response to a request goes.
+ */
+public interface Responder {
+
+    /**
+     * Sends the response to a request. Responses to pipelined requests must
+     * carry the ID of the request they answer.
+     *
+     * @param  kvm KVMessage to send
+     * @throws KVException if the response could not be sent
+     */
+    public void send(KVMessage kvm) throws KVException;
+
+}
@@ -3,15 +3,28 @@ package kvstore;
 import static kvstore.KVConstants.*;
 
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
+ * As a MessageHandler it serves requests an NIOSocketServer has read.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements NetworkHandler, MessageHandler {
 
     private KVServer kvServer;
     private ThreadPool threadPool;
+    private ThreadPool setWorkers[];
+    private int maxKeySize = KVServer.MAX_KEY_SIZE;
+    private int maxValueSize = KVServer.MAX_VAL_SIZE;
+
+    /**
+     * Number of requests an affinity worker may have queued before new
+     * requests for its sets are served by the thread that parsed them.
+     */
+    public static final int MAX_AFFINITY_BACKLOG = 8;
 
     /**
      * Constructs a ServerClientHandler with ThreadPool of a single thread.
@@ -27,11 +40,98 @@ public class ServerClientHandler implements NetworkHandler {
      * the number passed in as connections.
      *
      * @param kvServer KVServer to carry out requests
-     * @param connections number of threads in threadPool to service requests
+     * @param connections number of threads in threadPool to service requests,
+     *        or ThreadPool.UNBOUNDED to serve each connection on its own thread
      */
     public ServerClientHandler(KVServer kvServer, int connections) {
+        this(kvServer, connections, 0);
+    }
+
+    /**
+     * Constructs a ServerClientHandler that dispatches requests by key.
+     * The threadPool only reads requests off sockets; each parsed request is
+     * then handed to one of affinityWorkers single-thread workers chosen by
+     * the cache set of its key, so requests for a hot set run on one thread
+     * instead of contending for the set lock. If affinityWorkers is 0, the
+     * thread that reads a request also serves it.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param connections number of threads in threadPool to read requests,
+     *        or ThreadPool.UNBOUNDED to read each connection on its own thread
+     * @param affinityWorkers number of per-set workers to serve requests
+     */
+    public ServerClientHandler(KVServer kvServer, int connections, int affinityWorkers) {
+        this(kvServer, new ThreadPool(connections), affinityWorkers);
+    }
+
+    /**
+     * Constructs a ServerClientHandler that reads requests with a pool of
+     * the caller's choosing, such as a WorkStealingThreadPool; otherwise as
+     * ServerClientHandler(KVServer, int, int).
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param pool ThreadPool to read requests, which this handler then owns
+     * @param affinityWorkers number of per-set workers to serve requests
+     */
+    public ServerClientHandler(KVServer kvServer, ThreadPool pool, int affinityWorkers) {
         this.kvServer = kvServer;
-        threadPool = new ThreadPool(connections);
+        threadPool = pool;
+        if (affinityWorkers > 0) {
+        	setWorkers = new ThreadPool[affinityWorkers];
+        	for (int i = 0; i < affinityWorkers; i++)
+        		setWorkers[i] = new ThreadPool(1);
+        }
+    }
+
+    /**
+     * Sets the longest key and value accepted from clients on this
+     * listener. Longer ones are rejected while the request is still being
+     * read, with ERROR_OVERSIZED_KEY or ERROR_OVERSIZED_VALUE. The defaults
+     * are KVServer.MAX_KEY_SIZE and KVServer.MAX_VAL_SIZE.
+     *
+     * @param maxKeySize most characters allowed in a key
+     * @param maxValueSize most characters allowed in a value
+     */
+    public void setSizeLimits(int maxKeySize, int maxValueSize) {
+        this.maxKeySize = maxKeySize;
+        this.maxValueSize = maxValueSize;
+    }
+
+    /**
+     * Bounds the requests waiting for a thread, so that under overload
+     * clients are pushed back on instead of being served ever later. See
+     * ThreadPool.setQueueLimit() for the policies; requests turned away
+     * are answered with ERROR_SERVER_BUSY.
+     *
+     * @param capacity most jobs waiting at once, or 0 for no limit
+     * @param policy ThreadPool.BLOCK, REJECT, DROP_OLDEST or CALLER_RUNS
+     */
+    public void setQueueLimit(int capacity, int policy) {
+        threadPool.setQueueLimit(capacity, policy);
+    }
+
+    /**
+     * Lets the pool that reads and serves requests grow past the connections
+     * it was built with while requests wait longer than targetWaitMillis,
+     * and shrink back after idleMillis without work. See
+     * ThreadPool.setElastic().
+     *
+     * @param maxConnections most threads the pool may grow to
+     * @param targetWaitMillis longest a request should wait for a thread
+     * @param idleMillis how long an extra thread may sit idle
+     */
+    public void setElasticPool(int maxConnections, int targetWaitMillis, int idleMillis) {
+        threadPool.setElastic(maxConnections, targetWaitMillis, idleMillis);
+    }
+
+    /**
+     * Get queueing and run-time figures for the pool serving requests from
+     * clients. See ThreadPoolStats.
+     *
+     * @return live stats of the pool
+     */
+    public ThreadPoolStats getPoolStats() {
+        return threadPool.getStats();
     }
 
     /**
@@ -42,41 +142,201 @@ public class ServerClientHandler implements NetworkHandler {
      */
     @Override
     public void handle(Socket client) {
+        KVConnection conn = new KVConnection(client);
+        conn.setSizeLimits(maxKeySize, maxValueSize);
+        ClientHandler job = new ClientHandler(conn);
+        try {
+        	threadPool.addJob(job);
+        }
+        catch (InterruptedException ex) {
+        }
+        catch (RejectedExecutionException ex) {
+        	job.reject();
+        }
+    }
+
+    /**
+     * Creates a job to service a request that has already been read and
+     * enqueues it like a request read by this handler.
+     *
+     * @param req request read from the client
+     * @param responder where the response goes
+     */
+    @Override
+    public void handle(KVMessage req, Responder responder) {
+        RequestHandler job = new RequestHandler(responder, req, null);
+        if (!queueOnAffinityWorker(job, req)) {
+        	try {
+        		threadPool.addJob(job);
+        	}
+        	catch (InterruptedException ex) {
+        	}
+        	catch (RejectedExecutionException ex) {
+        		job.reject();
+        	}
+        }
+    }
+
+    /**
+     * Hands a parsed request to the affinity worker for its key's set. Falls
+     * back to serving it on the current thread when affinity is off, the
+     * request has no key, or the chosen worker has fallen behind, so one hot
+     * set cannot back up requests that are waiting behind it.
+     *
+     * A request with a request ID is pipelined: the client may already have
+     * sent the next one, so instead of serving it on the current thread it
+     * is queued in threadPool while the current thread goes back to reading.
+     * Pipelined requests may be answered in any order, and one that threadPool
+     * turns away is answered with ERROR_SERVER_BUSY.
+     *
+     * @param reader ClientHandler that read the request
+     * @param req request read from client
+     */
+    private void dispatch(ClientHandler reader, KVMessage req) {
+        boolean pipelined = (req.getId() != 0);
+        RequestHandler job = new RequestHandler(reader.client, req, pipelined ? null : reader);
+        if (queueOnAffinityWorker(job, req))
+        	return;
+        if (pipelined) {
+        	try {
+        		threadPool.addJob(job);
+        		return;
+        	}
+        	catch (InterruptedException ex) {
+        	}
+        	catch (RejectedExecutionException ex) {
+        		// turned away; the reader is queued again by its caller
+        		job.reject();
+        		return;
+        	}
+        }
+        job.run();
+    }
+
+    /**
+     * Queues a job on the affinity worker for its key's set, unless affinity
+     * is off, the request has no key, or that worker has fallen behind.
+     *
+     * @return true if the job was queued
+     */
+    private boolean queueOnAffinityWorker(RequestHandler job, KVMessage req) {
+        if (setWorkers == null || req.getKey() == null)
+        	return false;
+        ThreadPool worker = setWorkers[kvServer.getSetId(req.getKey()) % setWorkers.length];
+        if (worker.getQueueSize() >= MAX_AFFINITY_BACKLOG)
+        	return false;
         try {
-        	threadPool.addJob(new ClientHandler(client));
+        	worker.addJob(job);
+        	return true;
         }
         catch (InterruptedException ex) {
+        	return false;
+        }
+        catch (RejectedExecutionException ex) {
+        	return false;
         }
     }
 
     /**
-     * Runnable class with routine to service a request from the client.
+     * Runnable class with routine to read a request from the client.
      */
-    private class ClientHandler implements Runnable {
+    private class ClientHandler implements ThreadPool.Rejectable {
 
-        private Socket client;
+        private KVConnection client;
+        private boolean dispatched = false;
 
         /**
          * Construct a ClientHandler.
          *
-         * @param client Socket connected to client with the request
+         * @param client connection to client with the request
          */
-        public ClientHandler(Socket client) {
+        public ClientHandler(KVConnection client) {
             this.client = client;
         }
 
+        /**
+         * Reads the next request from the client and dispatches it. If the
+         * request cannot be parsed, the error is sent back right away. On a
+         * persistent connection this is queued again once the request has
+         * been answered, or right away if the request was pipelined, to read
+         * the one after it.
+         */
+        @Override
+        public void run() {
+            int next = client.waitForRequest(threadPool , dispatched);
+            dispatched = false;
+            if (next != KVConnection.REQUEST_READY) {
+            	client.requeue(threadPool , this);
+            	return;
+            }
+            KVMessage req;
+            try {
+            	req = client.receive();
+            }
+            catch (KVException ex) {
+            	try {
+            		KVMessage resp = new KVMessage(KVConstants.RESP , ex.getKVMessage().getMessage());
+            		resp.setId(ex.getKVMessage().getId());
+            		client.send(resp);
+            	}
+            	catch (KVException e) {
+            	}
+            	client.requeue(threadPool , this);
+            	return;
+            }
+            dispatch(this, req);
+            if (req.getId() != 0) {
+            	dispatched = true;
+            	client.requeue(threadPool , this);
+            }
+        }
+
+        /**
+         * Turns the client away with ERROR_SERVER_BUSY. The request is read and
+         * answered off the calling thread, which may be the one accepting
+         * connections; see KVConnection.reject().
+         */
+        @Override
+        public void reject() {
+            client.reject(KVConstants.ERROR_SERVER_BUSY);
+        }
+    }
+
+    /**
+     * Runnable class with routine to service a parsed request.
+     */
+    private class RequestHandler implements ThreadPool.Rejectable {
+
+        private Responder client;
+        private KVMessage req;
+        private ClientHandler reader;
+
+        /**
+         * Construct a RequestHandler.
+         *
+         * @param client where the response to the client goes
+         * @param req request read from client
+         * @param reader ClientHandler to queue again for the next request
+         *        once this one is answered, or null if it is already reading
+         */
+        public RequestHandler(Responder client, KVMessage req, ClientHandler reader) {
+            this.client = client;
+            this.req = req;
+            this.reader = reader;
+        }
+
         /**
          * Processes request from client and sends back a response with the
          * result. The delivery of the response is best-effort. If we are
          * unable to return a response, there is nothing else we can do.
+         * The connection then goes back to threadPool for its next request,
+         * unless the request was pipelined.
          */
         @Override
         public void run() {
-        	KVMessage req = null;
             KVMessage resp = null;
             
             try {
-            	req = new KVMessage(client);
             	if (req.getMsgType().equals(KVConstants.PUT_REQ)) {
             		kvServer.put(req.getKey() , req.getValue());
             		resp = new KVMessage(KVConstants.RESP , KVConstants.SUCCESS);
@@ -87,22 +347,66 @@ public class ServerClientHandler implements NetworkHandler {
             		resp.setKey(req.getKey());
             		resp.setValue(value);
             	}
+            	else if (req.getMsgType().equals(KVConstants.MULTIGET_REQ)) {
+            		List<KVMessage> answers = new ArrayList<KVMessage>();
+            		for (KVMessage get : req.getEntries()) {
+            			KVMessage answer;
+            			try {
+            				answer = new KVMessage(KVConstants.RESP);
+            				answer.setValue(kvServer.get(get.getKey()));
+            			}
+            			catch (KVException ex) {
+            				answer = new KVMessage(KVConstants.RESP , ex.getKVMessage().getMessage());
+            			}
+            			answer.setKey(get.getKey());
+            			answers.add(answer);
+            		}
+            		resp = new KVMessage(KVConstants.RESP);
+            		resp.setEntries(answers);
+            	}
             	else if (req.getMsgType().equals(KVConstants.DEL_REQ)) {
             		kvServer.del(req.getKey());
             		resp = new KVMessage(KVConstants.RESP , KVConstants.SUCCESS);
             	}
+            	else if (req.getMsgType().equals(KVConstants.PATCH_REQ)) {
+            		kvServer.patch(req.getKey() , req.getOffset() , req.getLength() , req.getValue());
+            		resp = new KVMessage(KVConstants.RESP , KVConstants.SUCCESS);
+            	}
+            	else if (req.getMsgType().equals(KVConstants.TOPOLOGY)) {
+            		// a lone server has no slaves: every request comes here
+            		resp = new KVMessage(KVConstants.RESP , "");
+            	}
             }
             catch (KVException ex) {
             	resp = new KVMessage(KVConstants.RESP , ex.getKVMessage().getMessage());
             }
             
             if (resp != null) {
+            	resp.setId(req.getId());
             	try {
-            		resp.sendMessage(client);
+            		client.send(resp);
             	}
             	catch (KVException ex) {
             	}
             }
+            if (reader != null)
+            	reader.client.requeue(threadPool , reader);
+        }
+
+        /**
+         * Answers the request with ERROR_SERVER_BUSY instead of serving it.
+         */
+        @Override
+        public void reject() {
+            KVMessage resp = new KVMessage(KVConstants.RESP , KVConstants.ERROR_SERVER_BUSY);
+            resp.setId(req.getId());
+            try {
+            	client.send(resp);
+            }
+            catch (KVException ex) {
+            }
+            if (reader != null)
+            	reader.client.requeue(threadPool , reader);
         }
     }
 
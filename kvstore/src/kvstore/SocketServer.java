@@ -1,26 +1,58 @@
 package kvstore;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This is a generic class that should handle all TCP network connections
  * arriving on a unique (hostname, port) tuple. Ensure that this class
  * remains generic by providing the connection handling logic in a
  * NetworkHandler.
+ *
+ * Under overload the server bounds the sockets it holds: past
+ * setMaxConnections() it stops accepting until connections close, a remote
+ * address past setMaxConnectionsPerAddress() has further connections closed
+ * as soon as they are accepted, and connections idle for longer than
+ * setIdleTimeout() are closed by the server even if no handler thread is
+ * watching them.
  */
 public class SocketServer {
 
-    private String hostname;
-    private int port;
+    protected String hostname;
+    protected int port;
     private ServerSocket server;
     private NetworkHandler handler;
-    private boolean stopped = false;
+    protected volatile boolean stopped = false;
+    private List<TrackedSocket> accepted = new ArrayList<TrackedSocket>();
 
-    private static final int TIMEOUT = 100;
+    private int maxConnections = 0;
+    private int maxPerAddress = 0;
+    private volatile int idleTimeout = KVConstants.IDLE_TIMEOUT_MILLISECONDS;
+    private int open = 0;
+    private long rejected = 0;
+    private Map<InetAddress, Integer> perAddress = new HashMap<InetAddress, Integer>();
+
+    protected static final int TIMEOUT = 100;
+
+    /* how often idle connections are looked for, in milliseconds */
+    protected static final int SWEEP_MILLISECONDS = 1000;
+
+    /* connections the OS may hold for accept(); the default of 50
+     * overflows when every client reconnects at once */
+    protected static final int ACCEPT_BACKLOG = 1024;
 
     /**
      * Construct a SocketServer with a ServerSocket listening on a free port.
@@ -57,6 +89,109 @@ public class SocketServer {
         this.handler = handler;
     }
 
+    /**
+     * Sets the most connections open at once. Once that many are open, no
+     * more are accepted until some close; new clients wait in the accept
+     * queue meanwhile. 0, the default, means no limit.
+     *
+     * @param maxConnections most connections open at once, or 0
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Sets the most connections open at once from one remote address.
+     * Connections past it are closed as soon as they are accepted and
+     * counted as rejected. 0, the default, means no limit.
+     *
+     * @param maxPerAddress most connections open at once per address, or 0
+     */
+    public synchronized void setMaxConnectionsPerAddress(int maxPerAddress) {
+        this.maxPerAddress = maxPerAddress;
+    }
+
+    /**
+     * Sets how long a connection may go without reading or writing anything
+     * before the server closes it. Connections are checked every
+     * SWEEP_MILLISECONDS. The default is KVConstants.IDLE_TIMEOUT_MILLISECONDS;
+     * 0 leaves idle connections to the handler.
+     *
+     * @param idleTimeout milliseconds a connection may be idle, or 0
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Get the number of connections open.
+     *
+     * @return connections accepted and not yet found closed
+     */
+    public synchronized int getOpenConnections() {
+        return open;
+    }
+
+    /**
+     * Get the number of connections closed for going over the limit for
+     * their remote address.
+     *
+     * @return connections rejected since the server was created
+     */
+    public synchronized long getRejectedConnections() {
+        return rejected;
+    }
+
+    /**
+     * Check whether as many connections are open as may be.
+     *
+     * @return true if no more connections should be accepted for now
+     */
+    protected synchronized boolean atCapacity() {
+        return maxConnections > 0 && open >= maxConnections;
+    }
+
+    /**
+     * Count a newly accepted connection, unless its remote address already
+     * has as many open as allowed. A connection that is admitted must be
+     * passed to release() once it is closed.
+     *
+     * @param address remote address of the connection
+     * @return true if the connection may be served, false if it should be
+     *         closed right away
+     */
+    protected synchronized boolean admit(InetAddress address) {
+        Integer count = perAddress.get(address);
+        int n = (count == null) ? 0 : count;
+        if (maxPerAddress > 0 && n >= maxPerAddress) {
+            rejected++;
+            return false;
+        }
+        perAddress.put(address, n + 1);
+        open++;
+        return true;
+    }
+
+    /**
+     * Stop counting a connection admitted earlier.
+     *
+     * @param address remote address of the connection
+     */
+    protected synchronized void release(InetAddress address) {
+        Integer count = perAddress.get(address);
+        if (count == null)
+            return;
+        if (count <= 1)
+            perAddress.remove(address);
+        else
+            perAddress.put(address, count - 1);
+        open--;
+    }
+
     /**
      * Creates a new ServerSocket and binds it to an endpoint.
      * If the given port is 0, the ServerSocket should be bound to an
@@ -65,8 +200,8 @@ public class SocketServer {
      * @throws IOException if unable create and bind a ServerSocket
      */
     public void connect() throws IOException {
-        server = new ServerSocket();
-        server.bind(new InetSocketAddress(hostname , port));
+        server = new TrackingServerSocket();
+        server.bind(new InetSocketAddress(hostname , port) , ACCEPT_BACKLOG);
         if (port == 0)
         	port = server.getLocalPort();
     }
@@ -74,19 +209,41 @@ public class SocketServer {
     /**
      * Accept and save requests as jobs to be serviced asynchronously.
      * A call to stop() should result in the closing of the ServerSocket
-     * within TIMEOUT milliseconds.
+     * within TIMEOUT milliseconds, along with any accepted connections the
+     * handler has kept open.
      *
      * @throws IOException if there is an unexpected network error while
      *         listening for or servicing requests
      */
     public void start() throws IOException {
 	    server.setSoTimeout(TIMEOUT);
+	    long nextSweep = System.currentTimeMillis() + SWEEP_MILLISECONDS;
 	   	
 	    while (!stopped) {
+	    	long now = System.currentTimeMillis();
+	    	if (now >= nextSweep) {
+	    		sweep(now);
+	    		nextSweep = now + SWEEP_MILLISECONDS;
+	    	}
+	    	if (atCapacity()) {
+	    		// leave new clients in the accept queue until some close
+	    		try {
+	    			Thread.sleep(TIMEOUT / 10);
+	    		} catch (InterruptedException ex) {
+	    		}
+	    		sweep(0);
+	    		continue;
+	    	}
 	    	try {
 	        	Socket sock = server.accept();
-	        	if (sock != null)
-	        		handler.handle(sock);		
+	        	if (sock != null) {
+	        		if (!admit(sock.getInetAddress())) {
+	        			sock.close();
+	        			continue;
+	        		}
+	        		track((TrackedSocket) sock);
+	        		handler.handle(sock);
+	        	}
 	        }
 	    	catch (SocketTimeoutException ex) {
 	    		continue;
@@ -98,6 +255,58 @@ public class SocketServer {
         } catch (IOException e) {
             // ignore error
         }
+        synchronized (accepted) {
+        	for (Socket sock : accepted) {
+        		try {
+        			sock.close();
+        		} catch (IOException e) {
+        			// ignore error
+        		}
+        		release(sock.getInetAddress());
+        	}
+        	accepted.clear();
+        }
+    }
+
+    /**
+     * Remember an accepted socket so that stop() can close it, forgetting
+     * sockets the handler has closed since.
+     *
+     * @param sock Socket just accepted
+     */
+    private void track(TrackedSocket sock) {
+        synchronized (accepted) {
+        	sweep(0);
+        	accepted.add(sock);
+        }
+    }
+
+    /**
+     * Forget sockets the handler has closed, and close those that have been
+     * idle for longer than the idle timeout.
+     *
+     * @param now current time, or 0 to only forget closed sockets
+     */
+    private void sweep(long now) {
+        int timeout = idleTimeout;
+        synchronized (accepted) {
+        	Iterator<TrackedSocket> it = accepted.iterator();
+        	while (it.hasNext()) {
+        		TrackedSocket sock = it.next();
+        		if (!sock.isClosed() && now > 0 && timeout > 0 &&
+        			now - sock.lastActive > timeout) {
+        			try {
+        				sock.close();
+        			} catch (IOException e) {
+        				// ignore error
+        			}
+        		}
+        		if (sock.isClosed()) {
+        			it.remove();
+        			release(sock.getInetAddress());
+        		}
+        	}
+        }
     }
 
     /**
@@ -109,4 +318,73 @@ public class SocketServer {
         stopped = true;
     }
 
+    /**
+     * A ServerSocket that accepts TrackedSockets.
+     */
+    private static class TrackingServerSocket extends ServerSocket {
+
+        TrackingServerSocket() throws IOException {
+            super();
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            TrackedSocket sock = new TrackedSocket();
+            implAccept(sock);
+            return sock;
+        }
+    }
+
+    /**
+     * A Socket that notes when it last read or wrote anything.
+     */
+    private static class TrackedSocket extends Socket {
+
+        volatile long lastActive = System.currentTimeMillis();
+        private InputStream input;
+        private OutputStream output;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (input == null) {
+                input = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        lastActive = System.currentTimeMillis();
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        lastActive = System.currentTimeMillis();
+                        return n;
+                    }
+                };
+            }
+            return input;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (output == null) {
+                output = new FilterOutputStream(super.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        lastActive = System.currentTimeMillis();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        lastActive = System.currentTimeMillis();
+                    }
+                };
+            }
+            return output;
+        }
+    }
+
 }
@@ -4,15 +4,19 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadPool to ensure that none of it's methods are blocking.
+ * As a MessageHandler it serves requests an NIOSocketServer has read.
  */
-public class TPCClientHandler implements NetworkHandler {
+public class TPCClientHandler implements NetworkHandler, MessageHandler {
 
     private TPCMaster tpcMaster;
     private ThreadPool threadPool;
+    private int maxKeySize = KVServer.MAX_KEY_SIZE;
+    private int maxValueSize = KVServer.MAX_VAL_SIZE;
 
     /**
      * Constructs a TPCClientHandler with ThreadPool of a single thread.
@@ -24,14 +28,81 @@ public class TPCClientHandler implements NetworkHandler {
     }
 
     /**
-     * Constructs a TPCClientHandler with ThreadPool of a single thread.
+     * Constructs a TPCClientHandler with ThreadPool of thread equal to the
+     * number given as connections. Requests wait on slaves for up to
+     * TPCMaster.TIMEOUT, so with ThreadPool.UNBOUNDED a slow slave only
+     * holds up the requests that need it.
      *
      * @param tpcMaster TPCMaster to carry out requests
-     * @param connections number of threads in threadPool to service requests
+     * @param connections number of threads in threadPool to service requests,
+     *        or ThreadPool.UNBOUNDED to serve each connection on its own thread
      */
     public TPCClientHandler(TPCMaster tpcMaster, int connections) {
+        this(tpcMaster, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a TPCClientHandler that serves requests with a pool of the
+     * caller's choosing, such as a WorkStealingThreadPool.
+     *
+     * @param tpcMaster TPCMaster to carry out requests
+     * @param pool ThreadPool to service requests, which this handler then owns
+     */
+    public TPCClientHandler(TPCMaster tpcMaster, ThreadPool pool) {
         this.tpcMaster = tpcMaster;
-        this.threadPool = new ThreadPool(connections);
+        this.threadPool = pool;
+    }
+
+    /**
+     * Sets the longest key and value accepted from clients on this
+     * listener. Longer ones are rejected while the request is still being
+     * read, with ERROR_OVERSIZED_KEY or ERROR_OVERSIZED_VALUE. The defaults
+     * are KVServer.MAX_KEY_SIZE and KVServer.MAX_VAL_SIZE.
+     *
+     * @param maxKeySize most characters allowed in a key
+     * @param maxValueSize most characters allowed in a value
+     */
+    public void setSizeLimits(int maxKeySize, int maxValueSize) {
+        this.maxKeySize = maxKeySize;
+        this.maxValueSize = maxValueSize;
+    }
+
+    /**
+     * Bounds the client requests waiting for a thread. Each one may wait on
+     * the slaves for a while, so past a short queue a client is better off
+     * with ERROR_SERVER_BUSY than with a response after it has timed out.
+     * See ThreadPool.setQueueLimit() for the policies.
+     *
+     * @param capacity most jobs waiting at once, or 0 for no limit
+     * @param policy ThreadPool.BLOCK, REJECT, DROP_OLDEST or CALLER_RUNS
+     */
+    public void setQueueLimit(int capacity, int policy) {
+        threadPool.setQueueLimit(capacity, policy);
+    }
+
+    /**
+     * Lets the pool grow toward maxConnections threads while client requests
+     * wait longer than targetWaitMillis, as when slow slaves hold threads
+     * up, and shrink back after idleMillis without work. See
+     * ThreadPool.setElastic().
+     *
+     * @param maxConnections most threads the pool may grow to
+     * @param targetWaitMillis longest a request should wait for a thread
+     * @param idleMillis how long an extra thread may sit idle
+     */
+    public void setElasticPool(int maxConnections, int targetWaitMillis, int idleMillis) {
+        threadPool.setElastic(maxConnections, targetWaitMillis, idleMillis);
+    }
+
+    /**
+     * Get queueing and run-time figures for the pool serving client
+     * requests. Their run times include the time spent waiting on slaves.
+     * See ThreadPoolStats.
+     *
+     * @return live stats of the pool
+     */
+    public ThreadPoolStats getPoolStats() {
+        return threadPool.getStats();
     }
 
     /**
@@ -42,27 +113,134 @@ public class TPCClientHandler implements NetworkHandler {
      */
     @Override
     public void handle(Socket client) {
+        KVConnection conn = new KVConnection(client);
+        conn.setSizeLimits(maxKeySize, maxValueSize);
+        ClientHandler job = new ClientHandler(conn);
         try {
-        	threadPool.addJob(new ClientHandler(client));
+        	threadPool.addJob(job);
         }
         catch (InterruptedException ex) {        	
         }
+        catch (RejectedExecutionException ex) {
+        	job.reject();
+        }
     }
 
     /**
-     * Runnable class containing routine to service a request from the client.
+     * Creates a job to service a request that has already been read and
+     * enqueues that job in the thread pool. Ignore InterruptedExceptions.
+     *
+     * @param req request read from the client
+     * @param responder where the response goes
+     */
+    @Override
+    public void handle(KVMessage req, Responder responder) {
+        RequestHandler job = new RequestHandler(responder, req);
+        try {
+        	threadPool.addJob(job);
+        }
+        catch (InterruptedException ex) {
+        }
+        catch (RejectedExecutionException ex) {
+        	job.reject();
+        }
+    }
+
+    /**
+     * Runnable class containing routine to read a request from the client.
      */
-    private class ClientHandler implements Runnable {
+    private class ClientHandler implements ThreadPool.Rejectable {
 
-        private Socket client = null;
+        private KVConnection conn = null;
+        private boolean dispatched = false;
 
         /**
          * Construct a ClientHandler.
          *
-         * @param client Socket connected to client with the request
+         * @param conn connection to client with the request
          */
-        public ClientHandler(Socket client) {
-            this.client = client;
+        public ClientHandler(KVConnection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * Reads the next request from the client and services it. A request
+         * with a request ID is pipelined, so it is queued to be serviced by
+         * another thread while this one goes back to reading; pipelined
+         * requests may be answered in any order. A persistent connection is
+         * queued again for its next request.
+         */
+        @Override
+        public void run() {
+            int next = conn.waitForRequest(threadPool , dispatched);
+            dispatched = false;
+            if (next != KVConnection.REQUEST_READY) {
+            	conn.requeue(threadPool , this);
+            	return;
+            }
+            
+            KVMessage req = null;
+            try {
+            	req = conn.receive();
+            }
+            catch (KVException ex) {
+            	try {
+            		conn.send(ex.getKVMessage());
+            	}
+            	catch (KVException e) {
+            	}
+            	conn.requeue(threadPool , this);
+            	return;
+            }
+            
+            RequestHandler job = new RequestHandler(conn , req);
+            if (req.getId() != 0) {
+            	try {
+            		threadPool.addJob(job);
+            		dispatched = true;
+            	}
+            	catch (InterruptedException ex) {
+            		job.run();
+            	}
+            	catch (RejectedExecutionException ex) {
+            		job.reject();
+            	}
+            }
+            else {
+            	job.run();
+            }
+            conn.requeue(threadPool , this);
+        }
+
+        /**
+         * Turns the client away with ERROR_SERVER_BUSY. The request is read and
+         * answered off the calling thread, which may be the one accepting
+         * connections; see KVConnection.reject().
+         */
+        @Override
+        public void reject() {
+            conn.reject(KVConstants.ERROR_SERVER_BUSY);
+        }
+        
+    }
+
+    /**
+     * Runnable class containing routine to service a request from the client.
+     */
+    private class RequestHandler implements ThreadPool.Rejectable {
+
+        private Responder conn;
+        private KVMessage req;
+
+        /**
+         * Construct a RequestHandler.
+         *
+         * @param conn where the response to the client goes
+         * @param req request read from client
+         */
+        public RequestHandler(Responder conn, KVMessage req) {
+            this.conn = conn;
+            this.req = req;
         }
 
         /**
@@ -72,38 +250,55 @@ public class TPCClientHandler implements NetworkHandler {
          */
         @Override
         public void run() {
-        	KVMessage req = null;
             KVMessage resp = null;
             
             try {
-            	req = new KVMessage(client);
             	if (req.getMsgType().equals(KVConstants.PUT_REQ)) {
             		tpcMaster.handleTPCRequest(req , true);
             		resp = new KVMessage(KVConstants.RESP , KVConstants.SUCCESS);
             	}
             	else if (req.getMsgType().equals(KVConstants.GET_REQ)) {
-            		String value = tpcMaster.handleGet(req);
-            		resp = new KVMessage(KVConstants.RESP);
-            		resp.setKey(req.getKey());
-            		resp.setValue(value);
+            		resp = tpcMaster.handleGetWithLease(req);
             	}
-            	else if (req.getMsgType().equals(KVConstants.DEL_REQ)) {
+            	else if (req.getMsgType().equals(KVConstants.MULTIGET_REQ)) {
+            		resp = tpcMaster.handleMultiGet(req);
+            	}
+            	else if (req.getMsgType().equals(KVConstants.DEL_REQ) ||
+            			req.getMsgType().equals(KVConstants.PATCH_REQ)) {
             		tpcMaster.handleTPCRequest(req , false);
             		resp = new KVMessage(KVConstants.RESP , KVConstants.SUCCESS);
             	}
+            	else if (req.getMsgType().equals(KVConstants.TOPOLOGY)) {
+            		resp = new KVMessage(KVConstants.RESP , tpcMaster.getTopology());
+            	}
             }
             catch (KVException ex) {
-            	resp = ex.getKVMessage();
+            	resp = new KVMessage(ex.getKVMessage());
             }
             
             if (resp != null) {
+            	resp.setId(req.getId());
             	try {
-            		resp.sendMessage(client);
+            		conn.send(resp);
             	}
             	catch (KVException ex) {
             	}
             }
         }
+
+        /**
+         * Answers the request with ERROR_SERVER_BUSY instead of serving it.
+         */
+        @Override
+        public void reject() {
+            KVMessage resp = new KVMessage(KVConstants.RESP , KVConstants.ERROR_SERVER_BUSY);
+            resp.setId(req.getId());
+            try {
+            	conn.send(resp);
+            }
+            catch (KVException ex) {
+            }
+        }
         
     }
 
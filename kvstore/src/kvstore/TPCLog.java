@@ -116,6 +116,9 @@ public class TPCLog {
         		else if (op != null && op.getMsgType().equals(KVConstants.DEL_REQ)) {
         			kvServer.del(op.getKey());
         		}
+        		else if (op != null && op.getMsgType().equals(KVConstants.PATCH_REQ)) {
+        			kvServer.patch(op.getKey() , op.getOffset() , op.getLength() , op.getValue());
+        		}
         	}
         	op = entry; 
         }
@@ -2,8 +2,15 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
-import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -16,10 +23,26 @@ public class TPCMaster {
     public LinkedList<TPCSlaveInfo> slaves;
     private ReentrantLock lock;
     private Condition enoughSlaves;
+    private boolean slaveCompression = false;
+    private volatile int readLease = 0;
+    private Map<Integer, Long> leases = new ConcurrentHashMap<Integer, Long>();
+    private ConcurrentHashMap<Integer, AtomicInteger> leaseHolds = new ConcurrentHashMap<Integer, AtomicInteger>();
     
     public static final int TIMEOUT = 2000;
     public static final int BLOCK_TIME = 500;
 
+    /* threads that send the batches of a multiGet to each replica at once,
+     * shared by all masters */
+    private static final ExecutorService fanoutThreads =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TPCMaster-fanout");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
     /**
      * Creates TPCMaster, expecting numSlaves slave servers to eventually register
      *
@@ -45,10 +68,11 @@ public class TPCMaster {
      */
     public void registerSlave(TPCSlaveInfo slave) {
     	lock.lock();
+    	slave.setCompression(slaveCompression);
         synchronized(slaves) {
         	for (int i = 0; i < slaves.size(); i++) {
         		if (slaves.get(i).getSlaveID() == slave.getSlaveID()) {
-        			slaves.set(i , slave);
+        			slaves.set(i , slave).closeConnections();
         			break;
         		}
         		
@@ -69,6 +93,113 @@ public class TPCMaster {
         lock.unlock();
     }
 
+    /**
+     * Sets whether large values sent to slaves are compressed. Each value
+     * goes to two replicas, so on a slow network compressing once saves
+     * twice the bandwidth; on a fast one it mostly costs CPU. Off by default.
+     *
+     * @param compression true to compress messages to slaves that support it
+     */
+    public void setSlaveCompression(boolean compression) {
+        lock.lock();
+        try {
+            slaveCompression = compression;
+            synchronized(slaves) {
+                for (TPCSlaveInfo slave : slaves)
+                    slave.setCompression(compression);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the read lease granted with each value GET returns. While a
+     * lease on a key runs, the master holds back changes to it: a PUT, DEL
+     * or PATCH waits, before its first phase, for every lease granted on
+     * keys of the same master cache set to run out, and no new lease is
+     * granted on that set while it waits. A client may then serve the
+     * value from a near cache until its lease runs out without ever
+     * returning a value older than a completed write. The wait holds no
+     * lock, so writes to other sets go ahead meanwhile. Off (0) by default;
+     * long leases make writes to hot keys slow.
+     *
+     * @param millis length of each lease in milliseconds, or 0 for none
+     */
+    public void setReadLease(int millis) {
+        readLease = millis;
+    }
+
+    public int getReadLease() {
+        return readLease;
+    }
+
+    /**
+     * Note a lease granted on a key, unless a write to its set is waiting
+     * for the set's leases to run out. Caller holds the lock of the key's
+     * set in masterCache.
+     *
+     * @return length of the lease granted in milliseconds, 0 if leases are
+     *         off, or LEASE_REFUSED if a write to the set is waiting
+     */
+    private int grantLease(String key) {
+        int lease = readLease;
+        if (lease <= 0)
+            return 0;
+        Integer set = masterCache.getSetId(key);
+        AtomicInteger holds = leaseHolds.get(set);
+        if (holds != null && holds.get() > 0)
+            return KVConstants.LEASE_REFUSED;
+        long until = System.currentTimeMillis() + lease;
+        Long granted = leases.get(set);
+        if (granted == null || granted < until)
+            leases.put(set, until);
+        return lease;
+    }
+
+    /**
+     * Stop new leases on a key's set and wait until none granted on it is
+     * still running. Leases are granted under the lock of the set, so once
+     * the hold is noted under it no lease can be granted unseen; the wait
+     * itself holds no lock. Must be followed by releaseLeases().
+     */
+    private void waitForLeases(String key) {
+        Integer set = masterCache.getSetId(key);
+        AtomicInteger holds = leaseHolds.get(set);
+        if (holds == null) {
+            leaseHolds.putIfAbsent(set, new AtomicInteger());
+            holds = leaseHolds.get(set);
+        }
+        Long until;
+        Lock setLock = masterCache.getLock(key);
+        setLock.lock();
+        try {
+            holds.incrementAndGet();
+            until = leases.get(set);
+        }
+        finally {
+            setLock.unlock();
+        }
+        if (until == null)
+            return;
+        long left;
+        while ((left = until - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(left);
+            }
+            catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    /**
+     * Let leases on a key's set be granted again once a write to it is
+     * done.
+     */
+    private void releaseLeases(String key) {
+        leaseHolds.get(masterCache.getSetId(key)).decrementAndGet();
+    }
+
     /**
      * Converts Strings to 64-bit longs. Borrowed from http://goo.gl/le1o0W,
      * adapted from String.hashCode().
@@ -111,16 +242,28 @@ public class TPCMaster {
 
     
     public int findFirstReplicaIndex(long val) {
-    	assert(slaves.size() >= 2);
-    	int N = slaves.size() - 1;
-    	if (isLessThanEqualUnsigned(val , slaves.get(0).getSlaveID()) ||
-    		!isLessThanEqualUnsigned(val , slaves.get(N).getSlaveID()))
+    	return findFirstReplicaIndex(slaves , val);
+    }
+    
+    /**
+     * Find the index of the primary replica for a hash value in a ring of
+     * slaves sorted by slaveID, such as the one getTopology() describes.
+     *
+     * @param ring at least two slaves, in order of unsigned slaveID
+     * @param val hash of a key, from hashTo64bit()
+     * @return index in ring of the first replica
+     */
+    public static int findFirstReplicaIndex(List<TPCSlaveInfo> ring, long val) {
+    	assert(ring.size() >= 2);
+    	int N = ring.size() - 1;
+    	if (isLessThanEqualUnsigned(val , ring.get(0).getSlaveID()) ||
+    		!isLessThanEqualUnsigned(val , ring.get(N).getSlaveID()))
     		return 0;
     	
     	int l = 0 , r = N , mid;
     	while (l + 1 < r) {
     		mid = ((l + r) >> 1);
-    		if (!isLessThanEqualUnsigned(val , slaves.get(mid).getSlaveID()))
+    		if (!isLessThanEqualUnsigned(val , ring.get(mid).getSlaveID()))
     			l = mid;
     		else 
     			r = mid;
@@ -128,6 +271,29 @@ public class TPCMaster {
     	return r;
     }
     
+    /**
+     * Describe the ring of slaves, for clients that send GETs to the slaves
+     * themselves; see KVClient.setDirectReads(). A slave that re-registers
+     * may have moved, so clients fetch this again from time to time.
+     *
+     * @return "SlaveServerID@Hostname:Port" of each slave in ring order,
+     *         separated by commas, or "" until all slaves have registered
+     */
+    public String getTopology() {
+    	StringBuilder topology = new StringBuilder();
+        synchronized(slaves) {
+        	if (slaves.size() < numSlaves)
+        		return "";
+        	for (TPCSlaveInfo slave : slaves) {
+        		if (topology.length() > 0)
+        			topology.append(',');
+        		topology.append(slave.getSlaveID()).append('@').append(slave.getHostname())
+        			.append(':').append(slave.getPort());
+        	}
+        }
+        return topology.toString();
+    }
+
     /**
      * Find primary replica for a given key.
      *
@@ -157,11 +323,15 @@ public class TPCMaster {
      *
      * See the spec for details on the expected behavior.
      *
+     * A patchreq is forwarded to the slaves as-is, so only the delta crosses
+     * the network; since the master never sees the patched value, a committed
+     * patch invalidates the key in the master cache.
+     *
      * @param msg KVMessage corresponding to the transaction for this TPC request
      * @param isPutReq boolean to distinguish put and del requests
      * @throws KVException if the operation cannot be carried out for any reason
      */
-    public synchronized void handleTPCRequest(KVMessage msg, boolean isPutReq)
+    public void handleTPCRequest(KVMessage msg, boolean isPutReq)
             throws KVException {
     	// wait until all slaves register before servicing any requests
         if (slaves.size() < numSlaves) {
@@ -176,6 +346,22 @@ public class TPCMaster {
         	}
         }
         
+        // slaves vote on one transaction at a time, so leases are waited
+        // for before it starts rather than between its phases
+        waitForLeases(msg.getKey());
+        try {
+        	runTPCRequest(msg, isPutReq);
+        }
+        finally {
+        	releaseLeases(msg.getKey());
+        }
+    }
+
+    /**
+     * Run both phases of a 2PC operation; see handleTPCRequest().
+     */
+    private synchronized void runTPCRequest(KVMessage msg, boolean isPutReq)
+            throws KVException {
         Lock lock = masterCache.getLock(msg.getKey());
         String errMsg = null;
         try {
@@ -188,16 +374,11 @@ public class TPCMaster {
         	
         	boolean commit = true;
         	
-        	Socket sock;
         	KVMessage resp;
         	
         	for (int i = 0; i < 2; i++) {
-        		sock = null;
-        		resp = null;
         		try {
-        			sock = reps[i].connectHost(TIMEOUT);
-        			msg.sendMessage(sock);
-        			resp = new KVMessage(sock);
+        			resp = reps[i].sendRequest(msg , TIMEOUT);
         			if (!resp.getMsgType().equals(KVConstants.READY)) {
         				commit = false;
         				errMsg = resp.getMessage();
@@ -208,11 +389,6 @@ public class TPCMaster {
             		if (errMsg == null)
             			errMsg = ex.getKVMessage().getMessage();
         		}
-        		finally {
-        			if (sock != null) {
-        				reps[i].closeHost(sock);
-        			}
-        		}
         	}
         	
         	// phase 2
@@ -220,7 +396,9 @@ public class TPCMaster {
         	if (commit) {
         		decision = new KVMessage(KVConstants.COMMIT);
         		
-        		if (isPutReq)
+        		if (msg.getMsgType().equals(KVConstants.PATCH_REQ))
+        			masterCache.del(msg.getKey());
+        		else if (isPutReq)
         			masterCache.put(msg.getKey() , msg.getValue());
         		else
         			masterCache.del(msg.getKey());
@@ -233,23 +411,14 @@ public class TPCMaster {
         		int index;
         		index = (findFirstReplicaIndex(hashTo64bit(msg.getKey())) + i) % slaves.size();
         		for (;;) {
-        			sock = null;
-        			resp = null;
         			TPCSlaveInfo slave = slaves.get(index); // may not be the same object reps[i] due to failure
         			
         			try {
-        				sock = slave.connectHost(TIMEOUT);
-        				decision.sendMessage(sock);
-        				resp = new KVMessage(sock);
+        				resp = slave.sendRequest(decision , TIMEOUT);
         			}
         			catch (Exception ex) {
         				continue;
         			}
-        			finally {
-        				if (sock != null) {
-        					slave.closeHost(sock);
-        				}
-        			}
         			
         			if (resp.getMsgType().equals(KVConstants.ACK)) {
         				break;
@@ -289,6 +458,21 @@ public class TPCMaster {
      *         the value from either slave for any reason
      */
     public String handleGet(KVMessage msg) throws KVException {
+        return handleGetWithLease(msg).getValue();
+    }
+
+    /**
+     * Perform a GET as handleGet() does, and build the response to it. The
+     * response carries the read lease granted with the value, if any; see
+     * setReadLease(). While a write to the key's set waits for the leases
+     * on it to run out, the response carries LEASE_REFUSED instead, so the
+     * value is not cached past the write.
+     *
+     * @param msg KVMessage containing key to get
+     * @return response holding the key, its value and the lease granted
+     * @throws KVException as for handleGet()
+     */
+    public KVMessage handleGetWithLease(KVMessage msg) throws KVException {
     	// wait until all slaves register before servicing any requests
     	if (slaves.size() < numSlaves) {
         	lock.lock();
@@ -305,6 +489,7 @@ public class TPCMaster {
     	Lock lock = masterCache.getLock(msg.getKey());
     	String key = msg.getKey();
     	String value = null;
+    	int lease = 0;
     	
     	try {
     		lock.lock();
@@ -323,6 +508,7 @@ public class TPCMaster {
     		
     		if (value != null) {
     			masterCache.put(key , value);
+    			lease = grantLease(key);
     		}
     	}
     	finally {
@@ -333,18 +519,232 @@ public class TPCMaster {
     		throw new KVException(KVConstants.ERROR_NO_SUCH_KEY);
     	}
     	
-        return value;
+    	KVMessage resp = new KVMessage(KVConstants.RESP);
+    	resp.setKey(key);
+    	resp.setValue(value);
+    	resp.setLease(lease);
+        return resp;
+    }
+    
+    /**
+     * Perform a GET for each key of a multigetreq, as handleGetWithLease()
+     * does for one. The keys are split by their set in masterCache, and the
+     * sets are served all at once, each under its own lock alone, so a slow
+     * replica only holds up the sets whose keys it has. Within a set, the
+     * keys missing from masterCache are split by their first replica and
+     * each replica is sent one multigetreq for its keys, all replicas at
+     * once; the keys a replica did not have are then asked of their second
+     * replica the same way. A replica that does not take batches is asked
+     * for its keys one at a time.
+     *
+     * @param msg multigetreq with a GET for each key
+     * @return response with the answer to each GET, in the same order: the
+     *         key, its value and lease, or the key and ERROR_NO_SUCH_KEY
+     */
+    public KVMessage handleMultiGet(KVMessage msg) {
+    	// wait until all slaves register before servicing any requests
+    	if (slaves.size() < numSlaves) {
+        	lock.lock();
+        	try {
+        		enoughSlaves.await();
+        	}
+        	catch (Exception ex) {        		
+        	}
+        	finally {
+        		lock.unlock();
+        	}
+        }
+    	
+    	Map<Integer, List<String>> sets = new LinkedHashMap<Integer, List<String>>();
+    	for (KVMessage get : msg.getEntries()) {
+    		Integer set = masterCache.getSetId(get.getKey());
+    		List<String> keys = sets.get(set);
+    		if (keys == null) {
+    			keys = new ArrayList<String>();
+    			sets.put(set , keys);
+    		}
+    		if (!keys.contains(get.getKey()))
+    			keys.add(get.getKey());
+    	}
+    	List<Callable<Map<String, KVMessage>>> tasks = new ArrayList<Callable<Map<String, KVMessage>>>();
+    	for (final List<String> keys : sets.values()) {
+    		tasks.add(new Callable<Map<String, KVMessage>>() {
+    			@Override
+    			public Map<String, KVMessage> call() {
+    				return handleSetGet(keys);
+    			}
+    		});
+    	}
+    	Map<String, KVMessage> found = new HashMap<String, KVMessage>();
+    	for (Map<String, KVMessage> answers : runAll(tasks))
+    		found.putAll(answers);
+    	
+    	List<KVMessage> answers = new ArrayList<KVMessage>();
+    	for (KVMessage get : msg.getEntries()) {
+    		KVMessage answer = found.get(get.getKey());
+    		if (answer == null) {
+    			answer = new KVMessage(KVConstants.RESP , KVConstants.ERROR_NO_SUCH_KEY);
+    			answer.setKey(get.getKey());
+    		}
+    		answers.add(answer);
+    	}
+    	KVMessage resp = new KVMessage(KVConstants.RESP);
+    	resp.setEntries(answers);
+    	return resp;
+    }
+
+    /**
+     * Get keys that share a set of masterCache, holding the lock of that
+     * set alone; see handleMultiGet().
+     *
+     * @return the answer for each key that was found
+     */
+    private Map<String, KVMessage> handleSetGet(List<String> keys) {
+    	Map<String, KVMessage> answers = new HashMap<String, KVMessage>();
+    	Lock setLock = masterCache.getLock(keys.get(0));
+    	setLock.lock();
+    	try {
+    		Map<String, String> values = new HashMap<String, String>();
+    		Map<TPCSlaveInfo, List<String>> misses = new LinkedHashMap<TPCSlaveInfo, List<String>>();
+    		for (String key : keys) {
+    			String value = masterCache.get(key);
+    			if (value != null)
+    				values.put(key , value);
+    			else
+    				groupKey(misses , findFirstReplica(key) , key);
+    		}
+    		fetchAll(misses , values);
+    		
+    		Map<TPCSlaveInfo, List<String>> retries = new LinkedHashMap<TPCSlaveInfo, List<String>>();
+    		for (Map.Entry<TPCSlaveInfo, List<String>> group : misses.entrySet()) {
+    			for (String key : group.getValue()) {
+    				if (!values.containsKey(key))
+    					groupKey(retries , findSuccessor(group.getKey()) , key);
+    			}
+    		}
+    		fetchAll(retries , values);
+    		
+    		for (Map.Entry<String, String> entry : values.entrySet()) {
+    			masterCache.put(entry.getKey() , entry.getValue());
+    			KVMessage answer = new KVMessage(KVConstants.RESP);
+    			answer.setKey(entry.getKey());
+    			answer.setValue(entry.getValue());
+    			answer.setLease(grantLease(entry.getKey()));
+    			answers.put(entry.getKey() , answer);
+    		}
+    	}
+    	finally {
+    		setLock.unlock();
+    	}
+    	return answers;
+    }
+
+    private static void groupKey(Map<TPCSlaveInfo, List<String>> groups, TPCSlaveInfo slave, String key) {
+    	List<String> keys = groups.get(slave);
+    	if (keys == null) {
+    		keys = new ArrayList<String>();
+    		groups.put(slave , keys);
+    	}
+    	keys.add(key);
+    }
+
+    /**
+     * Ask each slave for its group of keys, all of them at once, and note
+     * the values found in values.
+     */
+    private void fetchAll(Map<TPCSlaveInfo, List<String>> groups, Map<String, String> values) {
+    	List<Callable<Map<String, String>>> tasks = new ArrayList<Callable<Map<String, String>>>();
+    	for (final Map.Entry<TPCSlaveInfo, List<String>> group : groups.entrySet()) {
+    		tasks.add(new Callable<Map<String, String>>() {
+    			@Override
+    			public Map<String, String> call() {
+    				return fetchBySlave(group.getKey() , group.getValue());
+    			}
+    		});
+    	}
+    	for (Map<String, String> found : runAll(tasks))
+    		values.putAll(found);
+    }
+
+    /**
+     * Run tasks all at once, the first on the calling thread and the rest
+     * on fanoutThreads, and wait for them.
+     *
+     * @return the result of each task that finished without an exception
+     */
+    private static <T> List<T> runAll(List<Callable<T>> tasks) {
+    	List<T> results = new ArrayList<T>();
+    	List<Future<T>> sent = new ArrayList<Future<T>>();
+    	for (int i = 1; i < tasks.size(); i++)
+    		sent.add(fanoutThreads.submit(tasks.get(i)));
+    	if (!tasks.isEmpty()) {
+    		try {
+    			results.add(tasks.get(0).call());
+    		}
+    		catch (Exception ex) {
+    		}
+    	}
+    	for (Future<T> result : sent) {
+    		try {
+    			results.add(result.get());
+    		}
+    		catch (InterruptedException ex) {
+    		}
+    		catch (ExecutionException ex) {
+    		}
+    	}
+    	return results;
+    }
+
+    /**
+     * Ask a slave for many keys with one multigetreq, or one key at a time
+     * if the slave does not take batches.
+     *
+     * @return value of each key the slave has
+     */
+    private Map<String, String> fetchBySlave(TPCSlaveInfo slave, List<String> keys) {
+    	Map<String, String> found = new HashMap<String, String>();
+    	List<KVMessage> gets = new ArrayList<KVMessage>();
+    	for (String key : keys) {
+    		KVMessage get = new KVMessage(KVConstants.GET_REQ);
+    		get.setKey(key);
+    		gets.add(get);
+    	}
+    	KVMessage batch = new KVMessage(KVConstants.MULTIGET_REQ);
+    	batch.setEntries(gets);
+    	
+    	boolean batched;
+    	try {
+    		KVMessage resp = slave.sendRequest(batch , TIMEOUT);
+    		batched = resp.getEntries() != null && resp.getEntries().size() == gets.size();
+    		for (int i = 0; batched && i < gets.size(); i++) {
+    			String value = resp.getEntries().get(i).getValue();
+    			if (value != null && value.length() > 0)
+    				found.put(keys.get(i) , value);
+    		}
+    	}
+    	catch (KVException ex) {
+    		// a slave that only speaks XML cannot be sent a batch; any other
+    		// failure would fail each key too
+    		batched = !KVConstants.ERROR_INVALID_FORMAT.equals(ex.getKVMessage().getMessage());
+    	}
+    	
+    	if (!batched) {
+    		for (KVMessage get : gets) {
+    			String value = handleGetBySlave(get , slave);
+    			if (value != null)
+    				found.put(get.getKey() , value);
+    		}
+    	}
+    	return found;
     }
     
     public String handleGetBySlave(KVMessage msg , TPCSlaveInfo slave) {
     	String value = null;
-    	Socket sock = null;
     	KVMessage resp = null;
     	
     	try {
-    		sock = slave.connectHost(TIMEOUT);
-    		msg.sendMessage(sock);
-    		resp = new KVMessage(sock);
+    		resp = slave.sendRequest(msg , TIMEOUT);
     		
     		if (resp.getMsgType().equals(KVConstants.RESP) && resp.getValue() != null &&
     			resp.getValue().length() > 0)
@@ -352,11 +752,6 @@ public class TPCMaster {
     	}
     	catch (Exception ex) {    		
     	}
-    	finally {
-    		if (sock != null) {
-    			slave.closeHost(sock);
-    		}
-    	}
     	return value;
     }
 
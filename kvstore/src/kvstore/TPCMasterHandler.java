@@ -2,18 +2,45 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
-import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 /**
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
+ *
+ * Requests are served from priority lanes so that phase-2 decisions, which
+ * hold up the master until every slave acknowledges them, never wait behind
+ * a backlog of reads: COMMIT and ABORT go in DECISION_LANE, phase-1 votes on
+ * writes in WRITE_LANE and GETs in READ_LANE. As a MessageHandler it serves
+ * requests an NIOSocketServer has read, which reaches each request as soon
+ * as it arrives; connections served on threads of the pool are looked at
+ * promptly right after answering a request, and kept waiting for the
+ * decision after a READY vote for up to DECISION_WAIT_MILLISECONDS, so it is
+ * not read behind the reads; otherwise they wait their turn with the reads.
  */
-public class TPCMasterHandler implements NetworkHandler {
+public class TPCMasterHandler implements NetworkHandler, MessageHandler {
+
+    /* lanes of the pool; see ThreadPool.setPriorityLanes() */
+    public static final int DECISION_LANE = 0;
+    public static final int WRITE_LANE = 1;
+    public static final int READ_LANE = 2;
+
+    /* default lane weights: decisions first, then four votes to each read */
+    public static final int DECISION_WEIGHT = ThreadPool.STRICT;
+    public static final int WRITE_WEIGHT = 4;
+    public static final int READ_WEIGHT = 1;
+
+    /* longest a connection is held for the decision after a READY vote */
+    public static final int DECISION_WAIT_MILLISECONDS = 1000;
 
     private long slaveID;
     private KVServer kvServer;
     private TPCLog tpcLog;
     private ThreadPool threadpool;
+    private int maxKeySize = KVServer.MAX_KEY_SIZE;
+    private int maxValueSize = KVServer.MAX_VAL_SIZE;
 
     /**
      * Constructs a TPCMasterHandler with one connection in its ThreadPool
@@ -33,13 +60,29 @@ public class TPCMasterHandler implements NetworkHandler {
      * @param slaveID the ID for this slave server
      * @param kvServer KVServer for this slave
      * @param log the log for this slave
-     * @param connections the number of connections in this slave's ThreadPool
+     * @param connections the number of connections in this slave's ThreadPool,
+     *        or ThreadPool.UNBOUNDED to serve each connection on its own thread
      */
     public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, int connections) {
         this.slaveID = slaveID;
         this.kvServer = kvServer;
         this.tpcLog = log;
         this.threadpool = new ThreadPool(connections);
+        threadpool.setPriorityLanes(DECISION_WEIGHT, WRITE_WEIGHT, READ_WEIGHT);
+    }
+
+    /**
+     * Sets the longest key and value accepted from the master on this
+     * listener. Longer ones are rejected while the request is still being
+     * read, with ERROR_OVERSIZED_KEY or ERROR_OVERSIZED_VALUE. The defaults
+     * are KVServer.MAX_KEY_SIZE and KVServer.MAX_VAL_SIZE.
+     *
+     * @param maxKeySize most characters allowed in a key
+     * @param maxValueSize most characters allowed in a value
+     */
+    public void setSizeLimits(int maxKeySize, int maxValueSize) {
+        this.maxKeySize = maxKeySize;
+        this.maxValueSize = maxValueSize;
     }
 
     /**
@@ -58,38 +101,70 @@ public class TPCMasterHandler implements NetworkHandler {
             throws KVException {
         String regInfo = slaveID + "@" + server.getHostname() + ":" + server.getPort();
         KVMessage reg = new KVMessage(KVConstants.REGISTER , regInfo);
-        Socket sock = null;
-        
+        // registration goes through an endpoint so it speaks the same
+        // negotiated wire format, with compression, as the rest of 2PC
+        KVEndpoint master = new KVEndpoint(masterHostname, 9090);
         try {
-        	sock = new Socket(masterHostname , 9090);
-        }
-        catch (IOException ex) {
-    		throw new KVException(KVConstants.ERROR_COULD_NOT_CONNECT);
-    	}
-    	catch (Exception ex) {
-    		throw new KVException(KVConstants.ERROR_COULD_NOT_CREATE_SOCKET);
-    	}
-        
-        try {
-        	reg.sendMessage(sock);
-        	KVMessage resp = new KVMessage(sock);
-        	if (!resp.getMsgType().equals(KVConstants.RESP) ||
-        		!resp.getMessage().equals("Successfully registered " + regInfo))
-        		throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-        }
-        catch (Exception ex) {
-        	throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-        }
-        finally {
-        	try {
-        		if (sock != null)
-        			sock.close();
-        	}
-        	catch (Exception ex) {        		
-        	}
+            KVMessage resp = master.sendRequest(reg, TIMEOUT_MILLISECONDS);
+            if (!RESP.equals(resp.getMsgType()) ||
+                !("Successfully registered " + regInfo).equals(resp.getMessage()))
+                throw new KVException(ERROR_INVALID_FORMAT);
+        } finally {
+            master.closeIdle();
         }
     }
 
+    /**
+     * Bounds the messages from the master waiting for a thread. See
+     * ThreadPool.setQueueLimit() for the policies; connections turned away are
+     * closed unanswered, which the master retries or counts as a vote to
+     * abort, since an error reply could be mistaken for the answer to a
+     * decision.
+     *
+     * @param capacity most jobs waiting at once, or 0 for no limit
+     * @param policy ThreadPool.BLOCK, REJECT, DROP_OLDEST or CALLER_RUNS
+     */
+    public void setQueueLimit(int capacity, int policy) {
+        threadpool.setQueueLimit(capacity, policy);
+    }
+
+    /**
+     * Sets how threads are shared between the lanes of this slave's pool.
+     * See ThreadPool.setPriorityLanes(); the defaults are DECISION_WEIGHT,
+     * WRITE_WEIGHT and READ_WEIGHT. Must be called before the slave starts
+     * serving.
+     *
+     * @param decisions weight of DECISION_LANE, or ThreadPool.STRICT
+     * @param writes weight of WRITE_LANE, or ThreadPool.STRICT
+     * @param reads weight of READ_LANE, or ThreadPool.STRICT
+     */
+    public void setLaneWeights(int decisions, int writes, int reads) {
+        threadpool.setPriorityLanes(decisions, writes, reads);
+    }
+
+    /**
+     * Lets this slave's pool grow toward maxConnections threads while
+     * messages from the master wait longer than targetWaitMillis, and
+     * shrink back after idleMillis without work. See ThreadPool.setElastic().
+     *
+     * @param maxConnections most threads the pool may grow to
+     * @param targetWaitMillis longest a message should wait for a thread
+     * @param idleMillis how long an extra thread may sit idle
+     */
+    public void setElasticPool(int maxConnections, int targetWaitMillis, int idleMillis) {
+        threadpool.setElastic(maxConnections, targetWaitMillis, idleMillis);
+    }
+
+    /**
+     * Get queueing and run-time figures for the pool serving messages from
+     * the master. See ThreadPoolStats; waits are also kept per lane.
+     *
+     * @return live stats of the pool
+     */
+    public ThreadPoolStats getPoolStats() {
+        return threadpool.getStats();
+    }
+
     /**
      * Creates a job to service the request on a socket and enqueues that job
      * in the thread pool. Ignore any InterruptedExceptions.
@@ -98,27 +173,183 @@ public class TPCMasterHandler implements NetworkHandler {
      */
     @Override
     public void handle(Socket master) {
+        KVConnection conn = new KVConnection(master);
+        conn.setSizeLimits(maxKeySize, maxValueSize);
+        MasterHandler job = new MasterHandler(conn);
         try {
-        	threadpool.addJob(new MasterHandler(master));
+        	threadpool.addJob(job);
         }
         catch (InterruptedException ex) {        	
         }
+        catch (RejectedExecutionException ex) {
+        	job.reject();
+        }
     }
 
     /**
-     * Runnable class containing routine to service a message from the master.
+     * Creates a job to service a message that has already been read and
+     * enqueues it in the lane for its type.
+     *
+     * @param req message read from the master
+     * @param responder where the response goes
      */
-    private class MasterHandler implements Runnable {
+    @Override
+    public void handle(KVMessage req, Responder responder) {
+        RequestHandler job = new RequestHandler(responder, req, null);
+        try {
+        	threadpool.addJob(job);
+        }
+        catch (InterruptedException ex) {
+        }
+        catch (RejectedExecutionException ex) {
+        	job.reject();
+        }
+    }
 
-        private Socket master;
+    /**
+     * Get the lane a message from the master is served in.
+     *
+     * @param req message from the master
+     * @return DECISION_LANE, WRITE_LANE or READ_LANE
+     */
+    static int laneOf(KVMessage req) {
+        String type = req.getMsgType();
+        if (KVConstants.COMMIT.equals(type) || KVConstants.ABORT.equals(type))
+        	return DECISION_LANE;
+        if (KVConstants.GET_REQ.equals(type) || KVConstants.MULTIGET_REQ.equals(type))
+        	return READ_LANE;
+        return WRITE_LANE;
+    }
+
+    /**
+     * Runnable class with routine to read a message from the master.
+     */
+    private class MasterHandler implements ThreadPool.Rejectable, ThreadPool.Prioritized {
+
+        private KVConnection conn;
+        private boolean prompt = true;
+        private long votedAt = 0;
 
         /**
          * Construct a MasterHandler.
          *
-         * @param master Socket connected to master with the message
+         * @param conn connection to master with the message
+         */
+        public MasterHandler(KVConnection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * A new connection, or one that has just been answered, is looked at
+         * ahead of queued work: the master is likely to send on it again
+         * soon. So is one that has voted READY and not yet read the
+         * decision. One with nothing to read waits its turn with the reads.
+         */
+        @Override
+        public int getLane() {
+            return (prompt || votedAt != 0) ? DECISION_LANE : READ_LANE;
+        }
+
+        /**
+         * Reads the next message from the master and queues a job to serve
+         * it in the lane for its type, or serves it at once if it is a
+         * decision. A message that is too large to read
+         * is voted down at once. The master keeps connections open across
+         * requests, so a persistent connection is queued again once the
+         * message has been answered.
+         */
+        @Override
+        public void run() {
+            boolean wasPrompt = prompt;
+            prompt = false;
+            if (votedAt != 0 &&
+            	System.currentTimeMillis() - votedAt >= DECISION_WAIT_MILLISECONDS)
+            	votedAt = 0;
+            // after a READY vote the decision is due: wait a slice for it
+            // rather than yield, and stay in DECISION_LANE if it is late
+            boolean yieldAtOnce = wasPrompt && votedAt == 0;
+            if (conn.waitForRequest(threadpool , yieldAtOnce) != KVConnection.REQUEST_READY) {
+            	conn.requeue(threadpool , this);
+            	return;
+            }
+            votedAt = 0;
+            KVMessage req;
+            try {
+            	req = conn.receive();
+            }
+            catch (KVException ex) {
+            	String error = ex.getKVMessage().getMessage();
+            	if (error.equals(KVConstants.ERROR_OVERSIZED_KEY) ||
+            		error.equals(KVConstants.ERROR_OVERSIZED_VALUE)) {
+            		// rejected while reading; vote no without logging it
+            		KVMessage resp = new KVMessage(KVConstants.ABORT , error);
+            		resp.setId(ex.getKVMessage().getId());
+            		try {
+            			conn.send(resp);
+            		}
+            		catch (KVException e) {
+            		}
+            	}
+            	conn.requeue(threadpool , this);
+            	return;
+            }
+            catch (Exception ex) {
+            	conn.requeue(threadpool , this);
+            	return;
+            }
+            RequestHandler job = new RequestHandler(conn , req , this);
+            if (laneOf(req) == DECISION_LANE) {
+            	// nothing could be queued ahead of it: serve it here
+            	job.run();
+            	return;
+            }
+            try {
+            	threadpool.addJob(job);
+            }
+            catch (InterruptedException ex) {
+            	conn.close();
+            }
+            catch (RejectedExecutionException ex) {
+            	conn.close();
+            }
+        }
+
+        /**
+         * Closes the connection unanswered.
+         */
+        @Override
+        public void reject() {
+            conn.close();
+        }
+
+    }
+
+    /**
+     * Runnable class containing routine to service a message from the master.
+     */
+    private class RequestHandler implements ThreadPool.Rejectable, ThreadPool.Prioritized {
+
+        private Responder master;
+        private KVMessage req;
+        private MasterHandler reader;
+
+        /**
+         * Construct a RequestHandler.
+         *
+         * @param master where the response to the master goes
+         * @param req message read from the master
+         * @param reader MasterHandler to queue again for the next message
+         *        once this one is answered, or null if there is none
          */
-        public MasterHandler(Socket master) {
+        public RequestHandler(Responder master, KVMessage req, MasterHandler reader) {
             this.master = master;
+            this.req = req;
+            this.reader = reader;
+        }
+
+        @Override
+        public int getLane() {
+            return laneOf(req);
         }
 
         /**
@@ -129,12 +360,9 @@ public class TPCMasterHandler implements NetworkHandler {
          */
         @Override
         public void run() {
-            KVMessage req = null;
             KVMessage resp = null;
             
             try {
-            	req = new KVMessage(master);
-            	
             	if (req.getMsgType().equals(KVConstants.PUT_REQ)) {
             		if (req.getKey() == null || req.getKey().length() == 0)
             			resp = new KVMessage(KVConstants.ABORT , KVConstants.ERROR_INVALID_KEY);
@@ -157,20 +385,37 @@ public class TPCMasterHandler implements NetworkHandler {
             		else
             			resp = new KVMessage(KVConstants.READY);
             	}
-            	else if (req.getMsgType().equals(KVConstants.GET_REQ)) {
+            	else if (req.getMsgType().equals(KVConstants.PATCH_REQ)) {
             		if (req.getKey() == null || req.getKey().length() == 0)
-            			resp = new KVMessage(KVConstants.RESP , KVConstants.ERROR_INVALID_KEY);
+            			resp = new KVMessage(KVConstants.ABORT , KVConstants.ERROR_INVALID_KEY);
             		else if (req.getKey().length() > KVServer.MAX_KEY_SIZE)
-            			resp = new KVMessage(KVConstants.RESP , KVConstants.ERROR_OVERSIZED_KEY);
+            			resp = new KVMessage(KVConstants.ABORT , KVConstants.ERROR_OVERSIZED_KEY);
             		else if (!kvServer.hasKey(req.getKey()))
-            			resp = new KVMessage(KVConstants.RESP , KVConstants.ERROR_NO_SUCH_KEY);
+            			resp = new KVMessage(KVConstants.ABORT , KVConstants.ERROR_NO_SUCH_KEY);
             		else {
-            			String value = kvServer.get(req.getKey());
-            			resp = new KVMessage(KVConstants.RESP);
-            			resp.setKey(req.getKey());
-            			resp.setValue(value);
+            			try {
+            				KVServer.applyPatch(kvServer.get(req.getKey()) , req.getOffset() ,
+            						req.getLength() , req.getValue());
+            				resp = new KVMessage(KVConstants.READY);
+            			}
+            			catch (KVException ex) {
+            				resp = new KVMessage(KVConstants.ABORT , ex.getKVMessage().getMessage());
+            			}
             		}
             	}
+            	else if (req.getMsgType().equals(KVConstants.GET_REQ)) {
+            		resp = answerGet(req.getKey());
+            	}
+            	else if (req.getMsgType().equals(KVConstants.MULTIGET_REQ)) {
+            		List<KVMessage> answers = new ArrayList<KVMessage>();
+            		for (KVMessage get : req.getEntries()) {
+            			KVMessage answer = answerGet(get.getKey());
+            			answer.setKey(get.getKey());
+            			answers.add(answer);
+            		}
+            		resp = new KVMessage(KVConstants.RESP);
+            		resp.setEntries(answers);
+            	}
             	else if (req.getMsgType().equals(KVConstants.COMMIT)) {
             		resp = new KVMessage(KVConstants.ACK);
             		
@@ -182,23 +427,77 @@ public class TPCMasterHandler implements NetworkHandler {
             		else if (lastMsg.getMsgType().equals(KVConstants.DEL_REQ)) {
             			kvServer.del(lastMsg.getKey());
             		}
+            		else if (lastMsg.getMsgType().equals(KVConstants.PATCH_REQ)) {
+            			kvServer.patch(lastMsg.getKey() , lastMsg.getOffset() ,
+            					lastMsg.getLength() , lastMsg.getValue());
+            		}
             	}
             	else if (req.getMsgType().equals(KVConstants.ABORT)) {
             		resp = new KVMessage(KVConstants.ACK);
             	}
             }
             catch (Exception ex) {
+            	// nothing is logged or answered; the master times out
+            	requeueReader();
             	return;
             }
             
-            tpcLog.appendAndFlush(req);
+            // a GET changes nothing, and COMMIT applies the last entry logged
+            if (laneOf(req) != READ_LANE)
+            	tpcLog.appendAndFlush(req);
             if (resp != null) {
+            	resp.setId(req.getId());
+            	if (reader != null && resp.getMsgType().equals(KVConstants.READY))
+            		reader.votedAt = System.currentTimeMillis();
             	try {
-            		resp.sendMessage(master);
+            		master.send(resp);
             	}
             	catch (Exception ex) {            		
             	}
             }
+            requeueReader();
+        }
+
+        /**
+         * Answers a GET for key from this slave's store.
+         *
+         * @param key key asked for
+         * @return resp with the key and its value, or with why there is none
+         * @throws KVException if the store cannot be read
+         */
+        private KVMessage answerGet(String key) throws KVException {
+            KVMessage resp;
+            if (key == null || key.length() == 0)
+            	resp = new KVMessage(KVConstants.RESP , KVConstants.ERROR_INVALID_KEY);
+            else if (key.length() > KVServer.MAX_KEY_SIZE)
+            	resp = new KVMessage(KVConstants.RESP , KVConstants.ERROR_OVERSIZED_KEY);
+            else if (!kvServer.hasKey(key))
+            	resp = new KVMessage(KVConstants.RESP , KVConstants.ERROR_NO_SUCH_KEY);
+            else {
+            	String value = kvServer.get(key);
+            	resp = new KVMessage(KVConstants.RESP);
+            	resp.setKey(key);
+            	resp.setValue(value);
+            }
+            return resp;
+        }
+
+        private void requeueReader() {
+            if (reader != null) {
+            	reader.prompt = true;
+            	reader.conn.requeue(threadpool , reader);
+            }
+        }
+
+        /**
+         * Closes the connection unanswered. A message read by an
+         * NIOSocketServer is left unanswered; the master retries a decision
+         * and counts a missing vote as a vote to abort.
+         */
+        @Override
+        public void reject() {
+            if (reader != null)
+            	reader.reject();
         }
 
     }
@@ -4,6 +4,7 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
@@ -28,13 +29,37 @@ public class TPCRegistrationHandler implements NetworkHandler {
      * number given as connections.
      *
      * @param master TPCMaster to carry out requests
-     * @param connections number of threads in threadPool to service requests
+     * @param connections number of threads in threadPool to service requests,
+     *        or ThreadPool.UNBOUNDED to serve each connection on its own thread
      */
     public TPCRegistrationHandler(TPCMaster master, int connections) {
-        this.threadpool = new ThreadPool(connections);
+        this(master, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a TPCRegistrationHandler that serves registrations with a
+     * pool of the caller's choosing, such as a WorkStealingThreadPool.
+     *
+     * @param master TPCMaster to register slaves with
+     * @param pool ThreadPool to service requests, which this handler then owns
+     */
+    public TPCRegistrationHandler(TPCMaster master, ThreadPool pool) {
+        this.threadpool = pool;
         this.master = master;
     }
 
+    /**
+     * Bounds the registrations waiting for a thread. See
+     * ThreadPool.setQueueLimit() for the policies; slaves turned away are
+     * answered with ERROR_SERVER_BUSY.
+     *
+     * @param capacity most jobs waiting at once, or 0 for no limit
+     * @param policy ThreadPool.BLOCK, REJECT, DROP_OLDEST or CALLER_RUNS
+     */
+    public void setQueueLimit(int capacity, int policy) {
+        threadpool.setQueueLimit(capacity, policy);
+    }
+
     /**
      * Creates a job to service the request on a socket and enqueues that job
      * in the thread pool. Ignore any InterruptedExceptions.
@@ -43,22 +68,26 @@ public class TPCRegistrationHandler implements NetworkHandler {
      */
     @Override
     public void handle(Socket slave) {
+        RegistrationHandler job = new RegistrationHandler(new KVConnection(slave));
         try {
-        	threadpool.addJob(new RegistrationHandler(slave));
+        	threadpool.addJob(job);
         }
         catch (InterruptedException ex) {        	
         }
+        catch (RejectedExecutionException ex) {
+        	job.reject();
+        }
     }
 
     /**
      * Runnable class containing routine to service a registration request from
      * a slave.
      */
-    public class RegistrationHandler implements Runnable {
+    public class RegistrationHandler implements ThreadPool.Rejectable {
 
-        public Socket slave = null;
+        public KVConnection slave = null;
 
-        public RegistrationHandler(Socket slave) {
+        public RegistrationHandler(KVConnection slave) {
             this.slave = slave;
         }
 
@@ -70,10 +99,15 @@ public class TPCRegistrationHandler implements NetworkHandler {
          */
         @Override
         public void run() {
+            KVConnection conn = slave;
+            if (conn.waitForRequest(threadpool) != KVConnection.REQUEST_READY) {
+            	conn.requeue(threadpool , this);
+            	return;
+            }
             KVMessage resp = null;
             KVMessage reg = null;
             try {
-            	reg = new KVMessage(slave);
+            	reg = conn.receive();
             	if (reg.getMsgType().equals(KVConstants.REGISTER)) {
             		String regInfo = reg.getMessage();
             		master.registerSlave(new TPCSlaveInfo(regInfo));
@@ -89,10 +123,21 @@ public class TPCRegistrationHandler implements NetworkHandler {
             
 
             try {
-            	resp.sendMessage(slave);
+            	conn.send(resp);
             }
             catch (KVException ex) {
             }
+            conn.requeue(threadpool , this);
+        }
+
+        /**
+         * Turns the slave away with ERROR_SERVER_BUSY. The request is read and
+         * answered off the calling thread, which may be the one accepting
+         * connections; see KVConnection.reject().
+         */
+        @Override
+        public void reject() {
+            slave.reject(KVConstants.ERROR_SERVER_BUSY);
         }
     }
 }
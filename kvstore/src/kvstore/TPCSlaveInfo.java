@@ -14,6 +14,7 @@ public class TPCSlaveInfo {
     private long slaveID;
     private String hostname;
     private int port;
+    private KVEndpoint endpoint;
 
     /**
      * Construct a TPCSlaveInfo to represent a slave server.
@@ -36,6 +37,13 @@ public class TPCSlaveInfo {
         catch (NumberFormatException ex) {
         	throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         }
+        
+        endpoint = new KVEndpoint(hostname , port) {
+        	@Override
+        	protected Socket connect(int timeout) throws KVException {
+        		return connectHost(timeout);
+        	}
+        };
     }
 
     public long getSlaveID() {
@@ -77,6 +85,37 @@ public class TPCSlaveInfo {
         return sock;
     }
 
+    /**
+     * Send a request to this slave and wait for the response. Connections
+     * to the slave are kept open and reused once it has answered in the
+     * binary format, and requests fall back to XML if the slave only speaks
+     * XML; see KVEndpoint.
+     *
+     * @param  msg KVMessage to send
+     * @param  timeout connect and receive timeout, in milliseconds
+     * @return the response from the slave
+     * @throws KVException if the request could not be sent or answered
+     */
+    public KVMessage sendRequest(KVMessage msg, int timeout) throws KVException {
+        return endpoint.sendRequest(msg , timeout);
+    }
+
+    /**
+     * Sets whether large messages to this slave are compressed.
+     *
+     * @param compression true to compress when the slave supports it
+     */
+    public void setCompression(boolean compression) {
+        endpoint.setCompression(compression);
+    }
+
+    /**
+     * Closes any connections kept open to this slave.
+     */
+    public void closeConnections() {
+        endpoint.closeIdle();
+    }
+
     /**
      * Closes a socket.
      * Best effort, ignores error since the response has already been received.
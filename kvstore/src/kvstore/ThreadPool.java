@@ -1,26 +1,112 @@
 package kvstore;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 
 public class ThreadPool {
 
+    /**
+     * Pool size that gives every job a thread of its own as soon as it is
+     * added. A handler built with it serves each connection on its own
+     * thread, so requests blocked on slow I/O never hold up others.
+     */
+    public static final int UNBOUNDED = 0;
+
+    /* how long an idle thread of an UNBOUNDED pool waits for another job */
+    public static final int KEEP_ALIVE_MILLISECONDS = 60 * 1000;
+
+    /* what addJob() does when the queue is full; see setQueueLimit() */
+    public static final int BLOCK = 0;
+    public static final int REJECT = 1;
+    public static final int DROP_OLDEST = 2;
+    public static final int CALLER_RUNS = 3;
+
+    /**
+     * A job that can be told it will not be run, so that it can answer its
+     * client with an error instead of leaving it waiting.
+     */
+    public interface Rejectable extends Runnable {
+
+        /**
+         * Called instead of run() when the job is dropped from a full queue.
+         */
+        public void reject();
+    }
+
+    /**
+     * A job that says which priority lane it should wait in; see
+     * setPriorityLanes(). Jobs that are not Prioritized go in the last lane.
+     */
+    public interface Prioritized extends Runnable {
+
+        /**
+         * Called by addJob() to place the job.
+         *
+         * @return lane to queue the job in, 0 being the first
+         */
+        public int getLane();
+    }
+
+    /* weight of a lane served ahead of every weighted lane; see setPriorityLanes() */
+    public static final int STRICT = 0;
+
+    /* most recent resize decisions kept for getResizeHistory() */
+    public static final int RESIZE_HISTORY = 32;
+
     /* Array of threads in the threadpool */
     private Thread threads[];
-    LinkedList<Runnable> jobs;
-    ReentrantLock addLock , getLock;
+    private List<LinkedList<Job>> lanes;
+    private int[] weights = {STRICT};
+    private int queued = 0;
+    private int turn = 0;
+    private int taken = 0;
+    ReentrantLock lock;
+    Condition notEmpty;
+    private Condition notFull;
+    private Condition terminated;
+    private boolean unbounded;
+    private volatile boolean shutdown = false;
+    private int idle = 0;
+    private int live = 0;
+    private int capacity = 0;
+    private int policy = BLOCK;
+    private int coreSize;
+    private int maxSize;
+    private long targetWait;
+    private long idleTimeout;
+    private int starting = 0;
+    private long grown = 0;
+    private long shrunk = 0;
+    private LinkedList<String> resizes = new LinkedList<String>();
+    final ThreadPoolStats stats = new ThreadPoolStats();
+
+    /* set on threads whose jobs are exempt from the queue limit */
+    private final ThreadLocal<Boolean> inside = new ThreadLocal<Boolean>();
 
     /**
      * Constructs a Threadpool with a certain number of threads.
      *
-     * @param size number of threads in the thread pool
+     * @param size number of threads in the thread pool, or UNBOUNDED to
+     *        start threads as jobs need them and let idle ones exit
      */
     public ThreadPool(int size) {
         threads = new Thread[size];
-        jobs = new LinkedList<Runnable>();
-        addLock = new ReentrantLock();
-        getLock = new ReentrantLock();
+        lanes = new ArrayList<LinkedList<Job>>();
+        lanes.add(new LinkedList<Job>());
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        notFull = lock.newCondition();
+        terminated = lock.newCondition();
+        unbounded = (size == UNBOUNDED);
+        live = size;
+        coreSize = size;
+        maxSize = size;
         
         for (int i = 0; i < size; i++)
         	threads[i] = new WorkerThread(this);
@@ -28,34 +114,505 @@ public class ThreadPool {
         	threads[i].start();
     }
 
+    /**
+     * Constructs a ThreadPool that starts no threads of its own, for
+     * subclasses that schedule jobs another way and override the public
+     * methods.
+     */
+    protected ThreadPool() {
+        this(UNBOUNDED);
+    }
+
+    /**
+     * Bounds the queue of jobs waiting for a thread. When capacity jobs are
+     * waiting, addJob() follows the policy:
+     * BLOCK waits for room, pushing back on whoever adds jobs;
+     * REJECT throws RejectedExecutionException so the caller can turn the
+     * client away at once;
+     * DROP_OLDEST removes the job that has waited longest in the last lane
+     * that has any, calling reject() on it if it is Rejectable;
+     * CALLER_RUNS runs the job on the thread that added it.
+     *
+     * Jobs added by the pool's own workers, such as connections queued again
+     * for their next request, always go in: a worker blocked on its own
+     * pool could wait forever. The same goes for jobs added by a job that
+     * CALLER_RUNS is running. A capacity of 0, the default, means no limit.
+     *
+     * @param capacity most jobs waiting at once, or 0
+     * @param policy BLOCK, REJECT, DROP_OLDEST or CALLER_RUNS
+     */
+    public void setQueueLimit(int capacity, int policy) {
+    	if (policy < BLOCK || policy > CALLER_RUNS)
+    		throw new IllegalArgumentException("unknown policy " + policy);
+    	lock.lock();
+    	try {
+    		this.capacity = capacity;
+    		this.policy = policy;
+    		notFull.signalAll();
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Splits the queue into priority lanes, one per weight, so that urgent
+     * jobs need not wait behind a backlog of others. A job goes in the lane
+     * its getLane() names if it is Prioritized, and in the last lane if not.
+     * Within a lane jobs run in the order they were added.
+     *
+     * A lane of weight STRICT runs its jobs ahead of every weighted lane
+     * whenever it has any; between STRICT lanes, the earlier one goes first.
+     * The weighted lanes take turns, in order, each running up to its
+     * weight of jobs in a row before the next lane with jobs gets the
+     * threads, so a busy lane slows the others without starving them. A
+     * job's wait is recorded per lane in getStats() as well as overall.
+     *
+     * By default there is one lane. Lanes may only be set while none of
+     * them holds jobs.
+     *
+     * @param weights STRICT or a positive weight for each lane, first lane
+     *        first
+     * @throws IllegalArgumentException if no weights or a negative one
+     *         are given
+     * @throws IllegalStateException if jobs are queued
+     */
+    public void setPriorityLanes(int... weights) {
+    	if (weights.length == 0)
+    		throw new IllegalArgumentException("at least one lane is needed");
+    	for (int weight : weights) {
+    		if (weight < STRICT)
+    			throw new IllegalArgumentException("negative weight " + weight);
+    	}
+    	lock.lock();
+    	try {
+    		if (queued > 0)
+    			throw new IllegalStateException("jobs are queued");
+    		lanes = new ArrayList<LinkedList<Job>>();
+    		for (int i = 0; i < weights.length; i++)
+    			lanes.add(new LinkedList<Job>());
+    		this.weights = weights.clone();
+    		turn = 0;
+    		taken = 0;
+    		stats.setLanes(weights.length);
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Lets the pool grow past the size it was built with when jobs wait too
+     * long, and shrink back once the load passes. When a job has waited
+     * longer than targetWaitMillis for a thread and no thread is free or
+     * starting, one more thread is started, up to maxSize. A thread beyond
+     * the original size that finds no job for idleMillis exits. Each
+     * decision is counted and described in getResizeHistory().
+     *
+     * @param maxSize most threads the pool may grow to
+     * @param targetWaitMillis longest a job should wait for a thread
+     * @param idleMillis how long an extra thread may sit idle
+     * @throws IllegalStateException for an UNBOUNDED pool
+     */
+    public void setElastic(int maxSize, int targetWaitMillis, int idleMillis) {
+    	if (unbounded)
+    		throw new IllegalStateException("an UNBOUNDED pool is already elastic");
+    	lock.lock();
+    	try {
+    		this.maxSize = Math.max(maxSize, coreSize);
+    		this.targetWait = TimeUnit.MILLISECONDS.toNanos(targetWaitMillis);
+    		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    		notEmpty.signalAll();
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Get the figures kept on this pool's queue and jobs. The object is live:
+     * it keeps changing as jobs come and go.
+     *
+     * @return stats for this pool
+     */
+    public ThreadPoolStats getStats() {
+    	return stats;
+    }
+
+    /**
+     * Get the number of threads in the pool, counting ones just started.
+     *
+     * @return current number of threads
+     */
+    public int getPoolSize() {
+    	lock.lock();
+    	try {
+    		return live;
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Get the number of threads started because jobs waited too long.
+     *
+     * @return times the pool has grown
+     */
+    public long getGrowCount() {
+    	lock.lock();
+    	try {
+    		return grown;
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Get the number of extra threads that exited after sitting idle.
+     *
+     * @return times the pool has shrunk
+     */
+    public long getShrinkCount() {
+    	lock.lock();
+    	try {
+    		return shrunk;
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Get a description of the most recent resize decisions, oldest first,
+     * such as "grew to 3 threads: a job waited 57 ms".
+     *
+     * @return up to RESIZE_HISTORY recent decisions
+     */
+    public List<String> getResizeHistory() {
+    	lock.lock();
+    	try {
+    		return new ArrayList<String>(resizes);
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Start another thread if a job has waited longer than the target and
+     * nothing is about to take it. Caller holds the lock.
+     *
+     * @param waited nanoseconds the job has waited
+     */
+    private void growIfLate(long waited) {
+    	if (live >= maxSize || idle + starting > 0 || waited <= targetWait || shutdown)
+    		return;
+    	live++;
+    	starting++;
+    	grown++;
+    	resized("grew to " + live + " threads: a job waited " +
+    		TimeUnit.NANOSECONDS.toMillis(waited) + " ms");
+    	new WorkerThread(this).start();
+    }
+
+    private void resized(String decision) {
+    	resizes.add(decision);
+    	if (resizes.size() > RESIZE_HISTORY)
+    		resizes.remove();
+    }
+
     /**
      * Add a job to the queue of jobs that have to be executed. As soon as a
      * thread is available, the thread will retrieve a job from this queue if
-     * if one exists and start processing it.
+     * if one exists and start processing it. If the queue is full, the
+     * policy set by setQueueLimit() applies.
      *
      * @param r job that has to be executed
      * @throws InterruptedException if thread is interrupted while in blocked
      *         state. Your implementation may or may not actually throw this.
+     * @throws RejectedExecutionException if the pool has been shut down, or
+     *         the queue is full and the policy is REJECT
      */
     public void addJob(Runnable r) throws InterruptedException {
-    	addLock.lock();
-    	jobs.add(r);
-    	addLock.unlock();
+    	Runnable dropped = null;
+    	boolean callerRuns = false;
+    	lock.lock();
+    	try {
+    		if (shutdown)
+    			throw new RejectedExecutionException("ThreadPool is shut down");
+    		if (capacity > 0 && queued >= capacity && inside.get() == null) {
+    			if (policy == REJECT) {
+    				stats.rejected();
+    				throw new RejectedExecutionException("ThreadPool queue is full");
+    			}
+    			else if (policy == CALLER_RUNS)
+    				callerRuns = true;
+    			else if (policy == DROP_OLDEST) {
+    				stats.dropped();
+    				dropped = dropOldest().task;
+    			}
+    			else {
+    				while (capacity > 0 && queued >= capacity) {
+    					notFull.await();
+    					if (shutdown)
+    						throw new RejectedExecutionException("ThreadPool is shut down");
+    				}
+    			}
+    		}
+    		if (!callerRuns) {
+    			int lane = lanes.size() - 1;
+    			if (r instanceof Prioritized)
+    				lane = Math.max(0, Math.min(lane, ((Prioritized) r).getLane()));
+    			lanes.get(lane).add(new Job(r, lane));
+    			queued++;
+    			stats.queued(queued);
+    			if (unbounded && idle < queued) {
+    				live++;
+    				new WorkerThread(this).start();
+    			}
+    			else
+    				notEmpty.signal();
+    			if (maxSize > coreSize)
+    				growIfLate(System.nanoTime() - oldestQueuedAt());
+    		}
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    	if (callerRuns)
+    		runHere(r);
+    	if (dropped instanceof Rejectable)
+    		((Rejectable) dropped).reject();
+    }
+
+    /**
+     * Run a job on the calling thread for CALLER_RUNS. Anything it queues
+     * on this pool goes in regardless of the limit.
+     */
+    private void runHere(Runnable r) {
+    	inside.set(Boolean.TRUE);
+    	try {
+    		stats.started(getQueueSize(), 0);
+    		runJob(r, stats);
+    	}
+    	finally {
+    		inside.remove();
+    	}
+    }
+
+    /**
+     * Run a job, timing it and counting whether it completed. A job that
+     * throws anything, even an Error such as OutOfMemoryError, is dropped;
+     * it must not take its worker with it, since a pool never replaces a
+     * worker that dies.
+     *
+     * @param r job to run
+     * @param stats where to record it
+     */
+    static void runJob(Runnable r, ThreadPoolStats stats) {
+    	long start = System.nanoTime();
+    	boolean ok = false;
+    	try {
+    		r.run();
+    		ok = true;
+    	}
+    	catch (Throwable ex) {
+    	}
+    	finally {
+    		stats.finished(System.nanoTime() - start, ok);
+    	}
+    }
+
+    /**
+     * Get the number of jobs waiting for a thread. The value is only a
+     * snapshot and may be stale by the time the caller acts on it.
+     *
+     * @return number of queued jobs
+     */
+    public int getQueueSize() {
+    	lock.lock();
+    	try {
+    		return queued;
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Stop taking new jobs. Jobs already queued still run, and each worker
+     * exits once the queue is empty. Returns without waiting; see
+     * awaitTermination().
+     */
+    public void shutdown() {
+    	lock.lock();
+    	try {
+    		shutdown = true;
+    		notEmpty.signalAll();
+    		notFull.signalAll();
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Check whether shutdown() has been called.
+     *
+     * @return true if the pool takes no new jobs
+     */
+    public boolean isShutdown() {
+    	return shutdown;
+    }
+
+    /**
+     * Wait for every worker to exit after shutdown().
+     *
+     * @param timeout most milliseconds to wait
+     * @return true if all workers have exited, false if the time ran out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+    	long left = TimeUnit.MILLISECONDS.toNanos(timeout);
+    	lock.lock();
+    	try {
+    		while (live > 0) {
+    			if (left <= 0)
+    				return false;
+    			left = terminated.awaitNanos(left);
+    		}
+    		return true;
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Called by a worker that exits other than by getJob() letting it go.
+     */
+    private void exited() {
+    	lock.lock();
+    	try {
+    		retire();
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Count a worker out of the pool. Caller holds the lock.
+     */
+    private void retire() {
+    	if (--live == 0)
+    		terminated.signalAll();
     }
 
     /**
      * Block until a job is present in the queue and retrieve the job
-     * @return A runnable task that has to be executed
+     * @param first true on a worker's first call, once it has started
+     * @return A runnable task that has to be executed, or null if the
+     *         worker should exit: the pool is shut down and its queue is
+     *         empty, or the worker is not needed any more. The worker has
+     *         then been counted out of the pool.
      * @throws InterruptedException if thread is interrupted while in blocked
      *         state. Your implementation may or may not actually throw this.
      */
-    private Runnable getJob() throws InterruptedException {
-    	getLock.lock();
-    	Runnable res = null;
-        if (!jobs.isEmpty())
-        	res = jobs.remove();
-        getLock.unlock();
-        return res;
+    private Runnable getJob(boolean first) throws InterruptedException {
+    	lock.lock();
+    	try {
+    		if (first && !unbounded && starting > 0)
+    			starting--;
+    		long left = unbounded ? TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_MILLISECONDS) :
+    			idleTimeout;
+    		while (queued == 0) {
+    			if (shutdown) {
+    				retire();
+    				return null;
+    			}
+    			boolean extra = unbounded || live > coreSize;
+    			idle++;
+    			try {
+    				if (!extra)
+    					notEmpty.await();
+    				else if ((left = notEmpty.awaitNanos(left)) <= 0 && queued == 0 &&
+    					(unbounded || live > coreSize)) {
+    					if (!unbounded) {
+    						shrunk++;
+    						resized("shrank to " + (live - 1) + " threads: idle for " +
+    							TimeUnit.NANOSECONDS.toMillis(idleTimeout) + " ms");
+    					}
+    					retire();
+    					return null;
+    				}
+    			}
+    			finally {
+    				idle--;
+    			}
+    		}
+    		if (capacity > 0)
+    			notFull.signal();
+    		Job job = take();
+    		stats.started(queued, System.nanoTime() - job.queuedAt, job.lane);
+    		if (maxSize > coreSize && queued > 0)
+    			growIfLate(System.nanoTime() - job.queuedAt);
+    		return job.task;
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Remove the next job to run: the first in the earliest STRICT lane with
+     * jobs, or else the next in the weighted lane whose turn it is. Caller
+     * holds the lock and there is a job queued.
+     */
+    private Job take() {
+    	for (int i = 0; i < lanes.size(); i++) {
+    		if (weights[i] == STRICT && !lanes.get(i).isEmpty())
+    			return removeFrom(i);
+    	}
+    	for (;;) {
+    		if (taken < weights[turn] && !lanes.get(turn).isEmpty()) {
+    			taken++;
+    			return removeFrom(turn);
+    		}
+    		turn = (turn + 1) % lanes.size();
+    		taken = 0;
+    	}
+    }
+
+    /**
+     * Remove the oldest job of the last lane with jobs. Caller holds the
+     * lock and there is a job queued.
+     */
+    private Job dropOldest() {
+    	for (int i = lanes.size() - 1; ; i--) {
+    		if (!lanes.get(i).isEmpty())
+    			return removeFrom(i);
+    	}
+    }
+
+    private Job removeFrom(int lane) {
+    	queued--;
+    	return lanes.get(lane).remove();
+    }
+
+    /**
+     * Get when the job that has waited longest was queued. Caller holds the
+     * lock and there is a job queued.
+     */
+    private long oldestQueuedAt() {
+    	long oldest = Long.MAX_VALUE;
+    	for (LinkedList<Job> lane : lanes) {
+    		if (!lane.isEmpty() && lane.getFirst().queuedAt - oldest < 0)
+    			oldest = lane.getFirst().queuedAt;
+    	}
+    	return oldest;
     }
 
     /**
@@ -75,20 +632,59 @@ public class ThreadPool {
         }
 
         /**
-         * Scan for and execute tasks.
+         * Scan for and execute tasks until the pool lets this thread go.
          */
         @Override
         public void run() {
+        	inside.set(Boolean.TRUE);
+        	boolean released = false;
+        	try {
+        		released = work();
+        	}
+        	finally {
+        		if (!released)
+        			threadPool.exited();
+        	}
+        }
+
+        /**
+         * @return true if the pool let this worker go, false if it was
+         *         interrupted
+         */
+        private boolean work() {
+        	boolean first = true;
         	for (;;) {
+	            Runnable job;
 	            try {
-	            	Runnable job = threadPool.getJob();
-	            	if (job != null)
-	            		job.run();
+	            	job = threadPool.getJob(first);
 	            }
-	            catch (Exception ex) {
-	            	return;
+	            catch (InterruptedException ex) {
+	            	return false;
 	            }
+	            first = false;
+	            if (job == null)
+	            	return true;
+	            ThreadPool.runJob(job, stats);
         	}
         }
     }
+
+    /**
+     * A queued job, the lane it waits in and when it was queued.
+     */
+    static class Job {
+
+        final Runnable task;
+        final int lane;
+        final long queuedAt = System.nanoTime();
+
+        Job(Runnable task) {
+            this(task, 0);
+        }
+
+        Job(Runnable task, int lane) {
+            this.task = task;
+            this.lane = lane;
+        }
+    }
 }
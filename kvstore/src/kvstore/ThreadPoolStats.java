@@ -0,0 +1,154 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running figures for one ThreadPool: how many jobs wait and how long,
+ * how many workers are busy, and how long jobs run. Queue waits and run
+ * times are measured separately so that time spent queued for a thread can
+ * be told apart from time spent serving the request.
+ */
+public class ThreadPoolStats {
+
+    private final LatencyHistogram waits = new LatencyHistogram();
+    private final LatencyHistogram runs = new LatencyHistogram();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private volatile int queueDepth = 0;
+    private volatile LatencyHistogram[] laneWaits = new LatencyHistogram[0];
+
+    void setLanes(int lanes) {
+        LatencyHistogram[] waits = new LatencyHistogram[lanes > 1 ? lanes : 0];
+        for (int i = 0; i < waits.length; i++)
+            waits[i] = new LatencyHistogram();
+        laneWaits = waits;
+    }
+
+    void queued(int depth) {
+        queueDepth = depth;
+        int m;
+        while (depth > (m = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(m, depth))
+            ;
+    }
+
+    void started(int depth, long waitNanos) {
+        queueDepth = depth;
+        waits.record(waitNanos);
+        active.incrementAndGet();
+    }
+
+    void started(int depth, long waitNanos, int lane) {
+        started(depth, waitNanos);
+        LatencyHistogram[] lanes = laneWaits;
+        if (lane < lanes.length)
+            lanes[lane].record(waitNanos);
+    }
+
+    void finished(long runNanos, boolean ok) {
+        active.decrementAndGet();
+        runs.record(runNanos);
+        if (ok)
+            completed.incrementAndGet();
+        else
+            failed.incrementAndGet();
+    }
+
+    void rejected() {
+        rejected.incrementAndGet();
+    }
+
+    void dropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * @return jobs waiting for a thread when last looked at
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return most jobs seen waiting at once
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return workers running a job right now
+     */
+    public int getActiveWorkers() {
+        return active.get();
+    }
+
+    /**
+     * @return time from addJob() to a worker starting each job
+     */
+    public LatencyHistogram getWaitTimes() {
+        return waits;
+    }
+
+    /**
+     * @param lane priority lane of the pool
+     * @return time from addJob() to a worker starting each job of the lane,
+     *         or null if the pool has only one lane
+     */
+    public LatencyHistogram getWaitTimes(int lane) {
+        LatencyHistogram[] lanes = laneWaits;
+        return lane >= 0 && lane < lanes.length ? lanes[lane] : null;
+    }
+
+    /**
+     * @return time each job ran for
+     */
+    public LatencyHistogram getRunTimes() {
+        return runs;
+    }
+
+    /**
+     * @return jobs that ran to the end
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return jobs that ended by throwing
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return jobs refused because the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return queued jobs dropped to make room for newer ones
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("queue %d (max %d), active %d, " +
+            "completed %d, failed %d, rejected %d, dropped %d; wait %s; run %s",
+            getQueueDepth(), getMaxQueueDepth(), getActiveWorkers(), getCompleted(),
+            getFailed(), getRejected(), getDropped(), waits, runs));
+        LatencyHistogram[] lanes = laneWaits;
+        for (int i = 0; i < lanes.length; i++)
+            sb.append("; lane ").append(i).append(" wait ").append(lanes[i]);
+        return sb.toString();
+    }
+
+}
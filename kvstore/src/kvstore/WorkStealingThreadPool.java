@@ -0,0 +1,248 @@
+package kvstore;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ThreadPool in which every worker has a deque of its own instead of all
+ * of them sharing one queue. A job added by a worker, such as a connection
+ * queued again for its next request, goes on that worker's deque; jobs
+ * added from other threads are dealt out to the deques in turn. A worker
+ * takes jobs from the head of its own deque, and once that is empty steals
+ * from the tail of the others', so workers only contend when one runs dry.
+ * Idle workers park until a job is added.
+ *
+ * Jobs are not run in the order they were added, only roughly so per
+ * worker. The pool keeps the size it was built with. Queue limits,
+ * priority lanes and elastic sizing are not supported.
+ */
+public class WorkStealingThreadPool extends ThreadPool {
+
+    private final Worker[] workers;
+    private final ConcurrentLinkedQueue<Worker> parked = new ConcurrentLinkedQueue<Worker>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger next = new AtomicInteger();
+    private final CountDownLatch exited;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Constructs a WorkStealingThreadPool with a certain number of threads.
+     *
+     * @param size number of threads in the thread pool
+     */
+    public WorkStealingThreadPool(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("need at least one thread");
+        workers = new Worker[size];
+        exited = new CountDownLatch(size);
+        for (int i = 0; i < size; i++)
+            workers[i] = new Worker(i);
+        for (int i = 0; i < size; i++)
+            workers[i].start();
+    }
+
+    /**
+     * Add a job to be executed: on the calling worker's own deque if it is
+     * one of this pool's workers, otherwise on the next deque in turn. An
+     * idle worker is woken to take or steal it.
+     *
+     * @param r job that has to be executed
+     * @throws RejectedExecutionException if the pool has been shut down
+     */
+    @Override
+    public void addJob(Runnable r) throws InterruptedException {
+        if (shutdown)
+            throw new RejectedExecutionException("ThreadPool is shut down");
+        Thread current = Thread.currentThread();
+        Worker owner;
+        if (current instanceof Worker && ((Worker) current).pool() == this)
+            owner = (Worker) current;
+        else
+            owner = workers[(next.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+        stats.queued(queued.incrementAndGet());
+        owner.deque.addLast(new Job(r));
+        wakeOne();
+    }
+
+    /**
+     * Unpark one parked worker, if there is one.
+     */
+    private void wakeOne() {
+        Worker w;
+        while ((w = parked.poll()) != null) {
+            if (w.parked.compareAndSet(true, false)) {
+                LockSupport.unpark(w);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queued.get();
+    }
+
+    /**
+     * Not supported; every deque is unbounded.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setQueueLimit(int capacity, int policy) {
+        throw new UnsupportedOperationException("work-stealing queues are unbounded");
+    }
+
+    /**
+     * Not supported; every deque is served in order.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setPriorityLanes(int... weights) {
+        throw new UnsupportedOperationException("work-stealing queues have no lanes");
+    }
+
+    /**
+     * Not supported; the pool keeps the size it was built with.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setElastic(int maxSize, int targetWaitMillis, int idleMillis) {
+        throw new UnsupportedOperationException("work-stealing pools have a fixed size");
+    }
+
+    /**
+     * Get the number of workers that have not exited.
+     *
+     * @return the size the pool was built with until it is shut down
+     */
+    @Override
+    public int getPoolSize() {
+        return (int) exited.getCount();
+    }
+
+    /**
+     * The pool never grows.
+     *
+     * @return 0
+     */
+    @Override
+    public long getGrowCount() {
+        return 0;
+    }
+
+    /**
+     * The pool never shrinks.
+     *
+     * @return 0
+     */
+    @Override
+    public long getShrinkCount() {
+        return 0;
+    }
+
+    /**
+     * The pool is never resized.
+     *
+     * @return an empty list
+     */
+    @Override
+    public List<String> getResizeHistory() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        for (Worker w : workers)
+            LockSupport.unpark(w);
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        return exited.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A thread in the pool, with the deque jobs it adds go on.
+     */
+    private class Worker extends Thread {
+
+        final ConcurrentLinkedDeque<Job> deque = new ConcurrentLinkedDeque<Job>();
+        final AtomicBoolean parked = new AtomicBoolean();
+        private final int index;
+
+        Worker(int index) {
+            super("WorkStealingThreadPool-" + index);
+            this.index = index;
+        }
+
+        WorkStealingThreadPool pool() {
+            return WorkStealingThreadPool.this;
+        }
+
+        /**
+         * Take a job from this worker's deque, or steal one from a peer.
+         */
+        private Runnable find() {
+            Job job = deque.pollFirst();
+            for (int i = 1; job == null && i < workers.length; i++)
+                job = workers[(index + i) % workers.length].deque.pollLast();
+            if (job == null)
+                return null;
+            stats.started(queued.decrementAndGet(), System.nanoTime() - job.queuedAt);
+            return job.task;
+        }
+
+        /**
+         * Run jobs until the pool is shut down and every deque is empty.
+         */
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    Runnable job = find();
+                    if (job == null) {
+                        if (shutdown)
+                            return;
+                        // announce before the last look, so a job added
+                        // after it finds this worker to wake
+                        parked.set(true);
+                        WorkStealingThreadPool.this.parked.add(this);
+                        job = find();
+                        if (job == null) {
+                            if (!shutdown)
+                                LockSupport.park(this);
+                            if (parked.compareAndSet(true, false))
+                                WorkStealingThreadPool.this.parked.remove(this);
+                            continue;
+                        }
+                        if (parked.compareAndSet(true, false))
+                            WorkStealingThreadPool.this.parked.remove(this);
+                        else
+                            // a wake-up meant for a job this worker took
+                            wakeOne();
+                    }
+                    ThreadPool.runJob(job, stats);
+                }
+            } finally {
+                exited.countDown();
+            }
+        }
+    }
+
+}
@@ -14,7 +14,7 @@ public class EndToEndTemplate {
     public void setUp() throws IOException, InterruptedException {
         String hostname = InetAddress.getLocalHost().getHostAddress();
 
-        SocketServer ss = new SocketServer(hostname, 7777);
+        SocketServer ss = createServer(hostname, 7777);
         ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
         serverRunner = new ServerRunner(ss, "server");
         serverRunner.start();
@@ -22,6 +22,14 @@ public class EndToEndTemplate {
         client = new KVClient(hostname, 7777);
     }
 
+    /**
+     * Create the server the tests run against; subclasses may swap in
+     * another implementation.
+     */
+    protected SocketServer createServer(String hostname, int port) {
+        return new SocketServer(hostname, port);
+    }
+
     @After
     public void tearDown() throws InterruptedException {
         serverRunner.stop();
@@ -1,6 +1,18 @@
 package kvstore;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -20,4 +32,440 @@ public class EndToEndTest extends EndToEndTemplate {
     	assertEquals(client.get("foo"), "99");
     }
     
+    @Test
+    public void testXMLClient() throws KVException {
+    	client.setWireFormat(KVConnection.XML);
+    	client.put("foo", "<bar & baz>");
+    	assertEquals("<bar & baz>", client.get("foo"));
+    	client.del("foo");
+    }
+    
+    @Test
+    public void testPersistentConnections() throws Exception {
+    	String hostname = InetAddress.getLocalHost().getHostAddress();
+    	KVClient other = new KVClient(InetAddress.getLocalHost().getHostAddress(), 7777);
+    	// both clients keep a connection open to the single server thread
+    	for (int i = 0; i < 20; i++) {
+    		client.put("foo", "c" + i);
+    		other.put("bar", "o" + i);
+    		assertEquals("c" + i, client.get("foo"));
+    		assertEquals("o" + i, other.get("bar"));
+    	}
+    	try {
+    		client.get("missing");
+    		fail("get of a missing key should fail");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_NO_SUCH_KEY, ex.getKVMessage().getMessage());
+    	}
+    	assertEquals("o19", client.get("bar"));
+    	other.close();
+    	client.close();
+    	assertEquals("c19", client.get("foo"));
+    }
+    
+    @Test
+    public void testCompressedValues() throws Exception {
+    	String hostname = InetAddress.getLocalHost().getHostAddress();
+    	KVClient compressing = new KVClient(hostname, 7777);
+    	compressing.setCompression(true);
+    	String value = Utils.makeLongString(KVBinaryCodec.COMPRESSION_THRESHOLD * 4);
+    	long inflated = KVBinaryCodec.getCompressionStats().getFramesInflated();
+    	for (int i = 0; i < 3; i++) {
+    		compressing.put("big" + i, value + i);
+    		assertEquals(value + i, compressing.get("big" + i));
+    	}
+    	// a client that did not ask for compression gets plain responses
+    	assertEquals(value + 0, client.get("big0"));
+    	compressing.close();
+    	// the first PUT goes out before the server has offered compression
+    	assertTrue(KVBinaryCodec.getCompressionStats().getFramesInflated() >= inflated + 4);
+    }
+
+    @Test
+    public void testOversizedRejectedEarly() throws Exception {
+    	client.put("small", "value");
+    	for (int i = 0; i < 3; i++) {
+    		try {
+    			client.put("big", Utils.makeLongString(KVServer.MAX_VAL_SIZE * 4));
+    			fail("oversized value should be rejected");
+    		}
+    		catch (KVException ex) {
+    			assertEquals(KVConstants.ERROR_OVERSIZED_VALUE, ex.getKVMessage().getMessage());
+    		}
+    		try {
+    			client.get(Utils.makeLongString(KVServer.MAX_KEY_SIZE + 1));
+    			fail("oversized key should be rejected");
+    		}
+    		catch (KVException ex) {
+    			assertEquals(KVConstants.ERROR_OVERSIZED_KEY, ex.getKVMessage().getMessage());
+    		}
+    		// the connection is replaced and later requests go through
+    		assertEquals("value", client.get("small"));
+    	}
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+    	final AtomicInteger failures = new AtomicInteger();
+    	Thread[] threads = new Thread[8];
+    	client.put("warm", "up");
+    	for (int t = 0; t < threads.length; t++) {
+    		final String key = "key" + t;
+    		threads[t] = new Thread(new Runnable() {
+    			public void run() {
+    				try {
+    					for (int i = 0; i < 50; i++) {
+    						client.put(key, key + i);
+    						if (!(key + i).equals(client.get(key)))
+    							failures.incrementAndGet();
+    					}
+    				}
+    				catch (KVException ex) {
+    					failures.incrementAndGet();
+    				}
+    			}
+    		});
+    		threads[t].start();
+    	}
+    	for (Thread thread : threads)
+    		thread.join();
+    	assertEquals(0, failures.get());
+    }
+    
+    @Test(timeout = 20000)
+    public void testConnectionPool() throws Exception {
+    	client.setConnectionPool(1, 2, 200);
+    	final AtomicInteger failures = new AtomicInteger();
+    	final AtomicInteger mostOpen = new AtomicInteger();
+    	Thread[] threads = new Thread[6];
+    	for (int t = 0; t < threads.length; t++) {
+    		final String key = "pooled" + t;
+    		threads[t] = new Thread(new Runnable() {
+    			public void run() {
+    				try {
+    					for (int i = 0; i < 30; i++) {
+    						client.put(key, key + i);
+    						if (!(key + i).equals(client.get(key)))
+    							failures.incrementAndGet();
+    						int open = client.getOpenConnections();
+    						if (open > mostOpen.get())
+    							mostOpen.set(open);
+    					}
+    				}
+    				catch (KVException ex) {
+    					failures.incrementAndGet();
+    				}
+    			}
+    		});
+    		threads[t].start();
+    	}
+    	for (Thread thread : threads)
+    		thread.join();
+    	assertEquals(0, failures.get());
+    	assertTrue(mostOpen.get() <= 2);
+    	// 360 requests, but only a handful of connections
+    	assertTrue(client.getOpenedCount() <= 4);
+    	// the idle extra connection is evicted, and one is kept ready
+    	long end = System.currentTimeMillis() + 5000;
+    	while (client.getOpenConnections() != 1 && System.currentTimeMillis() < end)
+    		Thread.sleep(50);
+    	assertEquals(1, client.getOpenConnections());
+    	client.close();
+    	assertEquals(0, client.getOpenConnections());
+    }
+    
+    @Test(timeout = 20000)
+    public void testAsyncRequests() throws Exception {
+    	client.put("warm", "up");
+    	List<KVFuture<Void>> puts = new ArrayList<KVFuture<Void>>();
+    	for (int i = 0; i < 200; i++)
+    		puts.add(client.putAsync("async" + i, "v" + i));
+    	for (KVFuture<Void> put : puts)
+    		put.await();
+    	List<KVFuture<String>> gets = new ArrayList<KVFuture<String>>();
+    	for (int i = 0; i < 200; i++)
+    		gets.add(client.getAsync("async" + i));
+    	for (int i = 0; i < 200; i++)
+    		assertEquals("v" + i, gets.get(i).await());
+    	client.delAsync("async0").await();
+    	try {
+    		client.getAsync("async0").await();
+    		fail("get of a deleted key should fail");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_NO_SUCH_KEY, ex.getKVMessage().getMessage());
+    	}
+    	
+    	// a server that never answers: the call times out, or can be cancelled
+    	ServerSocket silent = new ServerSocket(0);
+    	Socket sock = new Socket(InetAddress.getLocalHost(), silent.getLocalPort());
+    	Socket accepted = silent.accept();
+    	KVPipeline pipe = new KVPipeline(new KVConnection(sock, KVConnection.BINARY));
+    	KVMessage req = new KVMessage(KVConstants.GET_REQ);
+    	req.setKey("key");
+    	KVFuture<KVMessage> late = pipe.callAsync(req, 100);
+    	try {
+    		late.await();
+    		fail("call to a silent server should time out");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA, ex.getKVMessage().getMessage());
+    	}
+    	KVFuture<KVMessage> cancelled = pipe.callAsync(req, 0);
+    	assertTrue(cancelled.cancel(false));
+    	assertTrue(cancelled.isCancelled());
+    	pipe.close();
+    	accepted.close();
+    	silent.close();
+    }
+    
+    @Test
+    public void testPatchAndAppend() throws KVException {
+    	client.put("foo", "hello world");
+    	client.patch("foo", 6, 5, "there");
+    	assertEquals("hello there", client.get("foo"));
+    	client.append("foo", "!");
+    	assertEquals("hello there!", client.get("foo"));
+    	
+    	try {
+    		client.patch("foo", 10, 5, "x");
+    		fail("patch past the end of the value should fail");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_INVALID_RANGE, ex.getKVMessage().getMessage());
+    	}
+    	assertEquals("hello there!", client.get("foo"));
+    }
+    
+    @Test
+    public void testNearCache() throws Exception {
+    	KVClient other = new KVClient(InetAddress.getLocalHost().getHostAddress(), 7777);
+    	client.setNearCache(4, 4, 300);
+    	client.put("near", "one");
+    	assertEquals("one", client.get("near"));
+    	assertEquals(0, client.getNearCacheHits());
+    	assertEquals("one", client.get("near"));
+    	assertEquals(1, client.getNearCacheHits());
+    	
+    	// own writes are seen at once
+    	client.put("near", "two");
+    	assertEquals("two", client.get("near"));
+    	assertEquals("two", client.getAsync("near").await());
+    	assertEquals(2, client.getNearCacheHits());
+    	long misses = client.getNearCacheMisses();
+    	assertEquals("two", client.multiGet(Arrays.asList("near")).get("near"));
+    	assertEquals(3, client.getNearCacheHits());
+    	assertEquals(misses, client.getNearCacheMisses());
+    	
+    	// others' writes are seen within the staleness bound
+    	other.put("near", "three");
+    	assertEquals("two", client.get("near"));
+    	Thread.sleep(400);
+    	assertEquals("three", client.get("near"));
+    	
+    	client.del("near");
+    	try {
+    		client.get("near");
+    		fail("deleted key should not be served from the near cache");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_NO_SUCH_KEY, ex.getKVMessage().getMessage());
+    	}
+    	client.setNearCache(0, 0, 0);
+    	other.close();
+    }
+    
+    @Test(timeout = 20000)
+    public void testBatchRequests() throws KVException {
+    	Map<String, String> entries = new LinkedHashMap<String, String>();
+    	for (int i = 0; i < 50; i++)
+    		entries.put("batch" + i, "value" + i);
+    	entries.put("", "empty key");
+    	KVBatchResult<Void> put = client.multiPut(entries);
+    	assertEquals(50, put.getResults().size());
+    	assertEquals(KVConstants.ERROR_INVALID_KEY,
+    		put.getFailures().get("").getKVMessage().getMessage());
+    	
+    	List<String> keys = new ArrayList<String>(entries.keySet());
+    	keys.remove("");
+    	keys.add("missing");
+    	KVBatchResult<String> got = client.multiGet(keys);
+    	assertEquals(50, got.getResults().size());
+    	for (int i = 0; i < 50; i++)
+    		assertEquals("value" + i, got.get("batch" + i));
+    	try {
+    		got.get("missing");
+    		fail("missing key should fail");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_NO_SUCH_KEY, ex.getKVMessage().getMessage());
+    	}
+    	
+    	KVBatchResult<Void> deleted = client.multiDel(keys);
+    	assertEquals(50, deleted.getResults().size());
+    	assertEquals(1, deleted.getFailures().size());
+    	assertTrue(client.multiGet(keys).getResults().isEmpty());
+    }
+    
+    @Test(timeout = 20000)
+    public void testGetRetriesAndHedging() throws Exception {
+    	ServerSocket closed = new ServerSocket(0);
+    	int port = closed.getLocalPort();
+    	closed.close();
+    	KVClient nowhere = new KVClient(InetAddress.getLocalHost().getHostAddress(), port);
+    	nowhere.setGetRetries(3, 10);
+    	try {
+    		nowhere.get("key");
+    		fail("GET from a server that is not there should fail");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_COULD_NOT_CONNECT, ex.getKVMessage().getMessage());
+    	}
+    	assertEquals(3, nowhere.getRetryCount());
+    	
+    	// no retry starts that cannot finish by the deadline
+    	nowhere.setTimeout(100);
+    	nowhere.setGetRetries(3, 1000);
+    	long start = System.currentTimeMillis();
+    	try {
+    		nowhere.get("key");
+    		fail("GET from a server that is not there should fail");
+    	}
+    	catch (KVException ex) {
+    	}
+    	assertTrue(System.currentTimeMillis() - start < 1000);
+    	
+    	// a missing key is an answer, and is not retried
+    	client.setGetRetries(3, 10);
+    	client.setHedging(true);
+    	try {
+    		client.get("missing");
+    		fail("missing key should fail");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_NO_SUCH_KEY, ex.getKVMessage().getMessage());
+    	}
+    	assertEquals(0, client.getRetryCount());
+    	
+    	client.put("hedged", "value");
+    	for (int i = 0; i < 100; i++)
+    		assertEquals("value", client.get("hedged"));
+    	assertTrue(client.getGetLatency().getCount() >= 100);
+    	assertTrue(client.getHedgeWinCount() <= client.getHedgeCount());
+    	assertTrue(client.getHedgeCount() < 100);
+    	client.setHedging(false);
+    	client.setGetRetries(0, 0);
+    }
+    
+    @Test(timeout = 20000)
+    public void testWrittenWritesAreNotResent() throws Exception {
+    	// a server that reads each request and hangs up without answering
+    	ServerSocket hangup = new ServerSocket(0);
+    	KVMessage append = new KVMessage(KVConstants.PATCH_REQ);
+    	append.setKey("key");
+    	append.setValue("!");
+    	KVMessage get = new KVMessage(KVConstants.GET_REQ);
+    	get.setKey("key");
+    	
+    	KVPipeline pipe = hangUpAfterRequest(hangup);
+    	try {
+    		pipe.call(append, 5000);
+    		fail("an append the server may have applied must not be resent");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA, ex.getKVMessage().getMessage());
+    	}
+    	
+    	pipe = hangUpAfterRequest(hangup);
+    	KVFuture<KVMessage> async = pipe.callAsync(append, 5000);
+    	try {
+    		async.await();
+    		fail("an append the server may have applied must not be resent");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA, ex.getKVMessage().getMessage());
+    	}
+    	
+    	pipe = hangUpAfterRequest(hangup);
+    	assertEquals(null, pipe.call(get, 5000));
+    	hangup.close();
+    }
+    
+    @Test(timeout = 20000)
+    public void testHangUpIsNotTakenForXML() throws Exception {
+    	// a binary server that reads each request and hangs up without
+    	// answering, as a busy one does
+    	final ServerSocket busy = new ServerSocket(0);
+    	final List<Integer> firstBytes = new ArrayList<Integer>();
+    	Thread server = new Thread(new Runnable() {
+    		public void run() {
+    			try {
+    				for (;;) {
+    					Socket accepted = busy.accept();
+    					synchronized (firstBytes) {
+    						firstBytes.add(accepted.getInputStream().read());
+    					}
+    					accepted.close();
+    				}
+    			}
+    			catch (Exception ex) {
+    			}
+    		}
+    	});
+    	server.setDaemon(true);
+    	server.start();
+    	
+    	KVEndpoint endpoint = new KVEndpoint(InetAddress.getLocalHost().getHostAddress(),
+    		busy.getLocalPort());
+    	KVMessage append = new KVMessage(KVConstants.PATCH_REQ);
+    	append.setKey("key");
+    	append.setValue("!");
+    	try {
+    		endpoint.sendRequest(append, 5000);
+    		fail("an append the server may have applied must not be resent");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA, ex.getKVMessage().getMessage());
+    	}
+    	synchronized (firstBytes) {
+    		assertEquals(1, firstBytes.size());
+    	}
+    	
+    	// a GET is resent once, and still in the binary format
+    	KVMessage get = new KVMessage(KVConstants.GET_REQ);
+    	get.setKey("key");
+    	try {
+    		endpoint.sendRequest(get, 5000);
+    		fail("the server never answers");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA, ex.getKVMessage().getMessage());
+    	}
+    	synchronized (firstBytes) {
+    		assertEquals(3, firstBytes.size());
+    		for (int first : firstBytes)
+    			assertEquals(KVBinaryCodec.MAGIC_0 & 0xFF, first);
+    	}
+    	endpoint.close();
+    	busy.close();
+    }
+    
+    private KVPipeline hangUpAfterRequest(final ServerSocket server) throws Exception {
+    	Socket sock = new Socket(InetAddress.getLocalHost(), server.getLocalPort());
+    	final Socket accepted = server.accept();
+    	new Thread(new Runnable() {
+    		public void run() {
+    			try {
+    				accepted.getInputStream().read();
+    				Thread.sleep(100);
+    				accepted.close();
+    			}
+    			catch (Exception ex) {
+    			}
+    		}
+    	}).start();
+    	return new KVPipeline(new KVConnection(sock, KVConnection.BINARY));
+    }
+    
 }
@@ -38,6 +38,262 @@ public class KVMessageTest {
         assertNull(kvm.getValue());
     }
 
+    @Test
+    public void successfullyParsesBinaryPatchReq() throws Exception {
+        KVMessage sent = new KVMessage(PATCH_REQ);
+        sent.setKey("key");
+        sent.setValue("value");
+        sent.setRange(3, 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, out);
+
+        sock = mock(Socket.class);
+        doNothing().when(sock).setSoTimeout(anyInt());
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(out.toByteArray()));
+        KVMessage kvm = new KVMessage(sock);
+        assertEquals(PATCH_REQ, kvm.getMsgType());
+        assertEquals("key", kvm.getKey());
+        assertEquals("value", kvm.getValue());
+        assertEquals(3, kvm.getOffset());
+        assertEquals(2, kvm.getLength());
+        assertNull(kvm.getMessage());
+    }
+
+    @Test
+    public void binaryPatchReqWithNegativeLengthIsRejected() throws Exception {
+        KVMessage sent = new KVMessage(PATCH_REQ);
+        sent.setKey("key");
+        sent.setValue("value");
+        sent.setRange(3, -2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, out);
+
+        sock = mock(Socket.class);
+        doNothing().when(sock).setSoTimeout(anyInt());
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(out.toByteArray()));
+        try {
+            new KVMessage(sock);
+            fail("a negative range should not be accepted");
+        } catch (KVException ex) {
+            assertEquals(ERROR_INVALID_FORMAT, ex.getKVMessage().getMessage());
+        }
+
+        sent.setRange(-3, 0);
+        try {
+            sent.checkFields();
+            fail("an offset below -1 should not be accepted");
+        } catch (KVException ex) {
+            assertEquals(ERROR_INVALID_FORMAT, ex.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void binaryResponseKeepsRequestId() throws Exception {
+        KVMessage sent = new KVMessage(RESP, SUCCESS);
+        sent.setId(300);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, out);
+
+        sock = mock(Socket.class);
+        doNothing().when(sock).setSoTimeout(anyInt());
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(out.toByteArray()));
+        KVMessage kvm = new KVMessage(sock);
+        assertEquals(RESP, kvm.getMsgType());
+        assertEquals(SUCCESS, kvm.getMessage());
+        assertEquals(300, kvm.getId());
+    }
+
+    @Test
+    public void leaseRoundTripsInBothFormats() throws Exception {
+        KVMessage sent = new KVMessage(RESP);
+        sent.setKey("key");
+        sent.setValue("value");
+        sent.setLease(250);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, out);
+        byte[] xml = sent.toXML().getBytes("UTF-8");
+        for (byte[] wire : new byte[][] { out.toByteArray(), xml }) {
+            sock = mock(Socket.class);
+            doNothing().when(sock).setSoTimeout(anyInt());
+            when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(wire));
+            KVMessage kvm = new KVMessage(sock);
+            assertEquals("value", kvm.getValue());
+            assertNull(kvm.getMessage());
+            assertEquals(250, kvm.getLease());
+        }
+
+        sent.setLease(LEASE_REFUSED);
+        out = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, out);
+        xml = sent.toXML().getBytes("UTF-8");
+        for (byte[] wire : new byte[][] { out.toByteArray(), xml }) {
+            sock = mock(Socket.class);
+            doNothing().when(sock).setSoTimeout(anyInt());
+            when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(wire));
+            assertEquals(LEASE_REFUSED, new KVMessage(sock).getLease());
+        }
+    }
+
+    @Test
+    public void batchRoundTripsInBinaryOnly() throws Exception {
+        KVMessage found = new KVMessage(RESP);
+        found.setKey("key");
+        found.setValue("value");
+        found.setLease(250);
+        KVMessage missing = new KVMessage(RESP, ERROR_NO_SUCH_KEY);
+        missing.setKey("missing");
+        KVMessage sent = new KVMessage(RESP);
+        sent.setEntries(Arrays.asList(found, missing));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, out);
+        sock = mock(Socket.class);
+        doNothing().when(sock).setSoTimeout(anyInt());
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(out.toByteArray()));
+        KVMessage kvm = new KVMessage(sock);
+        assertEquals(2, kvm.getEntries().size());
+        assertEquals("value", kvm.getEntries().get(0).getValue());
+        assertEquals(250, kvm.getEntries().get(0).getLease());
+        assertEquals("missing", kvm.getEntries().get(1).getKey());
+        assertEquals(ERROR_NO_SUCH_KEY, kvm.getEntries().get(1).getMessage());
+
+        try {
+            sent.toXML();
+            fail("a batch should not be written as XML");
+        } catch (KVException ex) {
+            assertEquals(ERROR_INVALID_FORMAT, ex.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void binaryLargeValueRoundTrips() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < KVBinaryCodec.LARGE_VALUE * 2)
+            sb.append("large \u00e9\u4e2d\ud83d\ude00 value ");
+        KVMessage sent = new KVMessage(RESP);
+        sent.setKey("key");
+        sent.setValue(sb.toString());
+        sent.setId(7);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, out);
+        // the second send reuses the kept encoding of the same String
+        KVBinaryCodec.get().encode(sent, out);
+
+        sock = mock(Socket.class);
+        doNothing().when(sock).setSoTimeout(anyInt());
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < 2; i++) {
+            KVMessage kvm = new KVMessage(sock);
+            assertEquals("key", kvm.getKey());
+            assertEquals(sb.toString(), kvm.getValue());
+            assertEquals(7, kvm.getId());
+        }
+    }
+
+    @Test
+    public void binaryCompressedValueRoundTrips() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < KVBinaryCodec.COMPRESSION_THRESHOLD * 8)
+            sb.append("compressible \u00e9 value ");
+        KVMessage sent = new KVMessage(PUT_REQ);
+        sent.setKey("key");
+        sent.setValue(sb.toString());
+        sent.setId(9);
+        KVCompressionStats stats = KVBinaryCodec.getCompressionStats();
+        long compressed = stats.getFramesCompressed();
+        long inflated = stats.getFramesInflated();
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, raw);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, out, true, true);
+        assertTrue(out.size() < raw.size() / 4);
+        assertEquals(compressed + 1, stats.getFramesCompressed());
+
+        sock = mock(Socket.class);
+        doNothing().when(sock).setSoTimeout(anyInt());
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(out.toByteArray()));
+        KVMessage kvm = new KVMessage(sock);
+        assertEquals(PUT_REQ, kvm.getMsgType());
+        assertEquals("key", kvm.getKey());
+        assertEquals(sb.toString(), kvm.getValue());
+        assertEquals(9, kvm.getId());
+        assertEquals(inflated + 1, stats.getFramesInflated());
+        assertTrue(stats.getCompressionRatio() < 1.0);
+    }
+
+    @Test
+    public void binaryOversizedValueRejectedBeforeItIsRead() throws Exception {
+        KVMessage sent = new KVMessage(PUT_REQ);
+        sent.setKey("key");
+        sent.setValue(Utils.makeLongString(100000));
+        sent.setId(5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(sent, out);
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+
+        sock = mock(Socket.class);
+        doNothing().when(sock).setSoTimeout(anyInt());
+        when(sock.getInputStream()).thenReturn(in);
+        KVConnection conn = new KVConnection(sock);
+        conn.setSizeLimits(256, 1000);
+        try {
+            conn.receive();
+            fail("oversized value should be rejected");
+        } catch (KVException ex) {
+            assertEquals(ERROR_OVERSIZED_VALUE, ex.getKVMessage().getMessage());
+            assertEquals(5, ex.getKVMessage().getId());
+        }
+        // only the start of the frame was read, and nothing may follow it
+        assertTrue(out.size() - in.available() <= KVBinaryCodec.HEADER_SIZE + 8192);
+        assertFalse(conn.isPersistent());
+    }
+
+    @Test
+    public void binaryFrameRejectedBeforeRoomIsMadeForIt() throws Exception {
+        // a sixteen byte frame that claims a ~2GB message
+        byte[] frame = {
+            'K', 'V', 'B', 0, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0,
+            5, 4, 0, (byte) 0x80, (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, 0x07
+        };
+        ByteArrayInputStream in = new ByteArrayInputStream(frame);
+        in.skip(KVBinaryCodec.HEADER_SIZE);
+        try {
+            KVBinaryCodec.get().decode(in, 0x7FFFFFF0);
+            fail("oversized message should be rejected");
+        } catch (KVException ex) {
+            assertEquals(ERROR_INVALID_FORMAT, ex.getKVMessage().getMessage());
+        }
+
+        // fields within the limits do not make up for a frame that is not
+        byte[] get = {
+            'K', 'V', 'B', 0, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0,
+            1, 1, 1, 'k'
+        };
+        sock = mock(Socket.class);
+        doNothing().when(sock).setSoTimeout(anyInt());
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(get));
+        KVConnection conn = new KVConnection(sock);
+        conn.setSizeLimits(256, 1000);
+        try {
+            conn.receive();
+            fail("overlong frame should be rejected");
+        } catch (KVException ex) {
+            assertEquals(ERROR_INVALID_FORMAT, ex.getKVMessage().getMessage());
+        }
+        assertFalse(conn.isPersistent());
+
+        // a value that claims ~1GB but stops short is only read as it comes
+        byte[] cut = { 2, 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x03, 'x' };
+        try {
+            KVBinaryCodec.get().decode(new ByteArrayInputStream(cut), 0x40000010);
+            fail("truncated value should not be received");
+        } catch (KVException ex) {
+            assertEquals(ERROR_COULD_NOT_RECEIVE_DATA, ex.getKVMessage().getMessage());
+        }
+    }
+
     /* Begin helper methods */
 
     private void setupSocket(String filename) {
@@ -0,0 +1,183 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Checks the streaming codec against a DOM parse of the same input, which is
+ * how KVMessage used to read messages.
+ */
+public class KVXMLCodecTest {
+
+    private static final String TEST_INPUT_DIR = "test/kvstore/test-inputs/";
+
+    @Test
+    public void agreesWithDomOnTestInputs() throws Exception {
+        File dir = new File(System.getProperty("user.dir"), TEST_INPUT_DIR);
+        File[] inputs = dir.listFiles();
+        assertTrue(inputs.length > 0);
+        for (File f : inputs) {
+            byte[] xml = readFile(f);
+            String[] expected = domParse(xml);
+            String[] actual = codecParse(xml);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(f.getName(), expected[i], actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsSpecialCharacters() throws Exception {
+        String value = "a < b && c > \"d\" 'e'\r\n\ttab \u00e9\u4e2d\ud83d\ude00 ]]>";
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("k&y");
+        kvm.setValue(value);
+        byte[] xml = kvm.toXML().getBytes("UTF-8");
+
+        String[] dom = domParse(xml);
+        assertEquals(PUT_REQ, dom[0]);
+        assertEquals("k&y", dom[1]);
+        assertEquals(value, dom[2]);
+
+        KVMessage parsed = KVXMLCodec.get().decode(new ByteArrayInputStream(xml));
+        assertEquals("k&y", parsed.getKey());
+        assertEquals(value, parsed.getValue());
+    }
+
+    @Test
+    public void readsDomOutputAndLargeValues() throws Exception {
+        String value = Utils.makeLongString(KVServer.MAX_VAL_SIZE);
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n" +
+            "<!-- comment --><KVMessage type=\"resp\">\n  <Key><![CDATA[<k>]]></Key>\n" +
+            "  <Value>" + value + "</Value>\n</KVMessage>\n";
+        KVMessage parsed = KVXMLCodec.get().decode(
+            new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertEquals(RESP, parsed.getMsgType());
+        assertEquals("<k>", parsed.getKey());
+        assertEquals(value, parsed.getValue());
+    }
+
+    @Test
+    public void rejectsCharactersXmlCannotCarry() {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("key");
+        kvm.setValue("bell\u0007");
+        try {
+            kvm.toXML();
+            fail("control characters cannot be written as XML 1.0");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsDeeplyNestedElements() {
+        StringBuilder xml = new StringBuilder("<KVMessage type=\"getreq\">");
+        for (int i = 0; i < 1000; i++)
+            xml.append("<a>");
+        try {
+            KVXMLCodec.get().decode(new ByteArrayInputStream(xml.toString().getBytes()));
+            fail("deep nesting should not parse");
+        } catch (KVException e) {
+            assertEquals(ERROR_PARSER, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsMismatchedTags() {
+        String xml = "<KVMessage type=\"getreq\"><Key>k</Value></KVMessage>";
+        try {
+            KVXMLCodec.get().decode(new ByteArrayInputStream(xml.getBytes()));
+            fail("mismatched tags should not parse");
+        } catch (KVException e) {
+            assertEquals(ERROR_PARSER, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsOversizedFieldsWhileReading() throws Exception {
+        String xml = "<KVMessage type=\"putreq\"><Key>" + Utils.makeLongString(11) +
+            "</Key><Value>v</Value></KVMessage>";
+        try {
+            KVXMLCodec.get().decode(new ByteArrayInputStream(xml.getBytes()), -1, 10, 100);
+            fail("oversized key should be rejected");
+        } catch (KVException e) {
+            assertEquals(ERROR_OVERSIZED_KEY, e.getKVMessage().getMessage());
+        }
+
+        xml = "<KVMessage type=\"putreq\"><Key>k</Key><Value>" +
+            Utils.makeLongString(100000) + "</Value></KVMessage>";
+        ByteArrayInputStream in = new ByteArrayInputStream(xml.getBytes());
+        try {
+            KVXMLCodec.get().decode(in, -1, 10, 100);
+            fail("oversized value should be rejected");
+        } catch (KVException e) {
+            assertEquals(ERROR_OVERSIZED_VALUE, e.getKVMessage().getMessage());
+        }
+        assertTrue(in.available() > 90000);
+
+        KVMessage kvm = KVXMLCodec.get().decode(
+            new ByteArrayInputStream(xml.getBytes()), -1, 10, 100000);
+        assertEquals(100000, kvm.getValue().length());
+    }
+
+    /* Begin helper methods */
+
+    /**
+     * Parse the way KVMessage did before the streaming codec: a DOM parse
+     * followed by tag lookups.
+     *
+     * @return type, key, value and message, or the error message alone
+     */
+    private String[] domParse(byte[] xml) {
+        Document doc;
+        try {
+            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(xml));
+        } catch (Exception e) {
+            return new String[] { ERROR_PARSER };
+        }
+        return new String[] {
+            doc.getDocumentElement().getAttribute("type"),
+            firstText(doc, "Key"),
+            firstText(doc, "Value"),
+            firstText(doc, "Message")
+        };
+    }
+
+    private String[] codecParse(byte[] xml) {
+        try {
+            KVMessage kvm = KVXMLCodec.get().decode(new ByteArrayInputStream(xml));
+            return new String[] {
+                kvm.getMsgType(), kvm.getKey(), kvm.getValue(), kvm.getMessage()
+            };
+        } catch (KVException e) {
+            return new String[] { e.getKVMessage().getMessage() };
+        }
+    }
+
+    private String firstText(Document doc, String tag) {
+        NodeList nodes = doc.getElementsByTagName(tag);
+        return nodes.getLength() > 0 ? nodes.item(0).getTextContent() : null;
+    }
+
+    private byte[] readFile(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+}
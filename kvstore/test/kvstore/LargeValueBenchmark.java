@@ -0,0 +1,79 @@
+package kvstore;
+
+import java.net.InetAddress;
+
+/**
+ * Measures PUT and GET throughput of values of MAX_VAL_SIZE (256KB) through
+ * a ServerClientHandler. Not run as part of the unit tests; run with
+ *
+ *     java -cp ... kvstore.LargeValueBenchmark [threads] [seconds]
+ *
+ * Pass -Dkvstore.compress=true to measure with compression, and
+ * -Dkvstore.nio=true to serve through an NIOSocketServer.
+ */
+public class LargeValueBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = Boolean.getBoolean("kvstore.nio") ?
+            new NIOSocketServer(hostname, 0) : new SocketServer(hostname, 0);
+        ServerClientHandler handler = new ServerClientHandler(new KVServer(100, 10), threads);
+        ss.addHandler(handler);
+        ServerRunner runner = new ServerRunner(ss, "benchmark");
+        runner.start();
+
+        KVClient client = new KVClient(hostname, ss.getPort());
+        client.setCompression(Boolean.getBoolean("kvstore.compress"));
+        String value = Utils.makeLongString(KVServer.MAX_VAL_SIZE);
+        client.put("warmup", value);
+
+        run("PUT", client, value, threads, seconds / 2 + 1, true);
+        run("GET", client, value, threads, seconds, false);
+        run("PUT", client, value, threads, seconds, true);
+        System.out.println(KVBinaryCodec.getCompressionStats());
+        System.out.println(handler.getPoolStats());
+        runner.stop();
+        // the server's worker threads do not stop with it
+        System.exit(0);
+    }
+
+    private static void run(String name, final KVClient client, final String value,
+            int threads, int seconds, final boolean put) throws InterruptedException {
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        final long[] ops = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    String key = "key" + id;
+                    try {
+                        client.put(key, value);
+                        while (System.currentTimeMillis() < end) {
+                            if (put)
+                                client.put(key, value);
+                            else
+                                client.get(key);
+                            ops[id]++;
+                        }
+                    } catch (KVException ex) {
+                        System.err.println(ex.getKVMessage().getMessage());
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            total += ops[t];
+        }
+        double perSecond = (double) total / seconds;
+        System.out.printf("%s %d threads: %.0f ops/s, %.1f MB/s%n", name, threads,
+            perSecond, perSecond * value.length() / (1024 * 1024));
+    }
+
+}
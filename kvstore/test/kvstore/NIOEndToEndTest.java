@@ -0,0 +1,108 @@
+package kvstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Runs the end-to-end tests against an NIOSocketServer.
+ */
+public class NIOEndToEndTest extends EndToEndTest {
+
+    @Override
+    protected SocketServer createServer(String hostname, int port) {
+        return new NIOSocketServer(hostname, port);
+    }
+
+    @Test
+    public void testSlowClientsDoNotHoldThreads() throws Exception {
+        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+        put.setKey("slow");
+        put.setValue("value");
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        KVBinaryCodec.get().encode(put, frame);
+        byte[] bytes = frame.toByteArray();
+
+        // more half-sent requests than the server has threads
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        Socket[] slow = new Socket[4];
+        for (int i = 0; i < slow.length; i++) {
+            slow[i] = new Socket(hostname, 7777);
+            slow[i].getOutputStream().write(bytes, 0, bytes.length / 2);
+        }
+        client.put("fast", "value");
+        assertEquals("value", client.get("fast"));
+
+        for (Socket sock : slow) {
+            OutputStream out = sock.getOutputStream();
+            out.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+            KVMessage resp = new KVConnection(sock, KVConnection.BINARY).receive();
+            assertEquals(KVConstants.SUCCESS, resp.getMessage());
+            sock.close();
+        }
+    }
+
+    @Test
+    public void testConnectionsSpreadOverLoops() throws Exception {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        NIOSocketServer nio = new NIOSocketServer(hostname, 0, 2, 3);
+        nio.addHandler(new ServerClientHandler(new KVServer(10, 10), 2));
+        ServerRunner runner = new ServerRunner(nio, "nio");
+        runner.start();
+        KVClient[] clients = new KVClient[6];
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                // the first request is one-shot; the second connection stays open
+                clients[i] = new KVClient(hostname, nio.getPort());
+                clients[i].put("key" + i, "value");
+                clients[i].put("key" + i, "value");
+            }
+            // one-shot connections close once the server sees the client hang up
+            long end = System.currentTimeMillis() + 2000;
+            while (!Arrays.equals(new int[] {2, 2, 2}, nio.getConnectionCounts()) &&
+                System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertArrayEquals(new int[] {2, 2, 2}, nio.getConnectionCounts());
+        } finally {
+            for (KVClient c : clients)
+                if (c != null)
+                    c.close();
+            runner.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testConnectionsPastAddressLimitAreRejected() throws Exception {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        NIOSocketServer nio = new NIOSocketServer(hostname, 0, 1, 1);
+        nio.addHandler(new ServerClientHandler(new KVServer(10, 10)));
+        nio.setMaxConnectionsPerAddress(1);
+        ServerRunner runner = new ServerRunner(nio, "nio");
+        runner.start();
+        Socket first = new Socket(hostname, nio.getPort());
+        Socket second = new Socket(hostname, nio.getPort());
+        try {
+            second.setSoTimeout(5000);
+            assertEquals(-1, second.getInputStream().read());
+            assertEquals(1, nio.getOpenConnections());
+            assertEquals(1, nio.getRejectedConnections());
+            first.close();
+            long end = System.currentTimeMillis() + 5000;
+            while (nio.getOpenConnections() > 0 && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertEquals(0, nio.getOpenConnections());
+        } finally {
+            first.close();
+            second.close();
+            runner.stop();
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package kvstore;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how long a slave's phase-2 decisions wait for a thread while its
+ * pool is flooded with reads, with one FIFO queue and with the lanes
+ * TPCMasterHandler uses. The lanes are then measured through a slave on a
+ * SocketServer: reader connections flood it with GETs while a master
+ * connection sends a vote, waits as for the other slaves' votes, and times
+ * the COMMIT. Not run as part of the unit tests; run with
+ *
+ *     java -cp ... kvstore.PriorityLaneBenchmark [threads] [seconds]
+ */
+public class PriorityLaneBenchmark {
+
+    /* work done by each read, and how often a decision arrives */
+    private static final long READ_MICROS = 200;
+    private static final long DECISION_INTERVAL_MILLIS = 5;
+
+    /* connections reading from the slave, and the time between a vote and its decision */
+    private static final int READERS = 64;
+    private static final long VOTE_GAP_MILLIS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        run("one lane", threads, seconds, false);
+        run("priority lanes", threads, seconds, true);
+        runSockets(threads, seconds);
+        // the slave's worker threads do not stop with it
+        System.exit(0);
+    }
+
+    private static void runSockets(int threads, int seconds) throws Exception {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new SocketServer(hostname, 0);
+        KVServer kvs = new KVServer(100, 10);
+        String logPath = "bin/log.benchmark";
+        new File(logPath).delete();
+        // rewriting the whole log on every entry would hide the wait
+        TPCLog log = new TPCLog(logPath, kvs) {
+            @Override
+            public void flushToDisk() {
+            }
+        };
+        ss.addHandler(new TPCMasterHandler(1, kvs, log, threads));
+        ServerRunner runner = new ServerRunner(ss, "slave");
+        runner.start();
+        final int port = ss.getPort();
+        final String host = hostname;
+
+        KVEndpoint master = new KVEndpoint(hostname, port);
+        vote(master, "key");
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] readers = new Thread[READERS];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    KVEndpoint slave = new KVEndpoint(host, port);
+                    KVMessage get = new KVMessage(KVConstants.GET_REQ);
+                    get.setKey("key");
+                    while (!done.get()) {
+                        try {
+                            slave.sendRequest(get, KVConstants.TIMEOUT_MILLISECONDS);
+                        } catch (KVException ex) {
+                        }
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        LatencyHistogram decisions = new LatencyHistogram();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end)
+            decisions.record(vote(master, "key"));
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        runner.stop();
+        System.out.printf("sockets, %d threads, %d readers: decisions took %s%n",
+            threads, READERS, decisions);
+    }
+
+    /**
+     * Send a PUT vote and, after VOTE_GAP_MILLIS, its COMMIT.
+     *
+     * @return nanoseconds from sending the COMMIT to its ACK
+     */
+    private static long vote(KVEndpoint master, String key) throws Exception {
+        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+        put.setKey(key);
+        put.setValue("value");
+        master.sendRequest(put, KVConstants.TIMEOUT_MILLISECONDS);
+        Thread.sleep(VOTE_GAP_MILLIS);
+        long start = System.nanoTime();
+        master.sendRequest(new KVMessage(KVConstants.COMMIT), KVConstants.TIMEOUT_MILLISECONDS);
+        return System.nanoTime() - start;
+    }
+
+    private static void run(String name, int threads, int seconds, boolean lanes)
+            throws InterruptedException {
+        ThreadPool pool = new ThreadPool(threads);
+        pool.setPriorityLanes(TPCMasterHandler.DECISION_WEIGHT,
+            TPCMasterHandler.WRITE_WEIGHT, TPCMasterHandler.READ_WEIGHT);
+        // keep a backlog of about 20 ms of reads per thread
+        int backlog = (int) (threads * 20000 / READ_MICROS);
+        LatencyHistogram decisions = new LatencyHistogram();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        long nextDecision = 0;
+        while (System.currentTimeMillis() < end) {
+            while (pool.getQueueSize() < backlog)
+                pool.addJob(new Job(lanes ? TPCMasterHandler.READ_LANE : 0, READ_MICROS, null));
+            if (System.currentTimeMillis() >= nextDecision) {
+                pool.addJob(new Job(lanes ? TPCMasterHandler.DECISION_LANE : 0, 0, decisions));
+                nextDecision = System.currentTimeMillis() + DECISION_INTERVAL_MILLIS;
+            }
+            Thread.sleep(1);
+        }
+        pool.shutdown();
+        pool.awaitTermination(10000);
+        System.out.printf("%s, %d threads: decisions waited %s%n", name, threads, decisions);
+    }
+
+    /**
+     * Job that spins for a while, and notes how long it waited to start.
+     */
+    private static class Job implements ThreadPool.Prioritized {
+
+        private final int lane;
+        private final long micros;
+        private final LatencyHistogram waits;
+        private final long queuedAt = System.nanoTime();
+
+        Job(int lane, long micros, LatencyHistogram waits) {
+            this.lane = lane;
+            this.micros = micros;
+            this.waits = waits;
+        }
+
+        @Override
+        public int getLane() {
+            return lane;
+        }
+
+        @Override
+        public void run() {
+            if (waits != null)
+                waits.record(System.nanoTime() - queuedAt);
+            long until = System.nanoTime() + micros * 1000;
+            while (System.nanoTime() < until)
+                ;
+        }
+    }
+
+}
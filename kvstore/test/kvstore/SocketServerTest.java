@@ -4,6 +4,8 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.*;
 
@@ -37,5 +39,152 @@ public class SocketServerTest {
         ss.start();
     }
 
+    /**
+     * Handler that keeps every socket it is given open.
+     */
+    static class HoldingHandler implements NetworkHandler {
+
+        final List<Socket> held = new ArrayList<Socket>();
+
+        @Override
+        public synchronized void handle(Socket client) {
+            held.add(client);
+        }
+
+        synchronized int count() {
+            return held.size();
+        }
+    }
+
+    private static void waitFor(HoldingHandler handler, int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (handler.count() < count && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+    }
+
+    @Test(timeout = 20000)
+    public void connectionsPastAddressLimitAreRejected() throws Exception {
+        HoldingHandler handler = new HoldingHandler();
+        ss.addHandler(handler);
+        ss.setMaxConnectionsPerAddress(1);
+        ServerRunner runner = new ServerRunner(ss, "limits");
+        runner.start();
+        Socket first = new Socket(localhostName, ss.getPort());
+        Socket second = new Socket(localhostName, ss.getPort());
+        try {
+            second.setSoTimeout(5000);
+            assertEquals(-1, second.getInputStream().read());
+            waitFor(handler, 1);
+            assertEquals(1, handler.count());
+            assertEquals(1, ss.getOpenConnections());
+            assertEquals(1, ss.getRejectedConnections());
+        } finally {
+            first.close();
+            second.close();
+            runner.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void acceptWaitsForIdleConnectionsToBeReaped() throws Exception {
+        HoldingHandler handler = new HoldingHandler();
+        ss.addHandler(handler);
+        ss.setMaxConnections(1);
+        ss.setIdleTimeout(500);
+        ServerRunner runner = new ServerRunner(ss, "limits");
+        runner.start();
+        Socket first = new Socket(localhostName, ss.getPort());
+        Socket second = new Socket(localhostName, ss.getPort());
+        try {
+            waitFor(handler, 1);
+            Thread.sleep(200);
+            // the second client waits in the accept queue
+            assertEquals(1, handler.count());
+            first.setSoTimeout(5000);
+            assertEquals(-1, first.getInputStream().read());
+            waitFor(handler, 2);
+            assertEquals(2, handler.count());
+            assertEquals(0, ss.getRejectedConnections());
+        } finally {
+            first.close();
+            second.close();
+            runner.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void clientsPastTheQueueLimitAreTurnedAway() throws Exception {
+        ServerClientHandler handler = new ServerClientHandler(new KVServer(10, 10));
+        handler.setQueueLimit(1, ThreadPool.REJECT);
+        ss.addHandler(handler);
+        ServerRunner runner = new ServerRunner(ss, "limits");
+        runner.start();
+        // the only thread waits for the rest of this request
+        Socket slow = new Socket(localhostName, ss.getPort());
+        slow.getOutputStream().write(KVBinaryCodec.MAGIC_0);
+        Thread.sleep(100);
+        // this one fills the queue
+        Socket queued = new Socket(localhostName, ss.getPort());
+        Thread.sleep(100);
+        try {
+            new KVClient(localhostName, ss.getPort()).put("key", "value");
+            fail("request served past the queue limit");
+        } catch (KVException ex) {
+            assertEquals(KVConstants.ERROR_SERVER_BUSY, ex.getKVMessage().getMessage());
+        } finally {
+            slow.close();
+            queued.close();
+            runner.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void handlerServesFromAWorkStealingPool() throws Exception {
+        ServerClientHandler handler = new ServerClientHandler(new KVServer(10, 10),
+            new WorkStealingThreadPool(2), 0);
+        ss.addHandler(handler);
+        ServerRunner runner = new ServerRunner(ss, "stealing");
+        runner.start();
+        try {
+            KVClient client = new KVClient(localhostName, ss.getPort());
+            for (int i = 0; i < 20; i++)
+                client.put("key" + i, "value" + i);
+            for (int i = 0; i < 20; i++)
+                assertEquals("value" + i, client.get("key" + i));
+            client.close();
+        } finally {
+            runner.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void turningClientsAwayDoesNotHoldUpAccepts() throws Exception {
+        ServerClientHandler handler = new ServerClientHandler(new KVServer(10, 10));
+        handler.setQueueLimit(1, ThreadPool.REJECT);
+        ss.addHandler(handler);
+        ServerRunner runner = new ServerRunner(ss, "limits");
+        runner.start();
+        Socket slow = new Socket(localhostName, ss.getPort());
+        slow.getOutputStream().write(KVBinaryCodec.MAGIC_0);
+        Thread.sleep(100);
+        Socket queued = new Socket(localhostName, ss.getPort());
+        Thread.sleep(100);
+        // turned away too, but they never send a request to answer
+        List<Socket> silent = new ArrayList<Socket>();
+        for (int i = 0; i < 30; i++)
+            silent.add(new Socket(localhostName, ss.getPort()));
+        try {
+            new KVClient(localhostName, ss.getPort()).put("key", "value");
+            fail("request served past the queue limit");
+        } catch (KVException ex) {
+            assertEquals(KVConstants.ERROR_SERVER_BUSY, ex.getKVMessage().getMessage());
+        } finally {
+            for (Socket sock : silent)
+                sock.close();
+            slow.close();
+            queued.close();
+            runner.stop();
+        }
+    }
 
 }
@@ -1,8 +1,13 @@
 package kvstore;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.Test;
 
 public class TPCEndToEndTest extends TPCEndToEndTemplate {
@@ -57,6 +62,24 @@ public class TPCEndToEndTest extends TPCEndToEndTemplate {
     	}
     }
     
+    @Test(timeout = 15000)
+    public void testPatch() throws KVException {
+    	client.put(KEY2 , "abcdef");
+    	assertEquals(client.get(KEY2) , "abcdef");
+    	client.patch(KEY2 , 1 , 2 , "XYZ");
+    	assertEquals(client.get(KEY2) , "aXYZdef");
+    	client.append(KEY2 , "gh");
+    	assertEquals(client.get(KEY2) , "aXYZdefgh");
+    	
+    	try {
+    		client.append("nope" , "x");
+    		fail("should not reach here!");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(ex.getKVMessage().getMessage() , KVConstants.ERROR_NO_SUCH_KEY);
+    	}
+    }
+    
     @Test(timeout = 60000)
     public void testConcurrentRequest() throws KVException {
     	client.put(KEY3 , "2333");
@@ -130,13 +153,184 @@ public class TPCEndToEndTest extends TPCEndToEndTemplate {
         }
     }
     
+    @Test(timeout = 60000)
+    public void testMultiGetAcrossReplicas() throws KVException {
+    	client.put(KEY1 , "one");
+    	client.put(KEY2 , "two");
+    	client.put(KEY3 , "three");
+    	client.put(KEY4 , "four");
+    	
+    	KVBatchResult<String> got = client.multiGet(Arrays.asList(KEY1 , KEY2 , KEY3 , KEY4 , "missing"));
+    	assertEquals("one" , got.get(KEY1));
+    	assertEquals("two" , got.get(KEY2));
+    	assertEquals("three" , got.get(KEY3));
+    	assertEquals("four" , got.get(KEY4));
+    	assertEquals(KVConstants.ERROR_NO_SUCH_KEY ,
+    		got.getFailures().get("missing").getKVMessage().getMessage());
+    	
+    	
+    	// the master's cache holds four keys: push these out of it, so the
+    	// batch is split among the replicas of each key
+    	for (int i = 0; i < 4; i++)
+    		client.put("filler" + i , "x");
+    	KVMessage batch = new KVMessage(KVConstants.MULTIGET_REQ);
+    	List<KVMessage> gets = new ArrayList<KVMessage>();
+    	for (String key : new String[] { KEY4 , "missing" , KEY1 , KEY2 , KEY3 }) {
+    		KVMessage get = new KVMessage(KVConstants.GET_REQ);
+    		get.setKey(key);
+    		gets.add(get);
+    	}
+    	batch.setEntries(gets);
+    	List<KVMessage> answers = master.handleMultiGet(batch).getEntries();
+    	assertEquals("four" , answers.get(0).getValue());
+    	assertEquals("missing" , answers.get(1).getKey());
+    	assertEquals(KVConstants.ERROR_NO_SUCH_KEY , answers.get(1).getMessage());
+    	assertEquals("one" , answers.get(2).getValue());
+    	assertEquals("two" , answers.get(3).getValue());
+    	assertEquals("three" , answers.get(4).getValue());
+    	
+    	client.multiDel(Arrays.asList(KEY1 , KEY2 , KEY3 , KEY4 , "filler0" , "filler1" ,
+    		"filler2" , "filler3"));
+    }
+    
+    @Test(timeout = 60000)
+    public void testReadLease() throws KVException {
+    	master.setReadLease(500);
+    	KVClient other = new KVClient(hostname, CLIENTPORT);
+    	client.setNearCache(4, 4, 60000);
+    	client.put(KEY2 , "leased");
+    	assertEquals("leased" , client.get(KEY2));
+    	
+    	// the write is held back until the near cache drops the value
+    	long start = System.currentTimeMillis();
+    	other.put(KEY2 , "written");
+    	assertTrue(System.currentTimeMillis() - start >= 400);
+    	assertEquals("written" , client.get(KEY2));
+    	assertEquals(0 , client.getNearCacheHits());
+    	master.setReadLease(0);
+    }
+    
+    @Test(timeout = 60000)
+    public void testLeaseWaitHoldsNoLock() throws Exception {
+    	client.put(KEY1 , "other");
+    	client.put(KEY2 , "leased");
+    	master.setReadLease(1500);
+    	assertEquals("leased" , client.get(KEY2));
+    	
+    	final KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+    	put.setKey(KEY2);
+    	put.setValue("written");
+    	Thread write = new Thread(new Runnable() {
+    		public void run() {
+    			try {
+    				master.handleTPCRequest(put , true);
+    			}
+    			catch (KVException ex) {
+    			}
+    		}
+    	});
+    	write.start();
+    	Thread.sleep(200);
+    	// the write is waiting for the lease, but reads of its set go on
+    	KVMessage get = new KVMessage(KVConstants.GET_REQ);
+    	get.setKey(KEY1);
+    	long start = System.currentTimeMillis();
+    	KVMessage resp = master.handleGetWithLease(get);
+    	assertTrue(System.currentTimeMillis() - start < 1000);
+    	assertEquals("other" , resp.getValue());
+    	// without a lease, since the write may land before one would run out
+    	assertEquals(KVConstants.LEASE_REFUSED , resp.getLease());
+    	write.join();
+    	assertEquals("written" , client.get(KEY2));
+    	master.setReadLease(0);
+    }
+    
+    @Test(timeout = 60000)
+    public void testRefusedLeaseNotCached() throws Exception {
+    	client.put(KEY2 , "leased");
+    	master.setReadLease(1500);
+    	assertEquals("leased" , client.get(KEY2));
+    	
+    	final KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+    	put.setKey(KEY2);
+    	put.setValue("written");
+    	Thread write = new Thread(new Runnable() {
+    		public void run() {
+    			try {
+    				master.handleTPCRequest(put , true);
+    			}
+    			catch (KVException ex) {
+    			}
+    		}
+    	});
+    	write.start();
+    	Thread.sleep(200);
+    	// read while the write waits: the value comes without a lease, so
+    	// it must not outlive the write in the near cache
+    	KVClient reader = new KVClient(hostname, CLIENTPORT);
+    	reader.setNearCache(4, 4, 60000);
+    	assertEquals("leased" , reader.get(KEY2));
+    	write.join();
+    	assertEquals("written" , reader.get(KEY2));
+    	assertEquals(0 , reader.getNearCacheHits());
+    	reader.close();
+    	master.setReadLease(0);
+    }
+    
+    @Test(timeout = 60000)
+    public void testDirectReads() throws Exception {
+    	client.setDirectReads(true);
+    	client.put(KEY1 , "direct");
+    	assertEquals("direct" , client.get(KEY1));
+    	assertEquals(1 , client.getDirectReadCount());
+    	try {
+    		client.get(KEY4);
+    		fail("missing key should not be found on its replicas");
+    	}
+    	catch (KVException ex) {
+    		assertEquals(KVConstants.ERROR_NO_SUCH_KEY , ex.getKVMessage().getMessage());
+    	}
+    	
+    	// the successor answers while the primary is down
+    	stopSlave(Long.toString(SLAVE1));
+    	assertEquals("direct" , client.get(KEY1));
+    	assertEquals(2 , client.getDirectReadCount());
+    	
+    	// the primary comes back on another port and is found there
+    	startSlave(SLAVE1);
+    	stopSlave(Long.toString(SLAVE2));
+    	Thread.sleep(1500);
+    	assertEquals("direct" , client.get(KEY1));
+    	assertEquals(3 , client.getDirectReadCount());
+    	client.close();
+    }
+    
+    @Test(timeout = 60000)
+    public void testGetBetweenVoteAndDecision() throws KVException {
+    	client.put(KEY1 , "before");
+    	TPCSlaveInfo slave = master.findFirstReplica(KEY1);
+    	KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+    	put.setKey(KEY1);
+    	put.setValue("after");
+    	assertEquals(KVConstants.READY , slave.sendRequest(put , TPCMaster.TIMEOUT).getMsgType());
+    	
+    	// a read served between the vote and the decision must not be taken
+    	// for the request the decision applies to
+    	KVMessage get = new KVMessage(KVConstants.GET_REQ);
+    	get.setKey(KEY1);
+    	assertEquals("before" , slave.sendRequest(get , TPCMaster.TIMEOUT).getValue());
+    	KVMessage commit = new KVMessage(KVConstants.COMMIT);
+    	assertEquals(KVConstants.ACK , slave.sendRequest(commit , TPCMaster.TIMEOUT).getMsgType());
+    	assertEquals("after" , slave.sendRequest(get , TPCMaster.TIMEOUT).getValue());
+    }
+    
     @Test(timeout = 60000)
     public void testSingleSlaveCrash() throws KVException {
         client.put(KEY1 , "1");
         assertEquals(client.get(KEY1) , "1");
         
         try {
-			stopSlave(new Long(SLAVE1).toString());
+			stopSlave(Long.toString(SLAVE1));
 		} 
         catch (InterruptedException ex) {
 			ex.printStackTrace();
@@ -0,0 +1,77 @@
+package kvstore;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the CPU an idle ThreadPool burns and how long a job waits from
+ * addJob() until a worker starts it. Not run as part of the unit tests;
+ * run with
+ *
+ *     java -cp ... kvstore.ThreadPoolBenchmark [threads] [jobs]
+ */
+public class ThreadPoolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int jobs = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        ThreadPool pool = new ThreadPool(threads);
+        Thread.sleep(200);
+        idleCpu(threads, 2000);
+        latency(pool, "one at a time", jobs, 1);
+        latency(pool, "bursts of " + threads * 4, jobs, threads * 4);
+        pool.shutdown();
+        if (!pool.awaitTermination(1000))
+            System.out.println("workers did not exit");
+    }
+
+    /**
+     * Report CPU time used by all threads while the pool has no work.
+     */
+    private static void idleCpu(int threads, int millis) throws InterruptedException {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long before = totalCpu(mx);
+        Thread.sleep(millis);
+        long used = totalCpu(mx) - before;
+        System.out.printf("idle %d threads: %.1f ms CPU in %d ms (%.2f%% of a core)%n",
+            threads, used / 1e6, millis, 100.0 * used / 1e6 / millis);
+    }
+
+    private static long totalCpu(ThreadMXBean mx) {
+        long total = 0;
+        for (long id : mx.getAllThreadIds())
+            total += Math.max(0, mx.getThreadCpuTime(id));
+        return total;
+    }
+
+    /**
+     * Report the time from addJob() to the start of the job, adding jobs in
+     * batches and waiting for each batch to finish.
+     */
+    private static void latency(ThreadPool pool, String name, int jobs, int batch)
+            throws InterruptedException {
+        final long[] waits = new long[jobs - jobs % batch];
+        for (int i = 0; i < waits.length; i += batch) {
+            final CountDownLatch done = new CountDownLatch(batch);
+            for (int j = 0; j < batch; j++) {
+                final int id = i + j;
+                final long added = System.nanoTime();
+                pool.addJob(new Runnable() {
+                    public void run() {
+                        waits[id] = System.nanoTime() - added;
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        }
+        Arrays.sort(waits);
+        System.out.printf("%s: enqueue to start p50 %.1f us, p99 %.1f us, max %.1f us%n", name,
+            waits[waits.length / 2] / 1e3, waits[waits.length * 99 / 100] / 1e3,
+            waits[waits.length - 1] / 1e3);
+    }
+
+}
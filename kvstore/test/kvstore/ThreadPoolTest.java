@@ -0,0 +1,386 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ThreadPoolTest {
+
+    @Test(timeout = 10000)
+    public void unboundedPoolRunsBlockedJobsAtOnce() throws Exception {
+        ThreadPool pool = new ThreadPool(ThreadPool.UNBOUNDED);
+        final int jobs = 50;
+        final CountDownLatch started = new CountDownLatch(jobs);
+        final CountDownLatch finished = new CountDownLatch(jobs);
+        for (int i = 0; i < jobs; i++) {
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    // each job blocks until every job has started
+                    started.countDown();
+                    try {
+                        started.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    finished.countDown();
+                }
+            });
+        }
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getQueueSize());
+    }
+
+    @Test(timeout = 10000)
+    public void unboundedPoolReusesIdleThreads() throws Exception {
+        ThreadPool pool = new ThreadPool(ThreadPool.UNBOUNDED);
+        final Thread[] ran = new Thread[2];
+        for (int i = 0; i < ran.length; i++) {
+            final int id = i;
+            final CountDownLatch done = new CountDownLatch(1);
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    ran[id] = Thread.currentThread();
+                    done.countDown();
+                }
+            });
+            done.await();
+            // let the worker go back to waiting
+            Thread.sleep(100);
+        }
+        assertSame(ran[0], ran[1]);
+    }
+
+    @Test(timeout = 10000)
+    public void workerSurvivesJobThatThrowsError() throws Exception {
+        ThreadPool pool = new ThreadPool(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        pool.addJob(new Runnable() {
+            public void run() {
+                throw new OutOfMemoryError("test");
+            }
+        });
+        pool.addJob(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownFinishesQueuedJobs() throws Exception {
+        ThreadPool pool = new ThreadPool(2);
+        final AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException ex) {
+                    }
+                    ran.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5000));
+        assertEquals(20, ran.get());
+        try {
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("job added after shutdown");
+        } catch (RejectedExecutionException ex) {
+        }
+    }
+
+    /**
+     * Job that waits for a latch, to keep a worker busy.
+     */
+    private static Runnable blocker(final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+    }
+
+    /**
+     * Job that counts down a latch when run or rejected.
+     */
+    private static class CountingJob implements ThreadPool.Rejectable {
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        final CountDownLatch rejected = new CountDownLatch(1);
+        volatile Thread thread;
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            ran.countDown();
+        }
+
+        @Override
+        public void reject() {
+            rejected.countDown();
+        }
+    }
+
+    /**
+     * Pool of one busy worker with a full queue of the given capacity.
+     */
+    private static ThreadPool fullPool(CountDownLatch release, int capacity, int policy)
+            throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1);
+        pool.addJob(blocker(release));
+        while (pool.getQueueSize() > 0)
+            Thread.sleep(1);
+        pool.setQueueLimit(capacity, policy);
+        for (int i = 0; i < capacity; i++)
+            pool.addJob(new CountingJob());
+        return pool;
+    }
+
+    @Test(timeout = 10000)
+    public void fullQueueRejects() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPool pool = fullPool(release, 2, ThreadPool.REJECT);
+        try {
+            pool.addJob(new CountingJob());
+            fail("job added past the limit");
+        } catch (RejectedExecutionException ex) {
+        }
+        assertEquals(2, pool.getQueueSize());
+        release.countDown();
+    }
+
+    @Test(timeout = 10000)
+    public void fullQueueDropsOldest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPool pool = fullPool(release, 0, ThreadPool.DROP_OLDEST);
+        pool.setQueueLimit(1, ThreadPool.DROP_OLDEST);
+        CountingJob oldest = new CountingJob();
+        CountingJob newest = new CountingJob();
+        pool.addJob(oldest);
+        pool.addJob(newest);
+        assertTrue(oldest.rejected.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(newest.ran.await(5, TimeUnit.SECONDS));
+        assertEquals(1, oldest.ran.getCount());
+    }
+
+    @Test(timeout = 10000)
+    public void fullQueueRunsOnCaller() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPool pool = fullPool(release, 1, ThreadPool.CALLER_RUNS);
+        CountingJob job = new CountingJob();
+        pool.addJob(job);
+        assertSame(Thread.currentThread(), job.thread);
+        release.countDown();
+    }
+
+    @Test(timeout = 10000)
+    public void fullQueueBlocksUntilThereIsRoom() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        final ThreadPool pool = fullPool(release, 1, ThreadPool.BLOCK);
+        final CountingJob job = new CountingJob();
+        Thread adder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pool.addJob(job);
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+        adder.start();
+        adder.join(200);
+        assertTrue(adder.isAlive());
+        release.countDown();
+        adder.join(5000);
+        assertFalse(adder.isAlive());
+        assertTrue(job.ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void workStealingPoolStealsFromBusyWorkers() throws Exception {
+        final ThreadPool pool = new WorkStealingThreadPool(2);
+        assertEquals(2, pool.getPoolSize());
+        try {
+            pool.setElastic(4, 10, 1000);
+            fail("a work-stealing pool has a fixed size");
+        } catch (UnsupportedOperationException ex) {
+        }
+        CountDownLatch release = new CountDownLatch(1);
+        pool.addJob(blocker(release));
+        // half of these are dealt to the blocked worker's deque
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 10; i++) {
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                    try {
+                        // and each adds another from a worker
+                        pool.addJob(new Runnable() {
+                            @Override
+                            public void run() {
+                                done.countDown();
+                            }
+                        });
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getQueueSize());
+        assertEquals(0, pool.getGrowCount());
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5000));
+        assertEquals(0, pool.getPoolSize());
+    }
+
+    @Test(timeout = 10000)
+    public void elasticPoolGrowsWhenJobsWaitAndShrinksWhenIdle() throws Exception {
+        ThreadPool pool = new ThreadPool(1);
+        pool.setElastic(3, 20, 200);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 5; i++) {
+            pool.addJob(blocker(release));
+            Thread.sleep(50);
+        }
+        // each job that waited past the target started a thread, up to 3
+        assertEquals(3, pool.getPoolSize());
+        assertEquals(2, pool.getGrowCount());
+        assertEquals(2, pool.getQueueSize());
+        release.countDown();
+
+        long end = System.currentTimeMillis() + 5000;
+        while (pool.getPoolSize() > 1 && System.currentTimeMillis() < end)
+            Thread.sleep(20);
+        assertEquals(1, pool.getPoolSize());
+        assertEquals(2, pool.getShrinkCount());
+        List<String> history = pool.getResizeHistory();
+        assertEquals(4, history.size());
+        assertTrue(history.get(0).startsWith("grew to 2 threads"));
+        assertTrue(history.get(3).startsWith("shrank to 1 threads"));
+    }
+
+    @Test(timeout = 10000)
+    public void statsCountJobsAndTheirTimes() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPool pool = fullPool(release, 0, ThreadPool.BLOCK);
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            final boolean fail = (i == 0);
+            pool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                    if (fail)
+                        throw new IllegalStateException("failing job");
+                }
+            });
+        }
+        Thread.sleep(50);
+        ThreadPoolStats stats = pool.getStats();
+        assertEquals(1, stats.getActiveWorkers());
+        assertEquals(5, stats.getQueueDepth());
+        assertEquals(5, stats.getMaxQueueDepth());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5000));
+
+        assertEquals(0, stats.getActiveWorkers());
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(5, stats.getCompleted());
+        assertEquals(1, stats.getFailed());
+        assertEquals(6, stats.getWaitTimes().getCount());
+        // the queued jobs waited behind the blocker
+        assertTrue(stats.getWaitTimes().getPercentile(99) >= 40000);
+        assertTrue(stats.getRunTimes().getMax() >= 40000);
+    }
+
+    /**
+     * Job in a priority lane that notes its name when it runs.
+     */
+    private static class LaneJob implements ThreadPool.Prioritized {
+
+        private final int lane;
+        private final String name;
+        private final List<String> ran;
+
+        LaneJob(int lane, String name, List<String> ran) {
+            this.lane = lane;
+            this.name = name;
+            this.ran = ran;
+        }
+
+        @Override
+        public int getLane() {
+            return lane;
+        }
+
+        @Override
+        public void run() {
+            ran.add(name);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void strictLaneGoesFirstAndWeightedLanesTakeTurns() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPool pool = fullPool(release, 0, ThreadPool.BLOCK);
+        pool.setPriorityLanes(ThreadPool.STRICT, 2, 1);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        for (int i = 1; i <= 3; i++)
+            pool.addJob(new LaneJob(2, "read" + i, ran));
+        for (int i = 1; i <= 3; i++)
+            pool.addJob(new LaneJob(1, "write" + i, ran));
+        pool.addJob(new LaneJob(0, "commit", ran));
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5000));
+        assertEquals(Arrays.asList("commit", "write1", "write2", "read1", "write3",
+            "read2", "read3"), ran);
+        assertEquals(1, pool.getStats().getWaitTimes(0).getCount());
+        assertEquals(3, pool.getStats().getWaitTimes(2).getCount());
+    }
+
+    @Test
+    public void histogramPercentilesAreCloseToExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i * 1000L);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.01);
+        assertEquals(1000, histogram.getMax());
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.125);
+        long p95 = histogram.getPercentile(95);
+        assertTrue(p95 >= 950 && p95 <= 1000);
+    }
+
+}
@@ -0,0 +1,106 @@
+package kvstore;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares job throughput of ThreadPool and WorkStealingThreadPool at 1, 4,
+ * 16 and 64 threads. Not run as part of the unit tests; run with
+ *
+ *     java -cp ... kvstore.WorkStealingBenchmark [jobs]
+ *
+ * "submitted" jobs are all added by one outside thread, as a SocketServer
+ * adds connections; "fan-out" jobs are mostly added by the workers
+ * themselves, as requeued connections and pipelined requests are.
+ */
+public class WorkStealingBenchmark {
+
+    /* keeps the work in each job from being optimized away */
+    static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int[] sizes = {1, 4, 16, 64};
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            boolean print = (round == 1);
+            for (int threads : sizes) {
+                ThreadPool shared = new ThreadPool(threads);
+                ThreadPool stealing = new WorkStealingThreadPool(threads);
+                double a = submitted(shared, jobs);
+                double b = submitted(stealing, jobs);
+                double c = fanOut(shared, jobs);
+                double d = fanOut(stealing, jobs);
+                if (print)
+                    System.out.printf("%2d threads: submitted %8.0f vs %8.0f jobs/s, " +
+                        "fan-out %8.0f vs %8.0f jobs/s (shared vs stealing)%n",
+                        threads, a, b, c, d);
+                shared.shutdown();
+                stealing.shutdown();
+                shared.awaitTermination(5000);
+                stealing.awaitTermination(5000);
+            }
+        }
+    }
+
+    private static void work() {
+        long x = 0;
+        for (int i = 0; i < 200; i++)
+            x += i * 31 ^ x;
+        sink = x;
+    }
+
+    private static double submitted(ThreadPool pool, int jobs) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(jobs);
+        long start = System.nanoTime();
+        for (int i = 0; i < jobs; i++) {
+            pool.addJob(new Runnable() {
+                public void run() {
+                    work();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return jobs / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static double fanOut(final ThreadPool pool, int jobs) throws InterruptedException {
+        final int perSeed = 1000;
+        final int seeds = Math.max(1, jobs / perSeed);
+        final CountDownLatch done = new CountDownLatch(seeds * perSeed);
+        long start = System.nanoTime();
+        for (int i = 0; i < seeds; i++) {
+            pool.addJob(new Chain(pool, done, perSeed));
+        }
+        done.await();
+        return seeds * perSeed / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * A job that adds the next link of its chain before doing its work.
+     */
+    private static class Chain implements Runnable {
+
+        private final ThreadPool pool;
+        private final CountDownLatch done;
+        private final int left;
+
+        Chain(ThreadPool pool, CountDownLatch done, int left) {
+            this.pool = pool;
+            this.done = done;
+            this.left = left;
+        }
+
+        public void run() {
+            if (left > 1) {
+                try {
+                    pool.addJob(new Chain(pool, done, left - 1));
+                } catch (InterruptedException ex) {
+                }
+            }
+            work();
+            done.countDown();
+        }
+    }
+
+}